@@ -0,0 +1,85 @@
+package it.auties.whatsapp.api;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+
+/**
+ * A model class that describes when the keys and the store of a session should be persisted in the background while the session is connected.
+ * A checkpoint is taken when the interval elapses, when the number of changes since the last checkpoint reaches the threshold
+ * or when the oldest change that wasn't persisted yet is older than the maximum latency.
+ * Non-positive values disable the corresponding trigger.
+ *
+ * @param interval   the non-null interval between two periodic checkpoints
+ * @param maxChanges the number of changes that triggers a checkpoint
+ * @param maxLatency the non-null maximum time a change can wait before being persisted
+ */
+public record CheckpointPolicy(@NonNull Duration interval, int maxChanges, @NonNull Duration maxLatency) {
+    /**
+     * The default policy
+     */
+    private static final CheckpointPolicy DEFAULT = new CheckpointPolicy(Duration.ofMinutes(5), 256, Duration.ofSeconds(15));
+
+    /**
+     * A policy that never takes checkpoints
+     */
+    private static final CheckpointPolicy DISABLED = new CheckpointPolicy(Duration.ZERO, 0, Duration.ZERO);
+
+    /**
+     * Returns the default policy: a checkpoint every five minutes, after 256 changes or at most fifteen seconds after a change
+     *
+     * @return a non-null policy
+     */
+    public static CheckpointPolicy ofDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a policy that never takes checkpoints, so that the session is only persisted when it's disposed
+     *
+     * @return a non-null policy
+     */
+    public static CheckpointPolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy takes checkpoints
+     *
+     * @return a boolean
+     */
+    public boolean enabled() {
+        return hasInterval() || hasMaxChanges() || hasMaxLatency();
+    }
+
+    /**
+     * Returns whether periodic checkpoints are enabled
+     *
+     * @return a boolean
+     */
+    public boolean hasInterval() {
+        return isPositive(interval);
+    }
+
+    /**
+     * Returns whether checkpoints are taken after a number of changes
+     *
+     * @return a boolean
+     */
+    public boolean hasMaxChanges() {
+        return maxChanges > 0;
+    }
+
+    /**
+     * Returns whether the time a change can wait before being persisted is bounded
+     *
+     * @return a boolean
+     */
+    public boolean hasMaxLatency() {
+        return isPositive(maxLatency);
+    }
+
+    private boolean isPositive(Duration duration) {
+        return !duration.isZero() && !duration.isNegative();
+    }
+}
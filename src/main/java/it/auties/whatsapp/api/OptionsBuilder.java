@@ -167,4 +167,89 @@ public sealed class OptionsBuilder<T extends OptionsBuilder<T>> permits MobileOp
         store.checkPatchMacs(checkPatchMacs);
         return (T) this;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets whether the text, captions and document names of messages should be indexed for local search
+     * By default, it's set to false
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T indexMessages(boolean indexMessages) {
+        store.indexMessages(indexMessages);
+        return (T) this;
+    }
+
+    /**
+     * Sets whether ephemeral messages and status updates should be removed from memory when they expire
+     * When enabled, the messages of every chat are loaded in the background after the session is restored, as their expirations are only known once they are decoded
+     * By default, it's set to false
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T expireMessages(boolean expireMessages) {
+        store.expireMessages(expireMessages);
+        return (T) this;
+    }
+
+    /**
+     * Sets the policy used to persist the session in the background while it's connected
+     * By default, {@link CheckpointPolicy#ofDefault()} is used
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T checkpointPolicy(@NonNull CheckpointPolicy checkpointPolicy) {
+        store.checkpointPolicy(checkpointPolicy);
+        return (T) this;
+    }
+
+    /**
+     * Sets the policy used to coalesce the receipts sent by the session
+     * By default, {@link ReceiptPolicy#ofDefault()} is used
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T receiptPolicy(@NonNull ReceiptPolicy receiptPolicy) {
+        store.receiptPolicy(receiptPolicy);
+        return (T) this;
+    }
+
+    /**
+     * Sets the policy used to reuse the medias uploaded by the session
+     * By default, {@link UploadCachePolicy#disabled()} is used
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T uploadCachePolicy(@NonNull UploadCachePolicy uploadCachePolicy) {
+        store.uploadCachePolicy(uploadCachePolicy);
+        return (T) this;
+    }
+
+    /**
+     * Sets the policy used to schedule the nodes sent by the session
+     * By default, {@link TrafficPolicy#ofDefault()} is used
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T trafficPolicy(@NonNull TrafficPolicy trafficPolicy) {
+        store.trafficPolicy(trafficPolicy);
+        return (T) this;
+    }
+
+    /**
+     * Sets the policy used to prepare the sessions of recent chats after the session logs in
+     * By default, {@link WarmupPolicy#disabled()} is used
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T warmupPolicy(@NonNull WarmupPolicy warmupPolicy) {
+        store.warmupPolicy(warmupPolicy);
+        return (T) this;
+    }
+}
@@ -0,0 +1,53 @@
+package it.auties.whatsapp.api;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+
+/**
+ * A model class that describes how receipts are coalesced before being sent.
+ * Receipts sent to the same chat and participant with the same type are buffered and sent as a single receipt
+ * when the window elapses or when the number of buffered messages reaches the maximum.
+ * A non-positive window or maximum disables coalescing, so every receipt is sent as soon as it's created.
+ *
+ * @param window the non-null time a receipt can be buffered
+ * @param maxIds the maximum number of messages that a single receipt can acknowledge
+ */
+public record ReceiptPolicy(@NonNull Duration window, int maxIds) {
+    /**
+     * The default policy
+     */
+    private static final ReceiptPolicy DEFAULT = new ReceiptPolicy(Duration.ofMillis(500), 100);
+
+    /**
+     * A policy that never coalesces receipts
+     */
+    private static final ReceiptPolicy DISABLED = new ReceiptPolicy(Duration.ZERO, 0);
+
+    /**
+     * Returns the default policy: receipts are buffered for at most half a second and acknowledge at most a hundred messages
+     *
+     * @return a non-null policy
+     */
+    public static ReceiptPolicy ofDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a policy that sends every receipt as soon as it's created
+     *
+     * @return a non-null policy
+     */
+    public static ReceiptPolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy coalesces receipts
+     *
+     * @return a boolean
+     */
+    public boolean enabled() {
+        return !window.isZero() && !window.isNegative() && maxIds > 1;
+    }
+}
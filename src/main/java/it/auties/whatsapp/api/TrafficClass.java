@@ -0,0 +1,38 @@
+package it.auties.whatsapp.api;
+
+import it.auties.whatsapp.model.exchange.Node;
+
+/**
+ * The constants of this enumerated type describe the priority classes of the nodes sent by a session.
+ * When the socket is busy, nodes of a higher class are always sent before nodes of a lower class.
+ */
+public enum TrafficClass {
+    /**
+     * Acks, receipts, presence updates and pings: the nodes that keep the session healthy
+     */
+    CONTROL,
+
+    /**
+     * Messages sent by the user and queries
+     */
+    INTERACTIVE,
+
+    /**
+     * Messages sent through a bulk send
+     */
+    BULK;
+
+    /**
+     * Returns the class of a node that wasn't explicitly classified
+     *
+     * @param node the non-null node
+     * @return a non-null class
+     */
+    public static TrafficClass of(Node node) {
+        return switch (node.description()) {
+            case "ack", "receipt", "presence", "chatstate" -> CONTROL;
+            case "iq" -> node.hasNode("ping") ? CONTROL : INTERACTIVE;
+            default -> INTERACTIVE;
+        };
+    }
+}
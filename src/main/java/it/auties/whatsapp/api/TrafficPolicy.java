@@ -0,0 +1,96 @@
+package it.auties.whatsapp.api;
+
+import lombok.NonNull;
+
+/**
+ * A model class that describes how the nodes sent by a session are scheduled.
+ * Every {@link TrafficClass} has its own token bucket: a node can be sent when its bucket has a token,
+ * and buckets are refilled at a constant rate up to their capacity.
+ * When more nodes are waiting, the ones of the highest class are sent first, in the order they were sent.
+ *
+ * @param control     the non-null bucket of {@link TrafficClass#CONTROL} nodes
+ * @param interactive the non-null bucket of {@link TrafficClass#INTERACTIVE} nodes
+ * @param bulk        the non-null bucket of {@link TrafficClass#BULK} nodes
+ */
+public record TrafficPolicy(@NonNull Bucket control, @NonNull Bucket interactive, @NonNull Bucket bulk) {
+    /**
+     * The default policy
+     */
+    private static final TrafficPolicy DEFAULT = new TrafficPolicy(Bucket.unlimited(), new Bucket(20, 40), new Bucket(10, 10));
+
+    /**
+     * A policy that sends every node as soon as it's created
+     */
+    private static final TrafficPolicy DISABLED = new TrafficPolicy(Bucket.unlimited(), Bucket.unlimited(), Bucket.unlimited());
+
+    /**
+     * Returns the default policy: control nodes are never limited, interactive nodes are limited to twenty per second with bursts of forty
+     * and bulk messages are limited to ten per second.
+     * The bulk limit also caps {@link it.auties.whatsapp.model.exchange.BulkSendRequest#messagesPerSecond()}:
+     * to send bulk messages faster, use a policy whose bulk bucket is faster or {@link Bucket#unlimited()}
+     *
+     * @return a non-null policy
+     */
+    public static TrafficPolicy ofDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a policy that sends every node as soon as it's created, regardless of its class
+     *
+     * @return a non-null policy
+     */
+    public static TrafficPolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy limits any class
+     *
+     * @return a boolean
+     */
+    public boolean enabled() {
+        return control.limited() || interactive.limited() || bulk.limited();
+    }
+
+    /**
+     * Returns the bucket of a class
+     *
+     * @param trafficClass the non-null class
+     * @return a non-null bucket
+     */
+    public Bucket bucket(@NonNull TrafficClass trafficClass) {
+        return switch (trafficClass) {
+            case CONTROL -> control;
+            case INTERACTIVE -> interactive;
+            case BULK -> bulk;
+        };
+    }
+
+    /**
+     * A token bucket.
+     * A non-positive rate or capacity means that the bucket never runs out of tokens.
+     *
+     * @param rate     the number of tokens added to the bucket every second
+     * @param capacity the maximum number of tokens in the bucket, that is the largest burst of nodes that can be sent at once
+     */
+    public record Bucket(double rate, int capacity) {
+        /**
+         * Returns a bucket that never runs out of tokens
+         *
+         * @return a non-null bucket
+         */
+        public static Bucket unlimited() {
+            return new Bucket(0, 0);
+        }
+
+        /**
+         * Returns whether this bucket can run out of tokens
+         *
+         * @return a boolean
+         */
+        public boolean limited() {
+            return rate > 0 && capacity > 0;
+        }
+    }
+}
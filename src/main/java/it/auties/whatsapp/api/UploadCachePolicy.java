@@ -0,0 +1,40 @@
+package it.auties.whatsapp.api;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+
+/**
+ * A model class that describes how uploaded medias are reused.
+ * When enabled, a media that is sent again with the same content and type isn't encrypted and uploaded again:
+ * the keys and path of the previous upload are used instead, so a single upload can serve many chats.
+ * Uploads are forgotten after the time to live elapses, when the cache is full or when Whatsapp reports that they are no longer available.
+ * A non-positive time to live or maximum number of entries disables the cache.
+ *
+ * @param ttl        the non-null time for which an upload can be reused
+ * @param maxEntries the maximum number of uploads that are remembered
+ */
+public record UploadCachePolicy(@NonNull Duration ttl, int maxEntries) {
+    /**
+     * A policy that never reuses uploads
+     */
+    private static final UploadCachePolicy DISABLED = new UploadCachePolicy(Duration.ZERO, 0);
+
+    /**
+     * Returns a policy that uploads every media that is sent
+     *
+     * @return a non-null policy
+     */
+    public static UploadCachePolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy reuses uploads
+     *
+     * @return a boolean
+     */
+    public boolean enabled() {
+        return !ttl.isZero() && !ttl.isNegative() && maxEntries > 0;
+    }
+}
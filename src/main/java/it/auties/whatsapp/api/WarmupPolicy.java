@@ -0,0 +1,57 @@
+package it.auties.whatsapp.api;
+
+/**
+ * A model class that describes which sessions are prepared in the background after a session logs in.
+ * The devices of the most recent chats, and of the participants of the most recent groups, are queried along with their signal sessions,
+ * so the first message sent to those chats doesn't wait for them.
+ * Preparing a session consumes one of the pre keys of the recipient, so this is disabled by default.
+ * A non-positive number of chats disables warming up.
+ *
+ * @param chats     the number of recent chats whose sessions are prepared
+ * @param batchSize the maximum number of users or devices queried by a single request
+ */
+public record WarmupPolicy(int chats, int batchSize) {
+    /**
+     * The batch size used when none is specified
+     */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * A policy that never prepares sessions in the background
+     */
+    private static final WarmupPolicy DISABLED = new WarmupPolicy(0, DEFAULT_BATCH_SIZE);
+
+    public WarmupPolicy {
+        if (batchSize <= 0) {
+            batchSize = DEFAULT_BATCH_SIZE;
+        }
+    }
+
+    /**
+     * Returns a policy that prepares the sessions of the most recent chats
+     *
+     * @param chats the number of recent chats whose sessions are prepared
+     * @return a non-null policy
+     */
+    public static WarmupPolicy of(int chats) {
+        return new WarmupPolicy(chats, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Returns a policy that never prepares sessions in the background
+     *
+     * @return a non-null policy
+     */
+    public static WarmupPolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy prepares sessions
+     *
+     * @return a boolean
+     */
+    public boolean enabled() {
+        return chats > 0;
+    }
+}
@@ -76,6 +76,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.*;
@@ -241,6 +242,25 @@ public class Whatsapp {
         return socketHandler.store();
     }
 
+    /**
+     * Returns a snapshot of the outbound traffic of this session for each class
+     *
+     * @return a non-null unmodifiable map
+     */
+    public Map<TrafficClass, TrafficMetrics> trafficMetrics() {
+        return socketHandler.trafficMetrics();
+    }
+
+    /**
+     * Returns the distribution of the time spent in each stage of the messages sent by this session
+     * The timings of a single message are available through {@link MessageInfo#sendTrace()}
+     *
+     * @return a non-null snapshot
+     */
+    public SendMetrics sendMetrics() {
+        return socketHandler.sendMetrics();
+    }
+
     /**
      * Disconnects from Whatsapp Web's WebSocket if a previous connection exists
      *
@@ -445,19 +465,102 @@ public class Whatsapp {
      * @return a CompletableFuture
      */
     public CompletableFuture<MessageInfo> sendMessage(@NonNull ContactJidProvider chat, @NonNull MessageContainer message) {
+        return sendMessage(createMessageInfo(chat, message));
+    }
+
+    private MessageInfo createMessageInfo(ContactJidProvider chat, MessageContainer message) {
         var key = MessageKey.builder()
                 .chatJid(chat.toJid())
                 .fromMe(true)
                 .senderJid(store().jid())
                 .build();
-        var info = MessageInfo.builder()
+        return MessageInfo.builder()
                 .senderJid(store().jid())
                 .key(key)
                 .message(message)
                 .timestampSeconds(Clock.nowSeconds())
                 .broadcast(chat.toJid().hasServer(Server.BROADCAST))
                 .build();
-        return sendMessage(info);
+    }
+
+    /**
+     * Sends the same message to many chats
+     *
+     * @param recipients the non-null chats where the message should be sent
+     * @param message    the non-null message to send
+     * @return a non-null result that tracks the message sent to each chat
+     */
+    public BulkSendResult sendMessages(@NonNull Collection<? extends ContactJidProvider> recipients, @NonNull MessageContainer message) {
+        var jids = recipients.stream()
+                .map(ContactJidProvider::toJid)
+                .toList();
+        return sendMessages(BulkSendRequest.of(jids, message));
+    }
+
+    /**
+     * Sends the same message to many chats
+     * The content of the message, for example its media, is processed once for all the chats.
+     * The devices and the missing sessions of all the conversations are queried in batches before any message is encrypted,
+     * then messages are encrypted in parallel and sent without waiting for the previous ones to be acknowledged, respecting the rate of the request.
+     * Messages to groups are sent like {@link Whatsapp#sendMessage(MessageInfo)} does.
+     *
+     * @param request the non-null request to send
+     * @return a non-null result that tracks the message sent to each chat
+     */
+    public BulkSendResult sendMessages(@NonNull BulkSendRequest request) {
+        var recipients = new LinkedHashMap<ContactJid, MessageInfo>();
+        request.recipients()
+                .forEach(recipient -> recipients.computeIfAbsent(recipient, ignored -> createMessageInfo(recipient, request.message())));
+        var infos = List.copyOf(recipients.values());
+        var results = new LinkedHashMap<ContactJid, CompletableFuture<MessageInfo>>();
+        if (infos.isEmpty()) {
+            return new BulkSendResult(results);
+        }
+
+        infos.forEach(store()::attribute);
+        var requests = infos.stream()
+                .map(MessageSendRequest::of)
+                .toList();
+        var futures = attributeMessageMetadata(infos.get(0)).thenApplyAsync(ignored -> {
+            infos.stream().skip(1).forEach(this::attributeMessageKey);
+            return socketHandler.sendMessages(requests, request);
+        });
+        for (var index = 0; index < infos.size(); index++) {
+            var info = infos.get(index);
+            var position = index;
+            var result = futures.thenComposeAsync(entries -> entries.get(position))
+                    .thenApplyAsync(ignored -> info);
+            results.put(info.chatJid(), result);
+        }
+        return new BulkSendResult(results);
+    }
+
+    /**
+     * Prepares the devices and signal sessions of chats ahead of time, for example before a scheduled campaign
+     * Groups are resolved to their participants, and the devices of all the users are queried in batches of a hundred
+     *
+     * @param chats the non-null chats whose sessions should be prepared
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<Void> prewarmSessions(@NonNull Collection<? extends ContactJidProvider> chats) {
+        return prewarmSessions(chats, 100);
+    }
+
+    /**
+     * Prepares the devices and signal sessions of chats ahead of time, for example before a scheduled campaign
+     * Groups are resolved to their participants, then the devices of all the users are queried in batches, followed by the sessions that are missing.
+     * Preparing a session consumes one of the pre keys of the recipient, so only chats that are going to receive a message should be prepared.
+     *
+     * @param chats     the non-null chats whose sessions should be prepared
+     * @param batchSize the maximum number of users or devices queried by a single request
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<Void> prewarmSessions(@NonNull Collection<? extends ContactJidProvider> chats, int batchSize) {
+        Validate.isTrue(batchSize > 0, "Invalid batch size: %s", batchSize);
+        var jids = chats.stream()
+                .map(ContactJidProvider::toJid)
+                .toList();
+        return socketHandler.prewarmSessions(jids, batchSize);
     }
 
     /**
@@ -484,16 +587,14 @@ public class Whatsapp {
     }
 
     private CompletableFuture<Void> attributeMessageMetadata(MessageInfo info) {
-        info.key().chatJid(info.chatJid().toWhatsappJid());
-        info.key().senderJid(info.senderJid() == null ? null : info.senderJid().toWhatsappJid());
-        fixEphemeralMessage(info);
+        attributeMessageKey(info);
         var content = info.message().content();
         if (content instanceof MediaMessage mediaMessage) {
             return attributeMediaMessage(mediaMessage);
         } else if (content instanceof ButtonMessage buttonMessage) {
             return attributeButtonMessage(info, buttonMessage);
         } else if (content instanceof TextMessage textMessage) {
-            attributeTextMessage(textMessage);
+            return attributeTextMessage(textMessage);
         } else if (content instanceof PollCreationMessage pollCreationMessage) {
             attributePollCreationMessage(info, pollCreationMessage);
         } else if (content instanceof PollUpdateMessage pollUpdateMessage) {
@@ -505,6 +606,12 @@ public class Whatsapp {
         return CompletableFuture.completedFuture(null);
     }
 
+    private void attributeMessageKey(MessageInfo info) {
+        info.key().chatJid(info.chatJid().toWhatsappJid());
+        info.key().senderJid(info.senderJid() == null ? null : info.senderJid().toWhatsappJid());
+        fixEphemeralMessage(info);
+    }
+
     /**
      * Marks a chat as read.
      *
@@ -535,41 +642,34 @@ public class Whatsapp {
         info.message(info.message().unbox());
     }
 
-    private void attributeTextMessage(TextMessage textMessage) {
+    private CompletableFuture<Void> attributeTextMessage(TextMessage textMessage) {
         if (store().textPreviewSetting() == TextPreviewSetting.DISABLED) {
-            return;
-        }
-        var match = LinkPreview.createPreview(textMessage.text()).orElse(null);
-        if (match == null) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
-        var uri = match.result().uri().toString();
+        return LinkPreviews.createPreview(textMessage.text())
+                .thenAccept(match -> match.ifPresent(result -> attributeTextMessage(textMessage, result)));
+    }
+
+    private void attributeTextMessage(TextMessage textMessage, LinkPreviews.Match match) {
+        var preview = match.preview();
+        var uri = preview.result().uri().toString();
         if (store().textPreviewSetting() == TextPreviewSetting.ENABLED_WITH_INFERENCE && !match.text()
                 .equals(uri)) {
             textMessage.text(textMessage.text().replace(match.text(), uri));
         }
-        var imageUri = match.result()
-                .images()
-                .stream()
-                .reduce(this::compareDimensions)
-                .map(LinkPreviewMedia::uri)
-                .orElse(null);
-        var videoUri = match.result()
-                .videos()
-                .stream()
-                .reduce(this::compareDimensions)
-                .map(LinkPreviewMedia::uri)
-                .orElse(null);
         textMessage.matchedText(uri);
-        textMessage.canonicalUrl(Objects.requireNonNullElse(videoUri, match.result().uri()).toString());
-        textMessage.thumbnail(Medias.download(imageUri).orElse(null));
-        textMessage.description(match.result().siteDescription());
-        textMessage.title(match.result().title());
-        textMessage.previewType(videoUri != null ? TextMessagePreviewType.VIDEO : TextMessagePreviewType.NONE);
+        textMessage.canonicalUrl(Objects.requireNonNullElse(preview.video(), preview.result().uri()).toString());
+        textMessage.thumbnail(preview.thumbnail());
+        textMessage.description(preview.result().siteDescription());
+        textMessage.title(preview.result().title());
+        textMessage.previewType(preview.video() != null ? TextMessagePreviewType.VIDEO : TextMessagePreviewType.NONE);
     }
 
     private CompletableFuture<Void> attributeMediaMessage(MediaMessage mediaMessage) {
-        return Medias.upload(mediaMessage.decodedMedia().orElseThrow(), mediaMessage.mediaType().toAttachmentType(), store().mediaConnection())
+        var media = mediaMessage.decodedMedia().orElseThrow();
+        var type = mediaMessage.mediaType().toAttachmentType();
+        return store().uploadCache()
+                .upload(media, type, store().uploadCachePolicy(), () -> Medias.upload(media, type, store().mediaConnection()))
                 .thenAccept(upload -> attributeMediaMessage(mediaMessage, upload));
     }
 
@@ -723,7 +823,9 @@ public class Whatsapp {
         if (count > 0) {
             info.chat().unreadMessagesCount(count - 1);
         }
-        return CompletableFuture.completedFuture(info.status(MessageStatus.READ));
+        info.status(MessageStatus.READ);
+        store().markMessageChanged(info);
+        return CompletableFuture.completedFuture(info);
     }
 
     private void createEphemeralContext(Chat chat, ContextInfo contextInfo) {
@@ -793,7 +895,7 @@ public class Whatsapp {
     }
 
     /**
-     * Awaits for a single response to a message
+     * Awaits for a single response to a message for up to an hour
      *
      * @param info the non-null message whose response is pending
      * @return a non-null result
@@ -803,7 +905,7 @@ public class Whatsapp {
     }
 
     /**
-     * Awaits for a single response to a message
+     * Awaits for a single response to a message for up to an hour
      *
      * @param id the non-null id of message whose response is pending
      * @return a non-null result
@@ -812,6 +914,17 @@ public class Whatsapp {
         return store().addPendingReply(ReplyHandler.of(id));
     }
 
+    /**
+     * Awaits for a single response to a message
+     *
+     * @param id      the non-null id of message whose response is pending
+     * @param timeout the non-null time to wait for a response, after which the result fails with a {@link java.util.concurrent.TimeoutException}
+     * @return a non-null result
+     */
+    public CompletableFuture<MessageInfo> awaitReply(@NonNull String id, @NonNull Duration timeout) {
+        return store().addPendingReply(ReplyHandler.of(id), timeout);
+    }
+
     /**
      * Executes a query to determine whether a user has an account on Whatsapp
      *
@@ -1525,7 +1638,9 @@ public class Whatsapp {
             return CompletableFuture.completedFuture(info);
         }
         socketHandler.sendReceipt(info.chatJid(), info.senderJid(), List.of(info.id()), "played");
-        return CompletableFuture.completedFuture(info.status(MessageStatus.PLAYED));
+        info.status(MessageStatus.PLAYED);
+        store().markMessageChanged(info);
+        return CompletableFuture.completedFuture(info);
     }
 
     /**
@@ -1588,6 +1703,7 @@ public class Whatsapp {
         if(store().clientType() == ClientType.MOBILE){
             // TODO: Send notification to companions
             info.starred(star);
+            store().markMessageChanged(info);
             return CompletableFuture.completedFuture(info);
         }
 
@@ -1965,6 +2081,7 @@ public class Whatsapp {
         var mediaMessage = (MediaMessage) info.message().content();
         var result = mediaMessage.decodedMedia();
         if (result.isEmpty()) {
+            store().uploadCache().invalidate(mediaMessage.mediaEncryptedSha256());
             Validate.isTrue(!retried, "Media reupload failed");
             return requireMediaReupload(info).thenComposeAsync(entry -> downloadMedia(entry, true));
         }
@@ -2013,6 +2130,7 @@ public class Whatsapp {
         var mediaRetryNotificationData = AesGcm.decrypt(mediaIv, mediaPayload, retryKey, retryIdData);
         var mediaRetryNotification = Protobuf.readMessage(mediaRetryNotificationData, MediaRetryNotification.class);
         Validate.isTrue(mediaRetryNotification.directPath() != null, "Media retry upload failed: %s", mediaRetryNotification);
+        store().uploadCache().invalidate(mediaMessage.mediaEncryptedSha256());
         mediaMessage.mediaUrl(Medias.createMediaUrl(mediaRetryNotification.directPath()));
         mediaMessage.mediaDirectPath(mediaRetryNotification.directPath());
         return info;
@@ -0,0 +1,29 @@
+package it.auties.whatsapp.controller;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * The constants of this enumerated type describe the formats that {@link DefaultControllerSerializer} can use to serialize chats
+ */
+@AllArgsConstructor
+@Accessors(fluent = true)
+public enum ChatFormat {
+    /**
+     * Chats are serialized as gzipped smile, every field of a chat is serialized
+     */
+    SMILE(".smile"),
+
+    /**
+     * Chats are serialized as protobuf, compressed using the configured {@link it.auties.whatsapp.util.Compression}
+     * Only the fields of a chat that are part of its protobuf schema are serialized
+     */
+    PROTOBUF(".proto");
+
+    /**
+     * The suffix of the files that use this format
+     */
+    @Getter
+    private final String suffix;
+}
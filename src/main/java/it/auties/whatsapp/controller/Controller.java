@@ -11,6 +11,7 @@ import lombok.experimental.Accessors;
 import lombok.experimental.SuperBuilder;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This interface represents is implemented by all WhatsappWeb4J's controllers. It provides an easy
@@ -52,6 +53,12 @@ public abstract sealed class Controller<T extends Controller<T>> permits Store,
     @Default
     protected List<String> alias = new ArrayList<>();
 
+    /**
+     * The number of changes made to this controller since it was created
+     */
+    @JsonIgnore
+    private final AtomicLong changes = new AtomicLong();
+
     /**
      * Serializes this object
      *
@@ -64,6 +71,22 @@ public abstract sealed class Controller<T extends Controller<T>> permits Store,
      */
     public abstract void dispose();
 
+    /**
+     * Records a change to this controller, so that it's persisted by the next checkpoint
+     */
+    public void markChanged() {
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of changes made to this controller since it was created
+     *
+     * @return a non-negative number
+     */
+    public long changes() {
+        return changes.get();
+    }
+
     /**
      * Returns the serializer
      *
@@ -128,4 +128,18 @@ public interface ControllerSerializer {
     default CompletableFuture<Void> attributeStore(Store store) {
         return CompletableFuture.completedFuture(null);
     }
+
+    /**
+     * Commits the signal state of the keys that changed since the last call to a journal, if supported.
+     * This method is called every time the signal state changes, so it shouldn't block:
+     * implementations should collect the changes using {@link Keys#drainChanges()} in the background, committing concurrent changes together.
+     * By default, the changes are discarded as they are persisted by the next call to {@link ControllerSerializer#serializeKeys(Keys, boolean)}.
+     *
+     * @param keys the non-null keys that changed
+     * @return a future that completes when the changes are durable
+     */
+    default CompletableFuture<Void> journalKeys(@NonNull Keys keys) {
+        keys.drainChanges();
+        return CompletableFuture.completedFuture(null);
+    }
 }
\ No newline at end of file
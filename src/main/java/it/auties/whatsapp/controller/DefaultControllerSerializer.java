@@ -3,25 +3,32 @@ package it.auties.whatsapp.controller;
 import com.fasterxml.jackson.core.type.TypeReference;
 import it.auties.whatsapp.api.ClientType;
 import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.chat.ChatChanges;
 import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.info.MessageInfo;
 import it.auties.whatsapp.model.mobile.PhoneNumber;
+import it.auties.whatsapp.model.sync.HistorySyncMessage;
+import it.auties.whatsapp.util.Compression;
+import it.auties.whatsapp.util.Protobuf;
 import it.auties.whatsapp.util.Smile;
 import it.auties.whatsapp.util.Validate;
 import lombok.NonNull;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.lang.System.Logger;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -32,18 +39,34 @@ import static java.lang.System.Logger.Level.WARNING;
 /**
  * The default serializer
  * It uses smile to serialize all the data locally
- * The store and the keys are decoded synchronously, but the store's chat are decoded asynchronously to save time
+ * The store and the keys are decoded synchronously, while the store's chats are decoded from an index that doesn't include their messages:
+ * the messages of a chat are decoded when they are first accessed
+ * Only the chats that changed since the last serialization are written: new and updated messages are appended to a journal next to the chat's file,
+ * while any other change rewrites the chat's file and discards its journal
+ * Chats can also be serialized as protobuf, see {@link ChatFormat}: files written using the other format are still read and are migrated the next time the chat is written
+ * Files are streamed to a temporary file that atomically replaces them, and the files written by a serialization are synced together before they are replaced
  */
 public class DefaultControllerSerializer implements ControllerSerializer {
     private static final Path DEFAULT_DIRECTORY = Path.of(System.getProperty("user.home") + "/.whatsapp4j/");
     private static final String CHAT_PREFIX = "chat_";
+    private static final int MAX_JOURNAL_MESSAGES = 1000;
+    private static final String KEYS_FILE = "keys.smile";
+    private static final long MAX_KEYS_JOURNAL_SIZE = 4 * 1024 * 1024;
+    private static final String SEARCH_INDEX_FILE = "search.smile";
+    private static final String CHATS_INDEX_FILE = "chats.smile";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CORRUPTED_SUFFIX = ".corrupted";
     private static final ControllerSerializer DEFAULT_SERIALIZER = new DefaultControllerSerializer();
 
     private final Path baseDirectory;
+    private final ChatFormat chatFormat;
+    private final Compression compression;
     private final Logger logger;
     private final Map<UUID, CompletableFuture<Void>> attributeStoreSerializers;
-    private LinkedList<UUID> cachedUuids;
-    private LinkedList<PhoneNumber> cachedPhoneNumbers;
+    private final Map<UUID, KeysJournal> keysJournals;
+    private final Set<Path> legacyChatFiles;
+    private final Map<UUID, Set<ContactJid>> indexedChats;
+    private final Map<ClientType, SessionCatalog> catalogs;
 
     public static ControllerSerializer instance() {
         return DEFAULT_SERIALIZER;
@@ -62,9 +85,29 @@ public class DefaultControllerSerializer implements ControllerSerializer {
      * @param baseDirectory the non-null directory where data will be serialized
      */
     public DefaultControllerSerializer(@NonNull Path baseDirectory) {
+        this(baseDirectory, ChatFormat.SMILE, Compression.gzip());
+    }
+
+    /**
+     * Creates a provider using the specified path and chat format
+     *
+     * @param baseDirectory the non-null directory where data will be serialized
+     * @param chatFormat    the non-null format used to serialize chats
+     * @param compression   the non-null codec used to compress chats serialized as protobuf, registered if it's a custom codec
+     */
+    public DefaultControllerSerializer(@NonNull Path baseDirectory, @NonNull ChatFormat chatFormat, @NonNull Compression compression) {
         this.baseDirectory = baseDirectory;
+        this.chatFormat = chatFormat;
+        this.compression = compression;
+        if (!Compression.isBuiltIn(compression.id())) {
+            Compression.register(compression);
+        }
         this.logger = System.getLogger("DefaultSerializer");
         this.attributeStoreSerializers = new ConcurrentHashMap<>();
+        this.keysJournals = new ConcurrentHashMap<>();
+        this.legacyChatFiles = ConcurrentHashMap.newKeySet();
+        this.indexedChats = new ConcurrentHashMap<>();
+        this.catalogs = new ConcurrentHashMap<>();
         try {
             Files.createDirectories(baseDirectory);
             Validate.isTrue(Files.isDirectory(baseDirectory), "Expected a directory as base path: %s", baseDirectory);
@@ -75,147 +118,242 @@ public class DefaultControllerSerializer implements ControllerSerializer {
 
     @Override
     public LinkedList<UUID> listIds(@NonNull ClientType type) {
-        if (cachedUuids != null) {
-            return cachedUuids;
-        }
-
-        try (var walker = Files.walk(getHome(type), 1).sorted(Comparator.comparing(this::getLastModifiedTime))) {
-            return cachedUuids = walker.map(this::parsePathAsId)
-                    .flatMap(Optional::stream)
-                    .collect(Collectors.toCollection(LinkedList::new));
-        } catch (IOException exception) {
-            throw new UncheckedIOException("Cannot list known ids", exception);
-        }
+        return getCatalog(type).ids();
     }
 
     @Override
     public LinkedList<PhoneNumber> listPhoneNumbers(@NonNull ClientType type) {
-        if (cachedPhoneNumbers != null) {
-            return cachedPhoneNumbers;
-        }
+        return getCatalog(type).phoneNumbers();
+    }
 
-        try (var walker = Files.walk(getHome(type), 1).sorted(Comparator.comparing(this::getLastModifiedTime))) {
-            return cachedPhoneNumbers = walker.map(this::parsePathAsPhoneNumber)
-                    .flatMap(Optional::stream)
-                    .collect(Collectors.toCollection(LinkedList::new));
-        } catch (IOException exception) {
-            throw new UncheckedIOException("Cannot list known ids", exception);
-        }
+    private SessionCatalog getCatalog(ClientType type) {
+        return catalogs.computeIfAbsent(type, ignored -> SessionCatalog.of(getHome(type)));
     }
 
-    private FileTime getLastModifiedTime(Path path) {
-        try {
-            return Files.getLastModifiedTime(path);
-        } catch (IOException exception) {
-            return FileTime.fromMillis(0);
+    @Override
+    public void serializeKeys(Keys keys, boolean async) {
+        cacheMetadata(keys);
+        var path = getSessionFile(keys.clientType(), keys.uuid().toString(), KEYS_FILE);
+        var preferences = SmileFile.of(path);
+        preferences.write(keys, async);
+    }
+
+    /**
+     * Adds a controller to the session catalog or updates its phone number and aliases
+     *
+     * @param controller the non-null controller that is being serialized
+     */
+    protected void cacheMetadata(@NonNull Controller<?> controller) {
+        getCatalog(controller.clientType()).update(controller, false);
+    }
+
+    private <T extends Controller<T>> T markUsed(T controller) {
+        getCatalog(controller.clientType()).update(controller, true);
+        return controller;
+    }
+
+    @Override
+    public void serializeStore(Store store, boolean async) {
+        cacheMetadata(store);
+        var task = attributeStoreSerializers.get(store.uuid());
+        if (task != null && !task.isDone()) {
+            return;
+        }
+        var checkpoint = new Checkpoint();
+        var futures = new ArrayList<CompletableFuture<?>>();
+        futures.add(SmileFile.of(getSessionFile(store, "store.smile")).write(() -> store, checkpoint));
+        if(store.indexMessages()){
+            serializeSearchIndex(store, checkpoint).ifPresent(futures::add);
+        }
+        var chatsChanged = false;
+        for (var chat : store.chats()) {
+            var future = serializeChat(store, chat, checkpoint);
+            if (future.isPresent()) {
+                futures.add(future.get());
+                chatsChanged = true;
+            }
+        }
+        var indexOutdated = isChatsIndexOutdated(store, chatsChanged);
+        var result = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenRunAsync(() -> {
+            if (indexOutdated) {
+                serializeChatsIndex(store, checkpoint);
+            }
+            checkpoint.commit();
+        });
+        if (!async) {
+            result.join();
         }
     }
 
-    private Optional<UUID> parsePathAsId(Path file) {
-        try {
-            return Optional.of(UUID.fromString(file.getFileName().toString()));
-        } catch (IllegalArgumentException ignored) {
+    private Optional<CompletableFuture<Void>> serializeChat(Store store, Chat chat, Checkpoint checkpoint) {
+        var changes = chat.consumeChanges(MAX_JOURNAL_MESSAGES);
+        if (changes.isEmpty()) {
             return Optional.empty();
         }
+
+        var path = getSessionFile(store, "%s%s%s".formatted(CHAT_PREFIX, chat.jid().toString(), chatFormat.suffix()));
+        var preferences = SmileFile.of(path);
+        return Optional.of(CompletableFuture.runAsync(() -> serializeChat(preferences, chat, changes.get(), checkpoint)).exceptionallyAsync(throwable -> {
+            chat.markChanged();
+            logger.log(ERROR, "Cannot serialize chat %s".formatted(chat.jid()), throwable);
+            return null;
+        }));
     }
 
-    private Optional<PhoneNumber> parsePathAsPhoneNumber(Path file) {
-        try {
-            var longValue = Long.parseLong(file.getFileName().toString());
-            return PhoneNumber.ofNullable(longValue);
-        } catch (IllegalArgumentException ignored) {
+    // The index is only written if it changed, and it's copied before being written so that it can be modified concurrently.
+    // It's marked as changed again if it can't be written or committed.
+    private Optional<CompletableFuture<Void>> serializeSearchIndex(Store store, Checkpoint checkpoint) {
+        var searchIndex = store.searchIndex();
+        var snapshot = searchIndex.consumeChanges();
+        if (snapshot.isEmpty()) {
             return Optional.empty();
         }
+
+        var preferences = SmileFile.of(getSessionFile(store, SEARCH_INDEX_FILE));
+        checkpoint.onFailure(preferences.file(), searchIndex::markChanged);
+        return Optional.of(CompletableFuture.runAsync(() -> preferences.writeSync(snapshot::get, null, checkpoint)).exceptionallyAsync(throwable -> {
+            searchIndex.markChanged();
+            logger.log(ERROR, "Cannot serialize search index", throwable);
+            return null;
+        }));
     }
 
-    @Override
-    public void serializeKeys(Keys keys, boolean async) {
-        if (cachedUuids != null && !cachedUuids.contains(keys.uuid())) {
-            cachedUuids.add(keys.uuid());
+    private boolean isChatsIndexOutdated(Store store, boolean changed) {
+        var jids = store.chats()
+                .stream()
+                .map(Chat::jid)
+                .collect(Collectors.toUnmodifiableSet());
+        var oldJids = indexedChats.put(store.uuid(), jids);
+        return changed || !jids.equals(oldJids);
+    }
+
+    // The index is added to the checkpoint after the chats, so that it never references a chat whose file wasn't committed yet
+    private void serializeChatsIndex(Store store, Checkpoint checkpoint) {
+        try {
+            var preferences = SmileFile.of(getSessionFile(store, CHATS_INDEX_FILE));
+            preferences.writeSync(() -> captureChatsIndex(store), Chat.MetadataView.class, checkpoint);
+            checkpoint.onFailure(preferences.file(), () -> indexedChats.remove(store.uuid()));
+        } catch (Throwable throwable) {
+            indexedChats.remove(store.uuid());
+            logger.log(ERROR, "Cannot serialize chats index", throwable);
         }
+    }
 
-        var path = getSessionFile(keys.clientType(), keys.uuid().toString(), "keys.smile");
-        var preferences = SmileFile.of(path);
-        preferences.write(keys, async);
+    private List<Chat> captureChatsIndex(Store store) {
+        return store.chats()
+                .stream()
+                .map(Chat::metadataSnapshot)
+                .toList();
     }
 
-    @Override
-    public void serializeStore(Store store, boolean async) {
-        if (cachedUuids != null && !cachedUuids.contains(store.uuid())) {
-            cachedUuids.add(store.uuid());
+    // Journal records aren't synced when they are appended, but when the checkpoint is committed.
+    // Changes are consumed before they are written, so the chat is marked as changed again if the checkpoint can't be committed.
+    private void serializeChat(SmileFile preferences, Chat chat, ChatChanges changes, Checkpoint checkpoint) {
+        if (changes.snapshot()) {
+            if (chatFormat == ChatFormat.PROTOBUF) {
+                preferences.snapshotSync(chat::snapshot, this::encodeChat, checkpoint);
+            } else {
+                preferences.snapshotSync(chat::snapshot, (snapshot, output) -> SmileFile.encode(snapshot, null, output), checkpoint);
+            }
+            checkpoint.afterCommit(preferences.file(), () -> deleteLegacyChatFile(preferences.file()));
+            checkpoint.onFailure(preferences.file(), chat::markChanged);
+            return;
         }
 
-        var phoneNumber = store.phoneNumber().orElse(null);
-        if (cachedPhoneNumbers != null && !cachedPhoneNumbers.contains(phoneNumber)) {
-            cachedPhoneNumbers.add(phoneNumber);
+        var entry = new ChatJournalEntry(changes.timestampSeconds(), changes.unreadMessagesCount(), changes.messages());
+        preferences.appendSync(() -> Optional.of(entry), false);
+        checkpoint.sync(preferences.journal());
+        checkpoint.onFailure(preferences.journal(), chat::markChanged);
+    }
+
+    // The header is the id of the codec, so that chats can be read after the codec is changed
+    private void encodeChat(Chat chat, OutputStream output) throws IOException {
+        output.write(compression.id());
+        output.write(compression.compress(Protobuf.writeMessage(chat)));
+    }
+
+    // An unknown codec isn't a corruption: the chat is left untouched and the error is propagated, so that it isn't reset
+    private Optional<Chat> decodeChat(byte[] data) {
+        var codec = data[0] == compression.id() ? compression : Compression.of(data[0]);
+        try {
+            var decoded = codec.decompress(Arrays.copyOfRange(data, 1, data.length));
+            return Optional.of(Protobuf.readMessage(decoded, Chat.class));
+        } catch (RuntimeException exception) {
+            return Optional.empty();
         }
+    }
 
-        var task = attributeStoreSerializers.get(store.uuid());
-        if (task != null && !task.isDone()) {
+    private void deleteLegacyChatFile(Path file) {
+        var legacyFile = getLegacyChatFile(file);
+        if (!legacyChatFiles.remove(legacyFile)) {
             return;
         }
-        var path = getSessionFile(store, "store.smile");
-        var preferences = SmileFile.of(path);
-        preferences.write(store, async);
-        if(async){
-            store.chats().forEach(chat -> serializeChat(store, chat));
-            return;
+
+        try {
+            Files.deleteIfExists(legacyFile);
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot delete legacy chat file %s: %s".formatted(legacyFile, exception.getMessage()));
         }
+    }
 
-        var futures = store.chats()
-                .stream()
-                .map(chat -> serializeChat(store, chat))
-                .toArray(CompletableFuture[]::new);
-        CompletableFuture.allOf(futures).join();
+    private Path getLegacyChatFile(Path file) {
+        var legacyFormat = chatFormat == ChatFormat.SMILE ? ChatFormat.PROTOBUF : ChatFormat.SMILE;
+        return file.resolveSibling(getChatName(file) + legacyFormat.suffix());
     }
 
-    private CompletableFuture<Void> serializeChat(Store store, Chat chat) {
-        var path = getSessionFile(store, "%s%s.smile".formatted(CHAT_PREFIX, chat.jid().toString()));
-        var preferences = SmileFile.of(path);
-        return preferences.write(chat, true);
+    @Override
+    public CompletableFuture<Void> journalKeys(@NonNull Keys keys) {
+        return keysJournals.computeIfAbsent(keys.uuid(), ignored -> new KeysJournal())
+                .commit(keys);
     }
 
     @Override
     public Optional<Keys> deserializeKeys(@NonNull ClientType type, UUID id) {
-        return deserializeKeysFromId(type, id.toString());
+        return deserializeKeysFromId(type, id.toString())
+                .map(this::markUsed);
     }
 
     @Override
     public Optional<Keys> deserializeKeys(@NonNull ClientType type, String alias) {
-        var file = getSessionDirectory(type, alias);
-        if(Files.notExists(file)){
-            return Optional.empty();
-        }
-
-        try {
-            return deserializeKeysFromId(type, Files.readString(file));
-        }catch (IOException exception){
-            throw new UncheckedIOException("Cannot read %s".formatted(alias), exception);
-        }
+        return getCatalog(type).findByAlias(alias)
+                .flatMap(uuid -> deserializeKeys(type, uuid));
     }
 
     @Override
     public Optional<Keys> deserializeKeys(@NonNull ClientType type, long phoneNumber) {
-        var file = getSessionDirectory(type, String.valueOf(phoneNumber));
-        if(Files.notExists(file)){
-            return Optional.empty();
-        }
-
-        try {
-            return deserializeKeysFromId(type, Files.readString(file));
-        }catch (IOException exception){
-            throw new UncheckedIOException("Cannot read %s".formatted(phoneNumber), exception);
-        }
+        return getCatalog(type).findByPhoneNumber(phoneNumber)
+                .flatMap(uuid -> deserializeKeys(type, uuid));
     }
 
-    private Optional<Keys> deserializeKeysFromId(ClientType type, String id) {
-        var path = getSessionFile(type, id, "keys.smile");
+    /**
+     * Deserializes the keys of a session
+     *
+     * @param type the non-null type of client
+     * @param id   the non-null id of the session
+     * @return a non-null optional
+     */
+    protected Optional<Keys> deserializeKeysFromId(@NonNull ClientType type, @NonNull String id) {
+        var path = getSessionFile(type, id, KEYS_FILE);
         var preferences = SmileFile.of(path);
         var result = preferences.read(Keys.class);
-        result.ifPresent(entry -> entry.serializer(this));
+        result.ifPresent(entry -> {
+            entry.serializer(this);
+            replayJournal(preferences, entry);
+        });
         return result;
     }
 
+    // The journal is compacted right away so that it doesn't grow across restarts
+    private void replayJournal(SmileFile preferences, Keys keys) {
+        var journal = preferences.readJournal(KeysJournalEntry.class);
+        if (journal.isEmpty()) {
+            return;
+        }
+
+        journal.forEach(keys::applyChanges);
+        preferences.write(keys, true);
+    }
+
     @Override
     public Optional<Store> deserializeStore(@NonNull ClientType type, UUID id) {
         return deserializeStoreFromId(type, id.toString());
@@ -223,33 +361,24 @@ public class DefaultControllerSerializer implements ControllerSerializer {
 
     @Override
     public Optional<Store> deserializeStore(@NonNull ClientType type, String alias) {
-        var file = getSessionDirectory(type, alias);
-        if(Files.notExists(file)){
-            return Optional.empty();
-        }
-
-        try {
-            return deserializeStoreFromId(type, Files.readString(file));
-        }catch (IOException exception){
-            throw new UncheckedIOException("Cannot read %s".formatted(alias), exception);
-        }
+        return getCatalog(type).findByAlias(alias)
+                .flatMap(uuid -> deserializeStore(type, uuid));
     }
 
     @Override
     public Optional<Store> deserializeStore(@NonNull ClientType type, long phoneNumber) {
-        var file = getSessionDirectory(type, String.valueOf(phoneNumber));
-        if(Files.notExists(file)){
-            return Optional.empty();
-        }
-
-        try {
-            return deserializeStoreFromId(type, Files.readString(file));
-        }catch (IOException exception){
-            throw new UncheckedIOException("Cannot read %s".formatted(phoneNumber), exception);
-        }
+        return getCatalog(type).findByPhoneNumber(phoneNumber)
+                .flatMap(uuid -> deserializeStore(type, uuid));
     }
 
-    private Optional<Store> deserializeStoreFromId(ClientType type, String id) {
+    /**
+     * Deserializes the store of a session
+     *
+     * @param type the non-null type of client
+     * @param id   the non-null id of the session
+     * @return a non-null optional
+     */
+    protected Optional<Store> deserializeStoreFromId(@NonNull ClientType type, @NonNull String id) {
         var path = getSessionFile(type, id, "store.smile");
         var preferences = SmileFile.of(path);
         var store = preferences.read(Store.class);
@@ -267,11 +396,17 @@ public class DefaultControllerSerializer implements ControllerSerializer {
         if (Files.notExists(directory)) {
             return CompletableFuture.completedFuture(null);
         }
+        deleteTempChatFiles(directory);
         try (var walker = Files.walk(directory)) {
-            var futures = walker.filter(entry -> entry.getFileName().toString().startsWith(CHAT_PREFIX))
+            var files = walker.filter(this::isChatFile)
+                    .collect(Collectors.toMap(this::getChatName, Function.identity(), this::selectChatFile));
+            attributeIndexedChats(store, files);
+            var futures = files.values()
+                    .stream()
                     .map(entry -> CompletableFuture.runAsync(() -> deserializeChat(store, entry)))
                     .toArray(CompletableFuture[]::new);
-            var result = CompletableFuture.allOf(futures);
+            var result = CompletableFuture.allOf(futures)
+                    .thenRunAsync(() -> deserializeSearchIndex(store));
             attributeStoreSerializers.put(store.uuid(), result);
             return result;
         } catch (IOException exception) {
@@ -279,33 +414,108 @@ public class DefaultControllerSerializer implements ControllerSerializer {
         }
     }
 
+    // Chats that are not in the index, for example because the index wasn't written yet, are decoded eagerly.
+    // The journal of an indexed chat is read eagerly, as it's small, so that the metadata it recorded is applied before the chat is used.
+    private void attributeIndexedChats(Store store, Map<String, Path> files) {
+        var index = SmileFile.of(getSessionFile(store, CHATS_INDEX_FILE))
+                .read(new TypeReference<List<Chat>>() {});
+        if (index.isEmpty()) {
+            return;
+        }
+
+        for (var chat : index.get()) {
+            var file = files.remove(CHAT_PREFIX + chat.jid());
+            if (file != null) {
+                var journal = SmileFile.of(file).readJournal(ChatJournalEntry.class);
+                applyJournalMetadata(chat, journal);
+                chat.messagesLoader(() -> loadMessages(store, chat, file, journal));
+                if (file.getFileName().toString().endsWith(chatFormat.suffix())) {
+                    chat.markPersisted();
+                } else {
+                    legacyChatFiles.add(file);
+                }
+            }
+
+            store.addChatDirect(chat);
+        }
+
+        indexedChats.put(store.uuid(), index.get().stream().map(Chat::jid).collect(Collectors.toUnmodifiableSet()));
+    }
+
+    // If the chat had a journal, it's marked as changed so that the next serialization compacts it
+    private Collection<HistorySyncMessage> loadMessages(Store store, Chat chat, Path file, List<ChatJournalEntry> journal) {
+        var preferences = SmileFile.of(file);
+        var storedChat = readChat(preferences);
+        if (storedChat.isEmpty()) {
+            logger.log(ERROR, "Messages of chat %s are corrupted, resetting them".formatted(chat.jid()));
+            chat.markChanged();
+            return List.of();
+        }
+
+        var messages = storedChat.get().messages();
+        if (!journal.isEmpty()) {
+            messages = mergeJournal(messages, journal);
+            chat.markChanged();
+        }
+
+        messages.forEach(message -> store.scheduleExpiration(message.messageInfo()));
+        return messages;
+    }
+
+    // Temporary files are left behind if the process was killed before their checkpoint was committed
+    private void deleteTempChatFiles(Path directory) {
+        try (var walker = Files.list(directory)) {
+            walker.filter(entry -> entry.getFileName().toString().startsWith(CHAT_PREFIX))
+                    .filter(entry -> entry.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    .forEach(this::deleteTempChatFile);
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot list temporary files in %s: %s".formatted(directory, exception.getMessage()));
+        }
+    }
+
+    private void deleteTempChatFile(Path entry) {
+        try {
+            Files.deleteIfExists(entry);
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot delete temporary file %s: %s".formatted(entry, exception.getMessage()));
+        }
+    }
+
+    private boolean isChatFile(Path entry) {
+        var name = entry.getFileName().toString();
+        return name.startsWith(CHAT_PREFIX)
+                && (name.endsWith(ChatFormat.SMILE.suffix()) || name.endsWith(ChatFormat.PROTOBUF.suffix()));
+    }
+
+    private String getChatName(Path entry) {
+        var name = entry.getFileName().toString();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    // If the process was killed while a chat was being migrated, both files exist: the one in the current format is the most recent
+    private Path selectChatFile(Path first, Path second) {
+        var result = first.getFileName().toString().endsWith(chatFormat.suffix()) ? first : second;
+        legacyChatFiles.add(result == first ? second : first);
+        return result;
+    }
+
     @Override
     public void deleteSession(@NonNull Controller<?> controller) {
+        getCatalog(controller.clientType()).remove(controller.uuid());
         var folderPath = getSessionDirectory(controller.clientType(), controller.uuid().toString());
         deleteDirectory(folderPath.toFile());
         var phoneNumber = controller.phoneNumber().orElse(null);
         if(phoneNumber == null){
             return;
         }
-        var linkedFolderPath = getSessionDirectory(controller.clientType(), phoneNumber.toString());
-        deleteDirectory(linkedFolderPath.toFile());
+        // Phone numbers used to be linked to their session by a file in the home directory
+        var linkFile = getHome(controller.clientType()).resolve(phoneNumber.toString());
+        deleteDirectory(linkFile.toFile());
     }
 
     @Override
     public void linkMetadata(@NonNull Controller<?> controller) {
-        controller.phoneNumber()
-                .ifPresent(phoneNumber -> linkToUuid(controller.clientType(), controller.uuid(), phoneNumber.toString()));
-        controller.alias()
-                .forEach(alias -> linkToUuid(controller.clientType(), controller.uuid(), alias));
-    }
-
-    private void linkToUuid(ClientType type, UUID uuid, String string) {
-        try {
-            var link = getSessionDirectory(type, string);
-            Files.writeString(link, uuid.toString(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-        }catch (IOException exception){
-            logger.log(WARNING, "Cannot link %s to %s".formatted(string, uuid), exception);
-        }
+        getCatalog(controller.clientType()).update(controller, false);
     }
 
     // Not using Java NIO api because of a bug
@@ -340,20 +550,88 @@ public class DefaultControllerSerializer implements ControllerSerializer {
 
     private void deserializeChat(Store baseStore, Path entry) {
         var chatPreferences = SmileFile.of(entry);
-        var chat = chatPreferences.read(Chat.class)
+        var legacy = !entry.getFileName().toString().endsWith(chatFormat.suffix());
+        var chat = readChat(chatPreferences)
                 .orElseGet(() -> fixChat(entry));
+        var journal = chatPreferences.readJournal(ChatJournalEntry.class);
+        if (!journal.isEmpty()) {
+            replayJournal(chat, journal);
+        } else if (legacy) {
+            legacyChatFiles.add(entry);
+        } else {
+            chat.markPersisted();
+        }
         baseStore.addChatDirect(chat);
     }
 
+    private Optional<Chat> readChat(SmileFile preferences) {
+        var protobuf = preferences.file().getFileName().toString().endsWith(ChatFormat.PROTOBUF.suffix());
+        if (!protobuf) {
+            return preferences.read(Chat.class);
+        }
+
+        return preferences.readBytes()
+                .filter(data -> data.length > 0)
+                .flatMap(this::decodeChat);
+    }
+
+    // The chat isn't marked as persisted so that the next serialization compacts the journal
+    private void replayJournal(Chat chat, List<ChatJournalEntry> journal) {
+        var messages = mergeJournal(chat.messages(), journal);
+        chat.removeMessages();
+        chat.addMessages(messages);
+        applyJournalMetadata(chat, journal);
+    }
+
+    private void applyJournalMetadata(Chat chat, List<ChatJournalEntry> journal) {
+        if (journal.isEmpty()) {
+            return;
+        }
+
+        var lastEntry = journal.get(journal.size() - 1);
+        chat.timestampSeconds(lastEntry.timestampSeconds());
+        chat.unreadMessagesCount(lastEntry.unreadMessagesCount());
+    }
+
+    private Collection<HistorySyncMessage> mergeJournal(Collection<HistorySyncMessage> messages, List<ChatJournalEntry> journal) {
+        var results = new LinkedHashMap<String, HistorySyncMessage>();
+        messages.forEach(message -> results.put(message.messageInfo().id(), message));
+        for (var entry : journal) {
+            for (var message : entry.messages()) {
+                var known = results.get(message.id());
+                var orderId = known != null ? known.messageOrderId() : results.size();
+                results.put(message.id(), new HistorySyncMessage(message, orderId));
+            }
+        }
+        return results.values();
+    }
+
+    // If the index is missing, the messages of every chat are indexed when it's first searched, so that they aren't loaded right away
+    private void deserializeSearchIndex(Store store) {
+        if (!store.indexMessages()) {
+            return;
+        }
+
+        var index = SmileFile.of(getSessionFile(store, SEARCH_INDEX_FILE))
+                .read(MessageSearchIndex.class);
+        if (index.isPresent()) {
+            store.searchIndex(index.get());
+            return;
+        }
+
+        store.searchIndex()
+                .addPendingChats(store.chats().stream().map(Chat::jid).toList());
+    }
+
     private Chat fixChat(Path entry) {
-        var chatName = entry.getFileName().toString()
-                .replaceFirst(CHAT_PREFIX, "")
-                .replace(".smile", "");
+        var chatName = getChatName(entry)
+                .replaceFirst(CHAT_PREFIX, "");
         logger.log(ERROR, "Chat at %s is corrupted, resetting it".formatted(chatName));
         try {
-            Files.deleteIfExists(entry);
-        } catch (IOException deleteException) {
-            logger.log(WARNING, "Cannot delete chat file");
+            var corrupted = entry.resolveSibling("%s%s".formatted(entry.getFileName(), CORRUPTED_SUFFIX));
+            Files.move(entry, corrupted, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException moveException) {
+            logger.log(WARNING, "Cannot move corrupted chat file");
         }
         return Chat.ofJid(ContactJid.of(chatName));
     }
@@ -371,7 +649,14 @@ public class DefaultControllerSerializer implements ControllerSerializer {
         return directory;
     }
 
-    private Path getSessionDirectory(ClientType clientType, String uuid) {
+    /**
+     * Returns the directory of a session
+     *
+     * @param clientType the non-null type of client
+     * @param uuid       the non-null id of the session
+     * @return a non-null path
+     */
+    protected Path getSessionDirectory(@NonNull ClientType clientType, @NonNull String uuid) {
         return getHome(clientType).resolve(uuid);
     }
 
@@ -383,8 +668,69 @@ public class DefaultControllerSerializer implements ControllerSerializer {
         return getSessionDirectory(clientType, uuid).resolve(fileName);
     }
 
-    // TODO: Explore alternatives
-    private record SmileFile(Path file, Semaphore semaphore) {
+    // Group commit: the changes made while a commit is waiting for the lock are committed, and synced, together
+    private final class KeysJournal {
+        private CompletableFuture<Void> pending;
+
+        private synchronized CompletableFuture<Void> commit(Keys keys) {
+            if (pending != null) {
+                return pending;
+            }
+
+            var result = new CompletableFuture<Void>();
+            this.pending = result;
+            CompletableFuture.runAsync(() -> flush(keys));
+            return result;
+        }
+
+        private void flush(Keys keys) {
+            CompletableFuture<Void> result;
+            synchronized (this) {
+                result = pending;
+                this.pending = null;
+            }
+
+            var preferences = SmileFile.of(getSessionFile(keys.clientType(), keys.uuid().toString(), KEYS_FILE));
+            long size;
+            try {
+                size = preferences.appendSync(keys::drainChanges, true);
+            } catch (Throwable throwable) {
+                logger.log(ERROR, "Cannot commit keys journal, falling back to a snapshot", throwable);
+                snapshot(preferences, keys, result);
+                return;
+            }
+
+            result.complete(null);
+            if (size <= MAX_KEYS_JOURNAL_SIZE) {
+                return;
+            }
+
+            try {
+                preferences.writeSync(keys);
+            } catch (Throwable throwable) {
+                logger.log(ERROR, "Cannot compact keys journal", throwable);
+            }
+        }
+
+        // The drained changes are only durable if the snapshot is committed, otherwise the sends that are waiting for them must fail
+        private void snapshot(SmileFile preferences, Keys keys, CompletableFuture<Void> result) {
+            try {
+                preferences.writeSync(keys);
+                result.complete(null);
+            } catch (Throwable throwable) {
+                logger.log(ERROR, "Cannot serialize keys", throwable);
+                result.completeExceptionally(throwable);
+            }
+        }
+    }
+
+    private record ChatJournalEntry(long timestampSeconds, int unreadMessagesCount, List<MessageInfo> messages) {
+        private ChatJournalEntry {
+            messages = Objects.requireNonNullElseGet(messages, List::of);
+        }
+    }
+
+    private record SmileFile(Path file, Semaphore semaphore, Snapshots snapshots) {
         private final static ConcurrentHashMap<Path, SmileFile> instances = new ConcurrentHashMap<>();
         private static final Logger logger = System.getLogger("SmileFile");
 
@@ -402,7 +748,7 @@ public class DefaultControllerSerializer implements ControllerSerializer {
                 return knownInstance;
             }
 
-            var instance = new SmileFile(file, new Semaphore(1));
+            var instance = new SmileFile(file, new Semaphore(1), new Snapshots());
             instances.put(file, instance);
             return instance;
         }
@@ -416,6 +762,17 @@ public class DefaultControllerSerializer implements ControllerSerializer {
             });
         }
 
+        private Optional<byte[]> readBytes() {
+            if (Files.notExists(file)) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(Files.readAllBytes(file));
+            } catch (IOException exception) {
+                return Optional.empty();
+            }
+        }
+
         private <T> Optional<T> read(TypeReference<T> reference) {
             if (Files.notExists(file)) {
                 return Optional.empty();
@@ -427,6 +784,76 @@ public class DefaultControllerSerializer implements ControllerSerializer {
             }
         }
 
+        // Each journal record is the length of the record followed by the gzipped smile value
+        private <T> List<T> readJournal(Class<T> clazz) {
+            var journal = journal();
+            if (Files.notExists(journal)) {
+                return List.of();
+            }
+            var results = new ArrayList<T>();
+            try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+                while (true) {
+                    var length = input.readInt();
+                    var record = input.readNBytes(length);
+                    if (record.length != length) {
+                        break;
+                    }
+
+                    try (var recordInput = new GZIPInputStream(new ByteArrayInputStream(record))) {
+                        results.add(Smile.readValue(recordInput, clazz));
+                    }
+                }
+            } catch (EOFException ignored) {
+                // A record can be incomplete if the process was killed while it was being appended
+            } catch (IOException exception) {
+                logger.log(WARNING, "Cannot read journal %s: %s".formatted(journal, exception.getMessage()));
+            }
+            return results;
+        }
+
+        private Path journal() {
+            var name = file.getFileName().toString();
+            var extension = name.lastIndexOf('.');
+            return file.resolveSibling("%s.journal".formatted(extension == -1 ? name : name.substring(0, extension)));
+        }
+
+        // The supplier is invoked while holding the lock, so records are appended in the same order they are created
+        private long appendSync(Supplier<? extends Optional<?>> supplier, boolean force) {
+            try {
+                semaphore.acquire();
+                var input = supplier.get();
+                if (input.isEmpty()) {
+                    return Files.exists(journal()) ? Files.size(journal()) : 0;
+                }
+
+                try (var byteArrayOutputStream = new ByteArrayOutputStream()) {
+                    try (var stream = new GZIPOutputStream(byteArrayOutputStream)) {
+                        Smile.writeValueAsBytes(stream, input.get());
+                    }
+                    var record = byteArrayOutputStream.toByteArray();
+                    try (var channel = FileChannel.open(journal(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        var buffer = ByteBuffer.allocate(Integer.BYTES + record.length)
+                                .putInt(record.length)
+                                .put(record)
+                                .flip();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        if (force) {
+                            channel.force(false);
+                        }
+                        return channel.size();
+                    }
+                }
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot complete journal write", exception);
+            } catch (InterruptedException exception) {
+                throw new RuntimeException("Cannot acquire lock", exception);
+            } finally {
+                semaphore.release();
+            }
+        }
+
         private CompletableFuture<Void> write(Object input, boolean async) {
             if (!async) {
                 writeSync(input);
@@ -439,25 +866,264 @@ public class DefaultControllerSerializer implements ControllerSerializer {
             });
         }
 
+        private CompletableFuture<Void> write(Supplier<?> capture, Checkpoint checkpoint) {
+            return CompletableFuture.runAsync(() -> writeSync(capture, null, checkpoint)).exceptionallyAsync(throwable -> {
+                logger.log(ERROR, "Cannot serialize smile file", throwable);
+                return null;
+            });
+        }
+
         private void writeSync(Object input) {
+            if (input == null) {
+                return;
+            }
+
+            var checkpoint = new Checkpoint();
+            writeSync(() -> input, null, checkpoint);
+            if (!checkpoint.commit()) {
+                throw new UncheckedIOException(new IOException("Cannot commit %s".formatted(file)));
+            }
+        }
+
+        // The capture returns a copy, or a value whose collections can be iterated concurrently, so that only capturing it happens while holding the lock:
+        // a value that is encoded after the capture can only be more recent than the journal offset, and the records after the offset are replayed on top of it
+        private void writeSync(Supplier<?> capture, Class<?> view, Checkpoint checkpoint) {
+            snapshotSync(capture, (value, output) -> encode(value, view, output), checkpoint);
+        }
+
+        // The value is gzipped while it's encoded, so the encoded value is never buffered as a whole
+        private static void encode(Object input, Class<?> view, OutputStream output) throws IOException {
+            try (var stream = new GZIPOutputStream(output, 8192)) {
+                if (view == null) {
+                    Smile.writeValueAsBytes(stream, input);
+                } else {
+                    Smile.writeValueAsBytes(stream, input, view);
+                }
+            }
+        }
+
+        // The value is captured while holding the lock, so that the records appended to the journal before the capture can be discarded,
+        // then it's streamed to a temporary file without holding it: the temporary file replaces the file when the checkpoint is committed.
+        // Snapshots that are committed after a more recent one are discarded.
+        private <T> void snapshotSync(Supplier<T> capture, Encoder<T> encoder, Checkpoint checkpoint) {
+            T value;
+            long generation;
+            long journalOffset;
+            acquire();
             try {
-                if (input == null) {
+                value = capture.get();
+                generation = ++snapshots.captured;
+                journalOffset = snapshots.journalBase + journalSize();
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot read journal size", exception);
+            } finally {
+                semaphore.release();
+            }
+
+            var temp = file.resolveSibling("%s.%s%s".formatted(file.getFileName(), generation, TEMP_SUFFIX));
+            try (var output = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                encoder.encode(value, output);
+            } catch (IOException exception) {
+                deleteTemp(temp);
+                throw new UncheckedIOException("Cannot complete file write", exception);
+            } catch (Throwable throwable) {
+                deleteTemp(temp);
+                throw throwable;
+            }
+
+            checkpoint.add(new PendingSnapshot(this, temp, generation, journalOffset));
+        }
+
+        private void commit(PendingSnapshot snapshot) throws IOException {
+            acquire();
+            try {
+                if (snapshot.generation() <= snapshots.committed) {
                     return;
                 }
 
+                Files.move(snapshot.temp(), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                snapshots.committed = snapshot.generation();
+                trimJournal(snapshot.journalOffset());
+            } finally {
+                semaphore.release();
+            }
+        }
+
+        private void acquire() {
+            try {
                 semaphore.acquire();
-                try(var byteArrayOutputStream = new ByteArrayOutputStream()) {
-                    try (var stream = new GZIPOutputStream(byteArrayOutputStream)) {
-                        Smile.writeValueAsBytes(stream, input);
-                        Files.write(file, byteArrayOutputStream.toByteArray());
-                    }
-                }
-            } catch (IOException exception) {
-                throw new UncheckedIOException("Cannot complete file write", exception);
             } catch (InterruptedException exception) {
                 throw new RuntimeException("Cannot acquire lock", exception);
-            } finally {
-                semaphore.release();
+            }
+        }
+
+        private long journalSize() throws IOException {
+            var journal = journal();
+            return Files.exists(journal) ? Files.size(journal) : 0;
+        }
+
+        // Offsets are relative to the first record that was ever appended, so that they stay valid after the journal is trimmed
+        private void trimJournal(long offset) throws IOException {
+            var length = offset - snapshots.journalBase;
+            var journal = journal();
+            var size = journalSize();
+            snapshots.journalBase = offset;
+            if (size <= length) {
+                Files.deleteIfExists(journal);
+                return;
+            }
+
+            var temp = journal.resolveSibling("%s%s".formatted(journal.getFileName(), TEMP_SUFFIX));
+            try (var input = FileChannel.open(journal, StandardOpenOption.READ);
+                 var output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                var position = length;
+                while (position < size) {
+                    position += input.transferTo(position, size - position, output);
+                }
+                output.force(false);
+            }
+            Files.move(temp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void deleteTemp(Path temp) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException exception) {
+                logger.log(WARNING, "Cannot delete temporary file %s: %s".formatted(temp, exception.getMessage()));
+            }
+        }
+    }
+
+    // Guarded by the lock of the smile file
+    private static final class Snapshots {
+        private long captured;
+        private long committed;
+        private long journalBase;
+    }
+
+    private record PendingSnapshot(SmileFile file, Path temp, long generation, long journalOffset) {
+
+    }
+
+    @FunctionalInterface
+    private interface Encoder<T> {
+        void encode(T value, OutputStream output) throws IOException;
+    }
+
+    // A group of writes that are made durable together: the temporary files and the journals are synced first,
+    // then every temporary file replaces its file and finally each directory is synced once, instead of syncing every file as soon as it's written
+    private static final class Checkpoint {
+        private static final Logger logger = System.getLogger("Checkpoint");
+
+        private final List<PendingSnapshot> snapshots;
+        private final Set<Path> journals;
+        private final Map<Path, Runnable> callbacks;
+        private final Map<Path, Runnable> failureCallbacks;
+
+        private Checkpoint() {
+            this.snapshots = new ArrayList<>();
+            this.journals = new LinkedHashSet<>();
+            this.callbacks = new HashMap<>();
+            this.failureCallbacks = new HashMap<>();
+        }
+
+        private synchronized void add(PendingSnapshot snapshot) {
+            snapshots.add(snapshot);
+        }
+
+        private synchronized void sync(Path journal) {
+            journals.add(journal);
+        }
+
+        // The callback is only invoked if the snapshot of the file is committed
+        private synchronized void afterCommit(Path file, Runnable callback) {
+            callbacks.put(file, callback);
+        }
+
+        // The callback is only invoked if the snapshot of the file, or the journal, can't be synced or committed
+        private synchronized void onFailure(Path file, Runnable callback) {
+            failureCallbacks.put(file, callback);
+        }
+
+        // Snapshots are committed in the order they were added, returns whether every snapshot and journal was committed
+        private boolean commit() {
+            List<PendingSnapshot> snapshots;
+            List<Path> journals;
+            Map<Path, Runnable> callbacks;
+            Map<Path, Runnable> failureCallbacks;
+            synchronized (this) {
+                snapshots = List.copyOf(this.snapshots);
+                journals = List.copyOf(this.journals);
+                callbacks = Map.copyOf(this.callbacks);
+                failureCallbacks = Map.copyOf(this.failureCallbacks);
+                this.snapshots.clear();
+                this.journals.clear();
+                this.callbacks.clear();
+                this.failureCallbacks.clear();
+            }
+
+            var failed = new ArrayList<Path>();
+            var synced = new ArrayList<PendingSnapshot>();
+            for (var snapshot : snapshots) {
+                try {
+                    force(snapshot.temp());
+                    synced.add(snapshot);
+                } catch (IOException exception) {
+                    logger.log(ERROR, "Cannot sync %s".formatted(snapshot.temp()), exception);
+                    snapshot.file().deleteTemp(snapshot.temp());
+                    failed.add(snapshot.file().file());
+                }
+            }
+            for (var journal : journals) {
+                try {
+                    force(journal);
+                } catch (NoSuchFileException ignored) {
+                    // The journal was discarded by a snapshot
+                } catch (IOException exception) {
+                    logger.log(WARNING, "Cannot sync %s: %s".formatted(journal, exception.getMessage()));
+                    failed.add(journal);
+                }
+            }
+
+            var directories = new LinkedHashSet<Path>();
+            var committed = new ArrayList<Path>();
+            for (var snapshot : synced) {
+                try {
+                    snapshot.file().commit(snapshot);
+                    directories.add(snapshot.temp().getParent());
+                    committed.add(snapshot.file().file());
+                } catch (IOException exception) {
+                    logger.log(ERROR, "Cannot commit %s".formatted(snapshot.file().file()), exception);
+                    failed.add(snapshot.file().file());
+                } finally {
+                    snapshot.file().deleteTemp(snapshot.temp());
+                }
+            }
+            journals.forEach(journal -> directories.add(journal.getParent()));
+            directories.forEach(this::forceDirectory);
+            committed.stream()
+                    .map(callbacks::get)
+                    .filter(Objects::nonNull)
+                    .forEach(Runnable::run);
+            failed.stream()
+                    .map(failureCallbacks::get)
+                    .filter(Objects::nonNull)
+                    .forEach(Runnable::run);
+            return failed.isEmpty();
+        }
+
+        private void force(Path file) throws IOException {
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+
+        // Renames are only durable once their directory is synced, which isn't supported on every platform
+        private void forceDirectory(Path directory) {
+            try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException ignored) {
+
             }
         }
     }
@@ -0,0 +1,710 @@
+package it.auties.whatsapp.controller;
+
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.contact.Contact;
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.contact.ContactJidProvider;
+import it.auties.whatsapp.model.info.MessageInfo;
+import it.auties.whatsapp.model.mobile.PhoneNumber;
+import it.auties.whatsapp.model.sync.HistorySyncMessage;
+import it.auties.whatsapp.util.Smile;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.System.Logger.Level.ERROR;
+
+/**
+ * A serializer that stores sessions in a database using JDBC, for example an embedded H2 or SQLite database backed by a local file
+ * The JDBC driver of the database must be on the classpath
+ * Chats, messages and contacts are stored in their own tables, so they can be queried using SQL: messages are indexed by chat, timestamp and sender.
+ * The chats of a store are decoded without their messages, which are decoded when they are first accessed.
+ * The keys and the store, without its contacts, are stored as smile, while the changes to the signal state are appended to a journal table.
+ * All the statements are executed in transactions on a single connection and prepared statements are reused.
+ */
+public class JdbcControllerSerializer implements ControllerSerializer {
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int MAX_JOURNAL_MESSAGES = 1000;
+    private static final List<String> SCHEMA = List.of(
+            "CREATE TABLE IF NOT EXISTS sessions (uuid VARCHAR(36) NOT NULL, client_type VARCHAR(16) NOT NULL, phone_number BIGINT, last_used BIGINT NOT NULL, PRIMARY KEY (uuid))",
+            "CREATE TABLE IF NOT EXISTS session_aliases (client_type VARCHAR(16) NOT NULL, alias VARCHAR(255) NOT NULL, uuid VARCHAR(36) NOT NULL, PRIMARY KEY (client_type, alias))",
+            "CREATE TABLE IF NOT EXISTS session_keys (uuid VARCHAR(36) NOT NULL, data BLOB NOT NULL, PRIMARY KEY (uuid))",
+            "CREATE TABLE IF NOT EXISTS keys_journal (uuid VARCHAR(36) NOT NULL, sequence BIGINT NOT NULL, data BLOB NOT NULL, PRIMARY KEY (uuid, sequence))",
+            "CREATE TABLE IF NOT EXISTS stores (uuid VARCHAR(36) NOT NULL, data BLOB NOT NULL, search_index BLOB, PRIMARY KEY (uuid))",
+            "CREATE TABLE IF NOT EXISTS chats (uuid VARCHAR(36) NOT NULL, jid VARCHAR(255) NOT NULL, name VARCHAR(255), timestamp_seconds BIGINT NOT NULL, unread_messages INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY (uuid, jid))",
+            "CREATE TABLE IF NOT EXISTS messages (uuid VARCHAR(36) NOT NULL, chat_jid VARCHAR(255) NOT NULL, id VARCHAR(255) NOT NULL, sender_jid VARCHAR(255), timestamp_seconds BIGINT NOT NULL, data BLOB NOT NULL, PRIMARY KEY (uuid, chat_jid, id))",
+            "CREATE INDEX IF NOT EXISTS messages_by_chat ON messages (uuid, chat_jid, timestamp_seconds)",
+            "CREATE INDEX IF NOT EXISTS messages_by_timestamp ON messages (uuid, timestamp_seconds)",
+            "CREATE INDEX IF NOT EXISTS messages_by_sender ON messages (uuid, sender_jid, timestamp_seconds)",
+            "CREATE TABLE IF NOT EXISTS contacts (uuid VARCHAR(36) NOT NULL, jid VARCHAR(255) NOT NULL, name VARCHAR(255), data BLOB NOT NULL, PRIMARY KEY (uuid, jid))"
+    );
+    private static final List<String> SESSION_TABLES = List.of("session_keys", "keys_journal", "stores", "chats", "messages", "contacts");
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+    private final Map<UUID, CompletableFuture<Void>> attributeStoreSerializers;
+    private final Map<UUID, Map<ContactJid, Integer>> persistedContacts;
+    private final Logger logger;
+
+    /**
+     * Creates a serializer for a database
+     *
+     * @param url the non-null JDBC url of the database, for example jdbc:h2:./whatsapp or jdbc:sqlite:whatsapp.db
+     */
+    public JdbcControllerSerializer(@NonNull String url) {
+        this(url, null, null);
+    }
+
+    /**
+     * Creates a serializer for a database
+     *
+     * @param url      the non-null JDBC url of the database
+     * @param user     the user of the database, can be null
+     * @param password the password of the user, can be null
+     */
+    public JdbcControllerSerializer(@NonNull String url, String user, String password) {
+        this.statements = new HashMap<>();
+        this.attributeStoreSerializers = new ConcurrentHashMap<>();
+        this.persistedContacts = new ConcurrentHashMap<>();
+        this.logger = System.getLogger("JdbcSerializer");
+        try {
+            this.connection = DriverManager.getConnection(url, user, password);
+            connection.setAutoCommit(false);
+        } catch (SQLException exception) {
+            throw new RuntimeException("Cannot connect to %s".formatted(url), exception);
+        }
+        transaction(() -> {
+            try (var statement = connection.createStatement()) {
+                for (var sql : SCHEMA) {
+                    statement.execute(sql);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public LinkedList<UUID> listIds(@NonNull ClientType type) {
+        return transaction(() -> {
+            var statement = statement("SELECT uuid FROM sessions WHERE client_type = ? ORDER BY last_used");
+            statement.setString(1, type.name());
+            var results = new LinkedList<UUID>();
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    results.add(UUID.fromString(resultSet.getString(1)));
+                }
+            }
+            return results;
+        });
+    }
+
+    @Override
+    public LinkedList<PhoneNumber> listPhoneNumbers(@NonNull ClientType type) {
+        return transaction(() -> {
+            var statement = statement("SELECT phone_number FROM sessions WHERE client_type = ? AND phone_number IS NOT NULL ORDER BY last_used");
+            statement.setString(1, type.name());
+            var results = new LinkedList<PhoneNumber>();
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    PhoneNumber.ofNullable(resultSet.getLong(1))
+                            .ifPresent(results::add);
+                }
+            }
+            return results;
+        });
+    }
+
+    @Override
+    public void serializeKeys(Keys keys, boolean async) {
+        run(() -> transaction(() -> {
+            updateSession(keys, false);
+            compactKeys(keys);
+            return null;
+        }), async);
+    }
+
+    // The keys are encoded while holding the connection, so no change can be journaled between the encoding and the deletion of the journal
+    private void compactKeys(Keys keys) throws SQLException {
+        upsert("session_keys", keys.uuid(), encode(keys));
+        var statement = statement("DELETE FROM keys_journal WHERE uuid = ?");
+        statement.setString(1, keys.uuid().toString());
+        statement.executeUpdate();
+    }
+
+    // The changes are drained while holding the connection, so every transaction commits the changes made since the previous one
+    @Override
+    public CompletableFuture<Void> journalKeys(@NonNull Keys keys) {
+        return CompletableFuture.runAsync(() -> transaction(() -> {
+            var entry = keys.drainChanges();
+            if (entry.isEmpty()) {
+                return null;
+            }
+
+            var sequenceStatement = statement("SELECT COALESCE(MAX(sequence), 0) FROM keys_journal WHERE uuid = ?");
+            sequenceStatement.setString(1, keys.uuid().toString());
+            long sequence;
+            try (var resultSet = sequenceStatement.executeQuery()) {
+                sequence = resultSet.next() ? resultSet.getLong(1) + 1 : 1;
+            }
+            var statement = statement("INSERT INTO keys_journal (uuid, sequence, data) VALUES (?, ?, ?)");
+            statement.setString(1, keys.uuid().toString());
+            statement.setLong(2, sequence);
+            statement.setBytes(3, encode(entry.get()));
+            statement.executeUpdate();
+            return null;
+        }));
+    }
+
+    @Override
+    public void serializeStore(Store store, boolean async) {
+        var task = attributeStoreSerializers.get(store.uuid());
+        if (task != null && !task.isDone()) {
+            return;
+        }
+
+        run(() -> serializeStore(store), async);
+    }
+
+    private void serializeStore(Store store) {
+        var chats = new ArrayList<Chat>();
+        var contacts = new HashMap<ContactJid, Integer>();
+        try {
+            transaction(() -> {
+                updateSession(store, false);
+                var statement = statement("DELETE FROM stores WHERE uuid = ?");
+                statement.setString(1, store.uuid().toString());
+                statement.executeUpdate();
+                var insertStatement = statement("INSERT INTO stores (uuid, data, search_index) VALUES (?, ?, ?)");
+                insertStatement.setString(1, store.uuid().toString());
+                insertStatement.setBytes(2, encode(store, Store.MetadataView.class));
+                insertStatement.setBytes(3, store.indexMessages() ? encode(store.searchIndex().snapshot()) : null);
+                insertStatement.executeUpdate();
+                for (var chat : store.chats()) {
+                    if (serializeChat(store, chat)) {
+                        chats.add(chat);
+                    }
+                }
+                serializeContacts(store, contacts);
+                return null;
+            });
+            persistedContacts.computeIfAbsent(store.uuid(), ignored -> new ConcurrentHashMap<>())
+                    .putAll(contacts);
+        } catch (Throwable throwable) {
+            chats.forEach(Chat::markChanged);
+            throw throwable;
+        }
+    }
+
+    // Chats whose messages weren't loaded can't have removed messages, so only their metadata is written
+    private boolean serializeChat(Store store, Chat chat) throws SQLException {
+        var changes = chat.consumeChanges(MAX_JOURNAL_MESSAGES);
+        if (changes.isEmpty()) {
+            return false;
+        }
+
+        var deleteStatement = statement("DELETE FROM chats WHERE uuid = ? AND jid = ?");
+        deleteStatement.setString(1, store.uuid().toString());
+        deleteStatement.setString(2, chat.jid().toString());
+        deleteStatement.executeUpdate();
+        var insertStatement = statement("INSERT INTO chats (uuid, jid, name, timestamp_seconds, unread_messages, data) VALUES (?, ?, ?, ?, ?, ?)");
+        insertStatement.setString(1, store.uuid().toString());
+        insertStatement.setString(2, chat.jid().toString());
+        insertStatement.setString(3, chat.name());
+        insertStatement.setLong(4, chat.timestampSeconds());
+        insertStatement.setInt(5, chat.unreadMessagesCount());
+        insertStatement.setBytes(6, encode(chat, Chat.MetadataView.class));
+        insertStatement.executeUpdate();
+        if (!changes.get().snapshot()) {
+            serializeMessages(store, chat.jid(), changes.get().messages());
+            return true;
+        }
+
+        if (!chat.hasLoadedMessages()) {
+            return true;
+        }
+
+        var statement = statement("DELETE FROM messages WHERE uuid = ? AND chat_jid = ?");
+        statement.setString(1, store.uuid().toString());
+        statement.setString(2, chat.jid().toString());
+        statement.executeUpdate();
+        var messages = chat.messages()
+                .stream()
+                .map(HistorySyncMessage::messageInfo)
+                .toList();
+        serializeMessages(store, chat.jid(), messages);
+        return true;
+    }
+
+    private void serializeMessages(Store store, ContactJid chatJid, List<MessageInfo> messages) throws SQLException {
+        var deleteStatement = statement("DELETE FROM messages WHERE uuid = ? AND chat_jid = ? AND id = ?");
+        var insertStatement = statement("INSERT INTO messages (uuid, chat_jid, id, sender_jid, timestamp_seconds, data) VALUES (?, ?, ?, ?, ?, ?)");
+        var pending = 0;
+        for (var message : messages) {
+            deleteStatement.setString(1, store.uuid().toString());
+            deleteStatement.setString(2, chatJid.toString());
+            deleteStatement.setString(3, message.id());
+            deleteStatement.addBatch();
+            insertStatement.setString(1, store.uuid().toString());
+            insertStatement.setString(2, chatJid.toString());
+            insertStatement.setString(3, message.id());
+            insertStatement.setString(4, Objects.toString(message.senderJid(), null));
+            insertStatement.setLong(5, message.timestampSeconds());
+            insertStatement.setBytes(6, encode(message));
+            insertStatement.addBatch();
+            if (++pending >= MAX_BATCH_SIZE) {
+                deleteStatement.executeBatch();
+                insertStatement.executeBatch();
+                pending = 0;
+            }
+        }
+
+        if (pending != 0) {
+            deleteStatement.executeBatch();
+            insertStatement.executeBatch();
+        }
+    }
+
+    // Contacts don't track their changes and their hash code only depends on their jid, so only the ones whose encoding changed since the last serialization are written
+    private void serializeContacts(Store store, Map<ContactJid, Integer> results) throws SQLException {
+        var known = persistedContacts.getOrDefault(store.uuid(), Map.of());
+        var deleteStatement = statement("DELETE FROM contacts WHERE uuid = ? AND jid = ?");
+        var insertStatement = statement("INSERT INTO contacts (uuid, jid, name, data) VALUES (?, ?, ?, ?)");
+        var pending = 0;
+        for (var contact : store.contacts()) {
+            var data = encode(contact);
+            var hash = Arrays.hashCode(data);
+            if (Objects.equals(known.get(contact.jid()), hash)) {
+                continue;
+            }
+
+            deleteStatement.setString(1, store.uuid().toString());
+            deleteStatement.setString(2, contact.jid().toString());
+            deleteStatement.addBatch();
+            insertStatement.setString(1, store.uuid().toString());
+            insertStatement.setString(2, contact.jid().toString());
+            insertStatement.setString(3, contact.name());
+            insertStatement.setBytes(4, data);
+            insertStatement.addBatch();
+            results.put(contact.jid(), hash);
+            if (++pending >= MAX_BATCH_SIZE) {
+                deleteStatement.executeBatch();
+                insertStatement.executeBatch();
+                pending = 0;
+            }
+        }
+
+        if (pending != 0) {
+            deleteStatement.executeBatch();
+            insertStatement.executeBatch();
+        }
+    }
+
+    @Override
+    public Optional<Keys> deserializeKeys(@NonNull ClientType type, UUID id) {
+        return transaction(() -> {
+            var keys = select("session_keys", id, Keys.class);
+            if (keys.isEmpty()) {
+                return Optional.<Keys>empty();
+            }
+
+            var statement = statement("SELECT data FROM keys_journal WHERE uuid = ? ORDER BY sequence");
+            statement.setString(1, id.toString());
+            var replayed = false;
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    keys.get().applyChanges(decode(resultSet.getBytes(1), KeysJournalEntry.class));
+                    replayed = true;
+                }
+            }
+            keys.get().serializer(this);
+            updateSession(keys.get(), true);
+            if (replayed) {
+                compactKeys(keys.get());
+            }
+            return keys;
+        });
+    }
+
+    @Override
+    public Optional<Keys> deserializeKeys(@NonNull ClientType type, long phoneNumber) {
+        return findSessionByPhoneNumber(type, phoneNumber)
+                .flatMap(uuid -> deserializeKeys(type, uuid));
+    }
+
+    @Override
+    public Optional<Keys> deserializeKeys(@NonNull ClientType type, String alias) {
+        return findSessionByAlias(type, alias)
+                .flatMap(uuid -> deserializeKeys(type, uuid));
+    }
+
+    // Stores written before contacts were excluded from their data still contain them, the rows of the contacts table take precedence
+    @Override
+    public Optional<Store> deserializeStore(@NonNull ClientType type, UUID id) {
+        return transaction(() -> {
+            var store = select("stores", id, Store.class);
+            if (store.isEmpty()) {
+                return store;
+            }
+
+            store.get().serializer(this);
+            persistedContacts.put(id, attributeContacts(store.get()));
+            return store;
+        });
+    }
+
+    private Map<ContactJid, Integer> attributeContacts(Store store) throws SQLException {
+        var statement = statement("SELECT data FROM contacts WHERE uuid = ?");
+        statement.setString(1, store.uuid().toString());
+        var results = new ConcurrentHashMap<ContactJid, Integer>();
+        try (var resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                var data = resultSet.getBytes(1);
+                var contact = store.addContact(decode(data, Contact.class));
+                results.put(contact.jid(), Arrays.hashCode(data));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Optional<Store> deserializeStore(@NonNull ClientType type, long phoneNumber) {
+        return findSessionByPhoneNumber(type, phoneNumber)
+                .flatMap(uuid -> deserializeStore(type, uuid));
+    }
+
+    @Override
+    public Optional<Store> deserializeStore(@NonNull ClientType type, String alias) {
+        return findSessionByAlias(type, alias)
+                .flatMap(uuid -> deserializeStore(type, uuid));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> attributeStore(Store store) {
+        var oldTask = attributeStoreSerializers.get(store.uuid());
+        if (oldTask != null) {
+            return oldTask;
+        }
+
+        var result = CompletableFuture.runAsync(() -> attributeChats(store))
+                .thenRunAsync(() -> attributeSearchIndex(store));
+        attributeStoreSerializers.put(store.uuid(), result);
+        return result;
+    }
+
+    private void attributeChats(Store store) {
+        var chats = transaction(() -> {
+            var statement = statement("SELECT data FROM chats WHERE uuid = ?");
+            statement.setString(1, store.uuid().toString());
+            var results = new ArrayList<Chat>();
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    results.add(decode(resultSet.getBytes(1), Chat.class));
+                }
+            }
+            return results;
+        });
+        for (var chat : chats) {
+            chat.messagesLoader(() -> loadMessages(store, chat.jid()));
+            chat.markPersisted();
+            store.addChatDirect(chat);
+        }
+    }
+
+    private List<HistorySyncMessage> loadMessages(Store store, ContactJid chatJid) {
+        var messages = transaction(() -> {
+            var statement = statement("SELECT data FROM messages WHERE uuid = ? AND chat_jid = ? ORDER BY timestamp_seconds, id");
+            statement.setString(1, store.uuid().toString());
+            statement.setString(2, chatJid.toString());
+            return readMessages(statement);
+        });
+        var results = new ArrayList<HistorySyncMessage>(messages.size());
+        for (var message : messages) {
+            results.add(new HistorySyncMessage(message, results.size()));
+            store.scheduleExpiration(message);
+        }
+        return results;
+    }
+
+    private void attributeSearchIndex(Store store) {
+        if (!store.indexMessages()) {
+            return;
+        }
+
+        var index = transaction(() -> {
+            var statement = statement("SELECT search_index FROM stores WHERE uuid = ?");
+            statement.setString(1, store.uuid().toString());
+            try (var resultSet = statement.executeQuery()) {
+                if (!resultSet.next() || resultSet.getBytes(1) == null) {
+                    return Optional.<MessageSearchIndex>empty();
+                }
+
+                return Optional.of(decode(resultSet.getBytes(1), MessageSearchIndex.class));
+            }
+        });
+        if (index.isPresent()) {
+            store.searchIndex(index.get());
+            return;
+        }
+
+        store.searchIndex()
+                .addPendingChats(store.chats().stream().map(Chat::jid).toList());
+    }
+
+    /**
+     * Queries the persisted messages of a chat in a time range, from the oldest to the newest
+     * Only the messages that were persisted by the last serialization are returned
+     *
+     * @param store       the non-null store that owns the chat
+     * @param chat        the non-null chat
+     * @param fromSeconds the minimum timestamp, inclusive
+     * @param toSeconds   the maximum timestamp, inclusive
+     * @param limit       the maximum number of messages to return
+     * @return a non-null list of messages
+     */
+    public List<MessageInfo> findMessages(@NonNull Store store, @NonNull ContactJidProvider chat, long fromSeconds, long toSeconds, int limit) {
+        return transaction(() -> {
+            var statement = statement("SELECT data FROM messages WHERE uuid = ? AND chat_jid = ? AND timestamp_seconds BETWEEN ? AND ? ORDER BY timestamp_seconds LIMIT ?");
+            statement.setString(1, store.uuid().toString());
+            statement.setString(2, chat.toJid().toString());
+            statement.setLong(3, fromSeconds);
+            statement.setLong(4, toSeconds);
+            statement.setInt(5, limit);
+            return readMessages(statement);
+        });
+    }
+
+    /**
+     * Queries the persisted messages sent by a contact in any chat, from the newest to the oldest
+     * Only the messages that were persisted by the last serialization are returned
+     *
+     * @param store  the non-null store that owns the messages
+     * @param sender the non-null sender
+     * @param limit  the maximum number of messages to return
+     * @return a non-null list of messages
+     */
+    public List<MessageInfo> findMessagesBySender(@NonNull Store store, @NonNull ContactJidProvider sender, int limit) {
+        return transaction(() -> {
+            var statement = statement("SELECT data FROM messages WHERE uuid = ? AND sender_jid = ? ORDER BY timestamp_seconds DESC LIMIT ?");
+            statement.setString(1, store.uuid().toString());
+            statement.setString(2, sender.toJid().toString());
+            statement.setInt(3, limit);
+            return readMessages(statement);
+        });
+    }
+
+    /**
+     * Queries a persisted message by its id without loading the messages of its chat
+     *
+     * @param store the non-null store that owns the chat
+     * @param chat  the non-null chat
+     * @param id    the non-null id of the message
+     * @return a non-null optional
+     */
+    public Optional<MessageInfo> findMessageById(@NonNull Store store, @NonNull ContactJidProvider chat, @NonNull String id) {
+        return transaction(() -> {
+            var statement = statement("SELECT data FROM messages WHERE uuid = ? AND chat_jid = ? AND id = ?");
+            statement.setString(1, store.uuid().toString());
+            statement.setString(2, chat.toJid().toString());
+            statement.setString(3, id);
+            return readMessages(statement).stream().findFirst();
+        });
+    }
+
+    private List<MessageInfo> readMessages(PreparedStatement statement) throws SQLException {
+        var results = new ArrayList<MessageInfo>();
+        try (var resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                results.add(decode(resultSet.getBytes(1), MessageInfo.class));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void deleteSession(@NonNull Controller<?> controller) {
+        transaction(() -> {
+            for (var table : SESSION_TABLES) {
+                var statement = statement("DELETE FROM %s WHERE uuid = ?".formatted(table));
+                statement.setString(1, controller.uuid().toString());
+                statement.executeUpdate();
+            }
+            var statement = statement("DELETE FROM session_aliases WHERE uuid = ?");
+            statement.setString(1, controller.uuid().toString());
+            statement.executeUpdate();
+            var sessionStatement = statement("DELETE FROM sessions WHERE uuid = ?");
+            sessionStatement.setString(1, controller.uuid().toString());
+            sessionStatement.executeUpdate();
+            return null;
+        });
+        persistedContacts.remove(controller.uuid());
+    }
+
+    @Override
+    public void linkMetadata(@NonNull Controller<?> controller) {
+        transaction(() -> {
+            updateSession(controller, false);
+            return null;
+        });
+    }
+
+    private void updateSession(Controller<?> controller, boolean used) throws SQLException {
+        var selectStatement = statement("SELECT phone_number, last_used FROM sessions WHERE uuid = ?");
+        selectStatement.setString(1, controller.uuid().toString());
+        Long phoneNumber = null;
+        var lastUsed = System.currentTimeMillis();
+        try (var resultSet = selectStatement.executeQuery()) {
+            if (resultSet.next()) {
+                var knownPhoneNumber = resultSet.getLong(1);
+                phoneNumber = resultSet.wasNull() ? null : knownPhoneNumber;
+                lastUsed = used ? lastUsed : resultSet.getLong(2);
+            }
+        }
+        phoneNumber = controller.phoneNumber().map(PhoneNumber::number).orElse(phoneNumber);
+        var deleteStatement = statement("DELETE FROM sessions WHERE uuid = ?");
+        deleteStatement.setString(1, controller.uuid().toString());
+        deleteStatement.executeUpdate();
+        var insertStatement = statement("INSERT INTO sessions (uuid, client_type, phone_number, last_used) VALUES (?, ?, ?, ?)");
+        insertStatement.setString(1, controller.uuid().toString());
+        insertStatement.setString(2, controller.clientType().name());
+        if (phoneNumber == null) {
+            insertStatement.setNull(3, Types.BIGINT);
+        } else {
+            insertStatement.setLong(3, phoneNumber);
+        }
+        insertStatement.setLong(4, lastUsed);
+        insertStatement.executeUpdate();
+        for (var alias : controller.alias()) {
+            var deleteAliasStatement = statement("DELETE FROM session_aliases WHERE client_type = ? AND alias = ?");
+            deleteAliasStatement.setString(1, controller.clientType().name());
+            deleteAliasStatement.setString(2, alias);
+            deleteAliasStatement.executeUpdate();
+            var insertAliasStatement = statement("INSERT INTO session_aliases (client_type, alias, uuid) VALUES (?, ?, ?)");
+            insertAliasStatement.setString(1, controller.clientType().name());
+            insertAliasStatement.setString(2, alias);
+            insertAliasStatement.setString(3, controller.uuid().toString());
+            insertAliasStatement.executeUpdate();
+        }
+    }
+
+    private Optional<UUID> findSessionByPhoneNumber(ClientType type, long phoneNumber) {
+        return transaction(() -> {
+            var statement = statement("SELECT uuid FROM sessions WHERE client_type = ? AND phone_number = ?");
+            statement.setString(1, type.name());
+            statement.setLong(2, phoneNumber);
+            return readId(statement);
+        });
+    }
+
+    private Optional<UUID> findSessionByAlias(ClientType type, String alias) {
+        return transaction(() -> {
+            var statement = statement("SELECT uuid FROM session_aliases WHERE client_type = ? AND alias = ?");
+            statement.setString(1, type.name());
+            statement.setString(2, alias);
+            return readId(statement);
+        });
+    }
+
+    private Optional<UUID> readId(PreparedStatement statement) throws SQLException {
+        try (var resultSet = statement.executeQuery()) {
+            return resultSet.next() ? Optional.of(UUID.fromString(resultSet.getString(1))) : Optional.empty();
+        }
+    }
+
+    private void upsert(String table, UUID uuid, byte[] data) throws SQLException {
+        var deleteStatement = statement("DELETE FROM %s WHERE uuid = ?".formatted(table));
+        deleteStatement.setString(1, uuid.toString());
+        deleteStatement.executeUpdate();
+        var insertStatement = statement("INSERT INTO %s (uuid, data) VALUES (?, ?)".formatted(table));
+        insertStatement.setString(1, uuid.toString());
+        insertStatement.setBytes(2, data);
+        insertStatement.executeUpdate();
+    }
+
+    private <T> Optional<T> select(String table, UUID uuid, Class<T> clazz) throws SQLException {
+        var statement = statement("SELECT data FROM %s WHERE uuid = ?".formatted(table));
+        statement.setString(1, uuid.toString());
+        try (var resultSet = statement.executeQuery()) {
+            return resultSet.next() ? Optional.of(decode(resultSet.getBytes(1), clazz)) : Optional.empty();
+        }
+    }
+
+    // Must be called while holding the connection
+    private PreparedStatement statement(String sql) throws SQLException {
+        var statement = statements.get(sql);
+        if (statement != null) {
+            return statement;
+        }
+
+        var result = connection.prepareStatement(sql);
+        statements.put(sql, result);
+        return result;
+    }
+
+    private <T> T transaction(SqlSupplier<T> supplier) {
+        synchronized (connection) {
+            try {
+                var result = supplier.get();
+                connection.commit();
+                return result;
+            } catch (SQLException exception) {
+                rollback();
+                throw new RuntimeException("Cannot execute transaction", exception);
+            } catch (Throwable throwable) {
+                rollback();
+                throw throwable;
+            }
+        }
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException exception) {
+            logger.log(ERROR, "Cannot rollback transaction", exception);
+        }
+    }
+
+    private void run(Runnable runnable, boolean async) {
+        if (!async) {
+            runnable.run();
+            return;
+        }
+
+        CompletableFuture.runAsync(runnable).exceptionallyAsync(throwable -> {
+            logger.log(ERROR, "Cannot serialize session", throwable);
+            return null;
+        });
+    }
+
+    private byte[] encode(Object input) {
+        return encode(input, null);
+    }
+
+    private byte[] encode(Object input, Class<?> view) {
+        try {
+            return view == null ? Smile.writeValueAsBytes(input) : Smile.writeValueAsBytes(input, view);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot encode %s".formatted(input.getClass().getSimpleName()), exception);
+        }
+    }
+
+    private <T> T decode(byte[] data, Class<T> clazz) {
+        try {
+            return Smile.readValue(data, clazz);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot decode %s".formatted(clazz.getSimpleName()), exception);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlSupplier<T> {
+        T get() throws SQLException;
+    }
+}
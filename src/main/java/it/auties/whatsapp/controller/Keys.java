@@ -30,7 +30,9 @@ import lombok.experimental.SuperBuilder;
 import lombok.extern.jackson.Jacksonized;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Objects.requireNonNullElseGet;
@@ -220,6 +222,30 @@ public final class Keys extends Controller<Keys> {
     @Setter
     private byte[] writeKey, readKey;
 
+    /**
+     * The sessions that changed since they were last committed to the journal
+     */
+    @JsonIgnore
+    private final Set<SessionAddress> changedSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The sender keys that changed since they were last committed to the journal
+     */
+    @JsonIgnore
+    private final Set<SenderKeyName> changedSenderKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The pre keys that were added since they were last committed to the journal
+     */
+    @JsonIgnore
+    private final Queue<SignalPreKeyPair> addedPreKeys = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The devices whose app state hashes changed since they were last committed to the journal
+     */
+    @JsonIgnore
+    private final Set<ContactJid> changedHashStates = ConcurrentHashMap.newKeySet();
+
     /**
      * Experimental method
      */
@@ -469,6 +495,7 @@ public final class Keys extends Controller<Keys> {
         return requireNonNullElseGet(senderKeys.get(name), () -> {
             var record = new SenderKeyRecord();
             senderKeys.put(name, record);
+            markSenderKeyChanged(name);
             return record;
         });
     }
@@ -560,9 +587,101 @@ public final class Keys extends Controller<Keys> {
      */
     public Keys putSession(@NonNull SessionAddress address, @NonNull Session record) {
         sessions.put(address, record);
+        markSessionChanged(address);
         return this;
     }
 
+    /**
+     * Marks the session at the provided address as changed, for example because its ratchet advanced.
+     * This method should be called once the session was modified: its latest value is encoded when the journal is committed in the background.
+     *
+     * @param address the non-null address of the session
+     * @return a future that completes when the change is durable
+     */
+    public CompletableFuture<Void> markSessionChanged(@NonNull SessionAddress address) {
+        changedSessions.add(address);
+        markChanged();
+        return journal();
+    }
+
+    /**
+     * Marks the sender key with the provided name as changed, for example because its chain advanced.
+     * This method should be called once the sender key was modified: its latest value is encoded when the journal is committed in the background.
+     *
+     * @param name the non-null name of the sender key
+     * @return a future that completes when the change is durable
+     */
+    public CompletableFuture<Void> markSenderKeyChanged(@NonNull SenderKeyName name) {
+        changedSenderKeys.add(name);
+        markChanged();
+        return journal();
+    }
+
+    /**
+     * Commits the changes that were marked so far to the journal
+     * Messages that were encrypted should only be sent once this future completes, otherwise a crash could roll their ratchet back
+     *
+     * @return a future that completes when the changes marked before this call are durable
+     */
+    public CompletableFuture<Void> commitChanges() {
+        return journal();
+    }
+
+    private CompletableFuture<Void> journal() {
+        return serializer == null ? CompletableFuture.completedFuture(null) : serializer.journalKeys(this);
+    }
+
+    /**
+     * Removes the changes that weren't committed to the journal yet and returns their latest values.
+     * This method is used by serializers that support journaling.
+     *
+     * @return a non-null optional, empty if nothing changed
+     */
+    public Optional<KeysJournalEntry> drainChanges() {
+        var changedSessions = drain(this.changedSessions, sessions);
+        var changedSenderKeys = drain(this.changedSenderKeys, senderKeys);
+        var changedPreKeys = new ArrayList<SignalPreKeyPair>();
+        for (var preKey = addedPreKeys.poll(); preKey != null; preKey = addedPreKeys.poll()) {
+            changedPreKeys.add(preKey);
+        }
+        var changedHashStates = new HashMap<ContactJid, Map<BinaryPatchType, LTHashState>>();
+        drain(this.changedHashStates, hashStates).forEach((device, states) -> changedHashStates.put(device, new HashMap<>(states)));
+        var result = new KeysJournalEntry(changedSessions, changedSenderKeys, changedPreKeys, changedHashStates);
+        return result.isEmpty() ? Optional.empty() : Optional.of(result);
+    }
+
+    // The key is removed before its value is read and encoded, so a change that happens concurrently is committed again:
+    // a value that is modified while it's being encoded is marked as changed once it's complete, and the next record replaces this one
+    private <K, V> Map<K, V> drain(Set<K> changed, Map<K, V> values) {
+        var results = new HashMap<K, V>();
+        var iterator = changed.iterator();
+        while (iterator.hasNext()) {
+            var key = iterator.next();
+            iterator.remove();
+            var value = values.get(key);
+            if (value != null) {
+                results.put(key, value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Applies an entry read from the journal.
+     * This method is used by serializers that support journaling.
+     *
+     * @param entry the non-null entry to apply
+     */
+    public void applyChanges(@NonNull KeysJournalEntry entry) {
+        sessions.putAll(entry.sessions());
+        senderKeys.putAll(entry.senderKeys());
+        entry.preKeys()
+                .stream()
+                .filter(preKey -> findPreKeyById(preKey.id()).isEmpty())
+                .forEach(preKeys::add);
+        entry.hashStates().forEach((device, states) -> hashStates.computeIfAbsent(device, ignored -> new HashMap<>()).putAll(states));
+    }
+
     /**
      * Adds the provided hash state to the known ones
      *
@@ -574,6 +693,9 @@ public final class Keys extends Controller<Keys> {
         var oldData = Objects.requireNonNullElseGet(hashStates.get(device), HashMap<BinaryPatchType, LTHashState>::new);
         oldData.put(state.name(), state);
         hashStates.put(device, oldData);
+        changedHashStates.add(device);
+        markChanged();
+        journal();
         return this;
     }
 
@@ -586,6 +708,7 @@ public final class Keys extends Controller<Keys> {
      */
     public Keys addAppKeys(@NonNull ContactJid jid, @NonNull Collection<AppStateSyncKey> keys) {
         appStateKeys.put(jid, new LinkedList<>(keys));
+        markChanged();
         return this;
     }
 
@@ -616,6 +739,9 @@ public final class Keys extends Controller<Keys> {
      */
     public Keys addPreKey(SignalPreKeyPair preKey) {
         preKeys.add(preKey);
+        addedPreKeys.add(preKey);
+        markChanged();
+        journal();
         return this;
     }
 
@@ -662,6 +788,7 @@ public final class Keys extends Controller<Keys> {
      */
     public Keys companionIdentity(SignedDeviceIdentity companionIdentity) {
         this.companionIdentity = companionIdentity;
+        markChanged();
         return this;
     }
 
@@ -0,0 +1,47 @@
+package it.auties.whatsapp.controller;
+
+import it.auties.whatsapp.binary.BinaryPatchType;
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.signal.keypair.SignalPreKeyPair;
+import it.auties.whatsapp.model.signal.sender.SenderKeyName;
+import it.auties.whatsapp.model.signal.sender.SenderKeyRecord;
+import it.auties.whatsapp.model.signal.session.Session;
+import it.auties.whatsapp.model.signal.session.SessionAddress;
+import it.auties.whatsapp.model.sync.LTHashState;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNullElseGet;
+
+/**
+ * A record of the signal state of a {@link Keys} instance that changed since the previous record was committed to the journal.
+ * Every entry holds the latest value of what changed, so replaying a journal is idempotent.
+ *
+ * @param sessions   the sessions that were added or updated
+ * @param senderKeys the sender keys that were added or updated
+ * @param preKeys    the pre keys that were added
+ * @param hashStates the app state hashes that were added or updated
+ */
+public record KeysJournalEntry(Map<SessionAddress, Session> sessions,
+                               Map<SenderKeyName, SenderKeyRecord> senderKeys,
+                               List<SignalPreKeyPair> preKeys,
+                               Map<ContactJid, Map<BinaryPatchType, LTHashState>> hashStates) {
+    /**
+     * Default constructor, empty collections are omitted when an entry is serialized
+     */
+    public KeysJournalEntry {
+        sessions = requireNonNullElseGet(sessions, Map::of);
+        senderKeys = requireNonNullElseGet(senderKeys, Map::of);
+        preKeys = requireNonNullElseGet(preKeys, List::of);
+        hashStates = requireNonNullElseGet(hashStates, Map::of);
+    }
+
+    /**
+     * Returns whether this entry doesn't hold any change
+     *
+     * @return a boolean
+     */
+    public boolean isEmpty() {
+        return sessions.isEmpty() && senderKeys.isEmpty() && preKeys.isEmpty() && hashStates.isEmpty();
+    }
+}
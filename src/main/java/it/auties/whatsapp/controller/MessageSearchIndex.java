@@ -0,0 +1,574 @@
+package it.auties.whatsapp.controller;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.info.MessageInfo;
+import it.auties.whatsapp.model.message.standard.DocumentMessage;
+import it.auties.whatsapp.model.message.standard.ImageMessage;
+import it.auties.whatsapp.model.message.standard.TextMessage;
+import it.auties.whatsapp.model.message.standard.VideoMessage;
+import it.auties.whatsapp.model.search.MessageSearchQuery;
+import lombok.NonNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * An inverted index over the text, captions and document names of the messages of a session.
+ * The index only persists the tokenized documents: the postings are rebuilt in memory the first time the index is used.
+ * Removed messages are dropped when the index is rebuilt.
+ * Documents only reference their message by its chat and id, so hits are resolved through their chat and indexed messages can be unloaded.
+ * Chats can be marked as pending so that their messages are only indexed, and loaded, when the index is first searched.
+ */
+public final class MessageSearchIndex {
+    private static final String CHAT_TERM = "\u0000c";
+    private static final String SENDER_TERM = "\u0000s";
+    private static final String PREFIX_UPPER_BOUND = "\uffff";
+
+    private ArrayList<Document> documents;
+
+    private final Set<String> pendingChats;
+
+    @JsonIgnore
+    private final ConcurrentSkipListMap<String, Postings> postings;
+
+    @JsonIgnore
+    private final Map<String, Integer> keys;
+
+    @JsonIgnore
+    private final ReentrantReadWriteLock lock;
+
+    @JsonIgnore
+    private boolean built;
+
+    @JsonIgnore
+    private boolean changed;
+
+    /**
+     * Constructs a new empty index
+     */
+    public MessageSearchIndex() {
+        this.documents = new ArrayList<>();
+        this.pendingChats = new HashSet<>();
+        this.postings = new ConcurrentSkipListMap<>();
+        this.keys = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.built = true;
+    }
+
+    @JsonCreator
+    private MessageSearchIndex(@JsonProperty("documents") ArrayList<Document> documents, @JsonProperty("pendingChats") Set<String> pendingChats) {
+        this.documents = Objects.requireNonNullElseGet(documents, ArrayList::new);
+        this.pendingChats = Objects.requireNonNullElseGet(pendingChats, HashSet::new);
+        this.postings = new ConcurrentSkipListMap<>();
+        this.keys = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.built = false;
+    }
+
+    /**
+     * Adds a message to the index if it contains searchable text
+     *
+     * @param info the non-null message to index
+     * @return whether the message was added
+     */
+    public boolean add(@NonNull MessageInfo info) {
+        var text = searchableText(info);
+        if (text.isEmpty()) {
+            return false;
+        }
+
+        lock.writeLock().lock();
+        try {
+            ensureBuilt();
+            var chat = info.chatJid().toWhatsappJid().toString();
+            if (keys.containsKey(key(chat, info.id()))) {
+                return false;
+            }
+
+            var sender = info.senderJid().toWhatsappJid().toString();
+            var tokens = tokenize(text.get()).toArray(String[]::new);
+            var document = new Document(chat, sender, info.id(), info.timestampSeconds(), tokens);
+            documents.add(document);
+            index(documents.size() - 1, document);
+            this.changed = true;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a message from the index
+     *
+     * @param info the non-null message to remove
+     * @return whether the message was removed
+     */
+    public boolean remove(@NonNull MessageInfo info) {
+        lock.writeLock().lock();
+        try {
+            ensureBuilt();
+            return remove(key(info.chatJid().toWhatsappJid().toString(), info.id()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the message of a hit from the index
+     *
+     * @param hit the non-null hit to remove
+     * @return whether the message was removed
+     */
+    boolean remove(@NonNull Hit hit) {
+        lock.writeLock().lock();
+        try {
+            ensureBuilt();
+            return remove(key(hit.chatJid().toWhatsappJid().toString(), hit.messageId()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean remove(String key) {
+        var id = keys.remove(key);
+        if (id == null) {
+            return false;
+        }
+
+        documents.set(id, null);
+        this.changed = true;
+        return true;
+    }
+
+    /**
+     * Removes all the messages of a chat from the index
+     *
+     * @param chatJid the non-null chat whose messages should be removed
+     */
+    public void remove(@NonNull ContactJid chatJid) {
+        lock.writeLock().lock();
+        try {
+            ensureBuilt();
+            this.changed |= pendingChats.remove(chatJid.toWhatsappJid().toString());
+            var chatPostings = postings.remove(CHAT_TERM + chatJid.toWhatsappJid());
+            if (chatPostings == null) {
+                return;
+            }
+
+            for (var index = 0; index < chatPostings.size; index++) {
+                var id = chatPostings.values[index];
+                var document = documents.get(id);
+                if (document == null) {
+                    continue;
+                }
+
+                keys.remove(key(document.chat(), document.id()));
+                documents.set(id, null);
+                this.changed = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages in this index
+     *
+     * @return a non-negative number
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return built ? keys.size() : (int) documents.stream().filter(Objects::nonNull).count();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the index
+     *
+     * @param query the non-null query
+     * @return a non-null list of hits, sorted from the newest to the oldest message
+     */
+    public List<Hit> search(@NonNull MessageSearchQuery query) {
+        var clauses = parse(query);
+        if (clauses.isEmpty()) {
+            return List.of();
+        }
+
+        lock.writeLock().lock();
+        try {
+            ensureBuilt();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        lock.readLock().lock();
+        try {
+            return search(query, clauses);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks chats as pending: their messages should be added to the index before it's searched
+     * This is used to rebuild the index without loading the messages of every chat right away
+     *
+     * @param chatJids the non-null chats
+     */
+    public void addPendingChats(@NonNull Collection<ContactJid> chatJids) {
+        lock.writeLock().lock();
+        try {
+            chatJids.forEach(chatJid -> pendingChats.add(chatJid.toWhatsappJid().toString()));
+            this.changed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the chats whose messages should be added to the index before it's searched
+     *
+     * @return a non-null list
+     */
+    public List<ContactJid> pendingChats() {
+        lock.readLock().lock();
+        try {
+            return pendingChats.stream()
+                    .map(ContactJid::of)
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks a pending chat as indexed
+     * This method should be called after the messages of the chat were added to the index, so that a copy of the index never misses them
+     *
+     * @param chatJid the non-null chat
+     */
+    public void removePendingChat(@NonNull ContactJid chatJid) {
+        lock.writeLock().lock();
+        try {
+            this.changed |= pendingChats.remove(chatJid.toWhatsappJid().toString());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of this index that can be serialized while this index is modified, if it changed since the last copy was taken
+     * Removed documents are not copied
+     *
+     * @return a non-null optional
+     */
+    public Optional<MessageSearchIndex> consumeChanges() {
+        lock.writeLock().lock();
+        try {
+            if (!changed) {
+                return Optional.empty();
+            }
+
+            this.changed = false;
+            return Optional.of(snapshot());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of this index that can be serialized while this index is modified
+     * Removed documents are not copied
+     *
+     * @return a non-null index
+     */
+    public MessageSearchIndex snapshot() {
+        lock.readLock().lock();
+        try {
+            var documents = this.documents.stream()
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toCollection(ArrayList::new));
+            return new MessageSearchIndex(documents, new HashSet<>(pendingChats));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks this index as changed, for example because the copy returned by {@link #consumeChanges()} couldn't be serialized
+     */
+    public void markChanged() {
+        lock.writeLock().lock();
+        try {
+            this.changed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<Hit> search(MessageSearchQuery query, List<Clause> clauses) {
+        var matches = clauses.stream()
+                .map(this::evaluate)
+                .sorted(Comparator.comparingInt(entry -> entry.length))
+                .reduce(MessageSearchIndex::intersect)
+                .orElseGet(() -> new int[0]);
+        var from = query.from() == null ? Long.MIN_VALUE : query.from().toEpochSecond();
+        var to = query.to() == null ? Long.MAX_VALUE : query.to().toEpochSecond();
+        var phrases = clauses.stream()
+                .filter(clause -> clause.terms().length > 1)
+                .toList();
+        var results = new PriorityQueue<Document>(Comparator.comparingLong(Document::timestampSeconds));
+        for (var id : matches) {
+            var document = documents.get(id);
+            if (document == null || document.timestampSeconds() < from || document.timestampSeconds() > to) {
+                continue;
+            }
+
+            if (!phrases.stream().allMatch(phrase -> document.containsPhrase(phrase.terms()))) {
+                continue;
+            }
+
+            results.add(document);
+            if (results.size() > query.maxResults()) {
+                results.poll();
+            }
+        }
+
+        return results.stream()
+                .sorted(Comparator.comparingLong(Document::timestampSeconds).reversed())
+                .map(document -> new Hit(ContactJid.of(document.chat()), ContactJid.of(document.sender()), document.id(), document.timestampSeconds()))
+                .toList();
+    }
+
+    private int[] evaluate(Clause clause) {
+        if (clause.prefix()) {
+            var terms = postings.subMap(clause.terms()[0], clause.terms()[0] + PREFIX_UPPER_BOUND);
+            var union = new BitSet();
+            terms.values().forEach(entry -> entry.addTo(union));
+            return union.stream().toArray();
+        }
+
+        return Arrays.stream(clause.terms())
+                .map(term -> postings.getOrDefault(term, Postings.EMPTY).toArray())
+                .reduce(MessageSearchIndex::intersect)
+                .orElseGet(() -> new int[0]);
+    }
+
+    private static int[] intersect(int[] first, int[] second) {
+        var result = new int[Math.min(first.length, second.length)];
+        var size = 0;
+        var i = 0;
+        var j = 0;
+        while (i < first.length && j < second.length) {
+            if (first[i] == second[j]) {
+                result[size++] = first[i];
+                i++;
+                j++;
+            } else if (first[i] < second[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
+    private List<Clause> parse(MessageSearchQuery query) {
+        var clauses = new ArrayList<Clause>();
+        var text = query.text();
+        var phrase = false;
+        var start = 0;
+        for (var index = 0; index <= text.length(); index++) {
+            if (index != text.length() && text.charAt(index) != '"') {
+                continue;
+            }
+
+            var segment = text.substring(start, index);
+            if (phrase) {
+                var terms = tokenize(segment).toArray(String[]::new);
+                if (terms.length != 0) {
+                    clauses.add(new Clause(terms, false));
+                }
+            } else {
+                parseWords(segment, clauses);
+            }
+
+            phrase = !phrase;
+            start = index + 1;
+        }
+
+        if (clauses.isEmpty()) {
+            return clauses;
+        }
+
+        query.chatJid().ifPresent(chat -> clauses.add(new Clause(new String[]{CHAT_TERM + chat.toWhatsappJid()}, false)));
+        query.senderJid().ifPresent(sender -> clauses.add(new Clause(new String[]{SENDER_TERM + sender.toWhatsappJid()}, false)));
+        return clauses;
+    }
+
+    private void parseWords(String segment, List<Clause> clauses) {
+        for (var word : segment.split("\\s+")) {
+            var prefix = word.endsWith("*");
+            var terms = tokenize(prefix ? word.substring(0, word.length() - 1) : word);
+            for (var index = 0; index < terms.size(); index++) {
+                var last = index == terms.size() - 1;
+                clauses.add(new Clause(new String[]{terms.get(index)}, prefix && last));
+            }
+        }
+    }
+
+    private void ensureBuilt() {
+        if (built) {
+            return;
+        }
+
+        documents.removeIf(Objects::isNull);
+        for (var id = 0; id < documents.size(); id++) {
+            index(id, documents.get(id));
+        }
+
+        built = true;
+    }
+
+    private void index(int id, Document document) {
+        postings.computeIfAbsent(CHAT_TERM + document.chat(), ignored -> new Postings()).add(id);
+        postings.computeIfAbsent(SENDER_TERM + document.sender(), ignored -> new Postings()).add(id);
+        var tokens = document.tokens();
+        for (var index = 0; index < tokens.length; index++) {
+            var entry = postings.computeIfAbsent(tokens[index], ignored -> new Postings());
+            entry.add(id);
+            tokens[index] = postings.ceilingKey(tokens[index]);
+        }
+        keys.put(key(document.chat(), document.id()), id);
+    }
+
+    private static String key(String chat, String id) {
+        return chat + "/" + id;
+    }
+
+    private static Optional<String> searchableText(MessageInfo info) {
+        var content = info.message().content();
+        if (content instanceof TextMessage textMessage) {
+            return Optional.ofNullable(textMessage.text());
+        }
+
+        if (content instanceof ImageMessage imageMessage) {
+            return Optional.ofNullable(imageMessage.caption());
+        }
+
+        if (content instanceof VideoMessage videoMessage) {
+            return Optional.ofNullable(videoMessage.caption());
+        }
+
+        if (content instanceof DocumentMessage documentMessage) {
+            var text = new StringJoiner(" ");
+            Optional.ofNullable(documentMessage.fileName()).ifPresent(text::add);
+            Optional.ofNullable(documentMessage.title()).ifPresent(text::add);
+            Optional.ofNullable(documentMessage.caption()).ifPresent(text::add);
+            return Optional.of(text.toString()).filter(entry -> !entry.isBlank());
+        }
+
+        return Optional.empty();
+    }
+
+    private static List<String> tokenize(String text) {
+        var results = new ArrayList<String>();
+        var builder = new StringBuilder();
+        for (var index = 0; index < text.length(); ) {
+            var codePoint = text.codePointAt(index);
+            index += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                builder.appendCodePoint(Character.toLowerCase(codePoint));
+                continue;
+            }
+
+            if (!builder.isEmpty()) {
+                results.add(builder.toString());
+                builder.setLength(0);
+            }
+        }
+
+        if (!builder.isEmpty()) {
+            results.add(builder.toString());
+        }
+
+        return results;
+    }
+
+    /**
+     * A message that matched a query
+     *
+     * @param chatJid          the non-null chat where the message was sent
+     * @param senderJid        the non-null sender of the message
+     * @param messageId        the non-null id of the message
+     * @param timestampSeconds the timestamp of the message
+     */
+    public record Hit(@NonNull ContactJid chatJid, @NonNull ContactJid senderJid, @NonNull String messageId,
+                      long timestampSeconds) {
+
+    }
+
+    private record Document(String chat, String sender, String id, long timestampSeconds, String[] tokens) {
+        private boolean containsPhrase(String[] phrase) {
+            outer:
+            for (var start = 0; start <= tokens.length - phrase.length; start++) {
+                for (var offset = 0; offset < phrase.length; offset++) {
+                    if (!tokens[start + offset].equals(phrase[offset])) {
+                        continue outer;
+                    }
+                }
+
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private record Clause(String[] terms, boolean prefix) {
+
+    }
+
+    private static final class Postings {
+        private static final Postings EMPTY = new Postings();
+
+        private int[] values;
+        private int size;
+
+        private Postings() {
+            this.values = new int[4];
+        }
+
+        // A document is indexed in a single pass, so a token that occurs more than once adds the same id consecutively
+        private void add(int id) {
+            if (size > 0 && values[size - 1] == id) {
+                return;
+            }
+
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1) + 1);
+            }
+
+            values[size++] = id;
+        }
+
+        private void addTo(BitSet set) {
+            for (var index = 0; index < size; index++) {
+                set.set(values[index]);
+            }
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
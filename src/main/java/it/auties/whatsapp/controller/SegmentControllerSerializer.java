@@ -0,0 +1,533 @@
+package it.auties.whatsapp.controller;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.sync.HistorySyncMessage;
+import it.auties.whatsapp.util.Smile;
+import lombok.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * A serializer that stores each session in a single segment file instead of one file per chat
+ * The segment is an append-only log of records, each made of a key, usually the name of the file that the default serializer would use, and a gzipped smile value
+ * An index of the offset of the latest record of every key is built when the segment is opened, so values can be read individually with positional reads
+ * The metadata and the messages of a chat are stored in two records, so that the messages are only decoded when they are first accessed
+ * Records that were overwritten are removed by compacting the segment in the background
+ * Phone numbers and aliases are resolved through the {@link SessionCatalog} inherited from {@link DefaultControllerSerializer}
+ */
+public class SegmentControllerSerializer extends DefaultControllerSerializer {
+    private static final String SEGMENT_FILE = "session.segment";
+    private static final String KEYS_KEY = "keys";
+    private static final String STORE_KEY = "store";
+    private static final String SEARCH_INDEX_KEY = "search";
+    private static final String CHAT_PREFIX = "chat_";
+    private static final String MESSAGES_PREFIX = "messages_";
+    private static final int HEADER_LENGTH = Integer.BYTES * 2;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final ExecutorService COMPACTION_SERVICE = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "SegmentCompaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger;
+    private final Map<Path, Segment> segments;
+    private final Map<UUID, CompletableFuture<Void>> attributeStoreSerializers;
+
+    /**
+     * Creates a provider using the specified path
+     *
+     * @param baseDirectory the non-null directory where data will be serialized
+     */
+    public SegmentControllerSerializer(@NonNull Path baseDirectory) {
+        super(baseDirectory);
+        this.logger = System.getLogger("SegmentSerializer");
+        this.segments = new ConcurrentHashMap<>();
+        this.attributeStoreSerializers = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void serializeKeys(Keys keys, boolean async) {
+        cacheMetadata(keys);
+        var segment = getSegment(keys.clientType(), keys.uuid().toString());
+        write(segment, () -> Map.of(KEYS_KEY, encode(keys)), () -> {}, async);
+    }
+
+    // Keys are small enough to be written as a whole by checkpoints
+    @Override
+    public CompletableFuture<Void> journalKeys(@NonNull Keys keys) {
+        keys.drainChanges();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void serializeStore(Store store, boolean async) {
+        cacheMetadata(store);
+        var task = attributeStoreSerializers.get(store.uuid());
+        if (task != null && !task.isDone()) {
+            return;
+        }
+
+        var segment = getSegment(store.clientType(), store.uuid().toString());
+        var chats = new ArrayList<Chat>();
+        write(segment, () -> encodeStore(store, chats), () -> onStoreFailure(store, chats), async);
+    }
+
+    private void onStoreFailure(Store store, List<Chat> chats) {
+        chats.forEach(Chat::markChanged);
+        store.searchIndex().markChanged();
+    }
+
+    // The search index is only written if it changed
+    private Map<String, byte[]> encodeStore(Store store, List<Chat> chats) {
+        var results = new LinkedHashMap<String, byte[]>();
+        results.put(STORE_KEY, encode(store));
+        if (store.indexMessages()) {
+            store.searchIndex()
+                    .consumeChanges()
+                    .ifPresent(snapshot -> results.put(SEARCH_INDEX_KEY, encode(snapshot)));
+        }
+
+        for (var chat : store.chats()) {
+            if (chat.consumeChanges(0).isEmpty()) {
+                continue;
+            }
+
+            chats.add(chat);
+            encodeChat(chat, results);
+        }
+
+        return results;
+    }
+
+    // If the messages of a chat weren't loaded, they didn't change, so only its metadata is written
+    private void encodeChat(Chat chat, Map<String, byte[]> results) {
+        if (!chat.hasLoadedMessages()) {
+            results.put(CHAT_PREFIX + chat.jid(), encode(chat.metadataSnapshot(), Chat.MetadataView.class));
+            return;
+        }
+
+        var snapshot = chat.snapshot();
+        results.put(CHAT_PREFIX + chat.jid(), encode(snapshot, Chat.MetadataView.class));
+        results.put(MESSAGES_PREFIX + chat.jid(), encode(snapshot));
+    }
+
+    private void write(Segment segment, Callable<Map<String, byte[]>> supplier, Runnable onFailure, boolean async) {
+        if (!async) {
+            writeSync(segment, supplier, onFailure);
+            return;
+        }
+
+        CompletableFuture.runAsync(() -> writeSync(segment, supplier, onFailure)).exceptionallyAsync(throwable -> {
+            logger.log(ERROR, "Cannot serialize segment", throwable);
+            return null;
+        });
+    }
+
+    private void writeSync(Segment segment, Callable<Map<String, byte[]>> supplier, Runnable onFailure) {
+        try {
+            segment.append(supplier.call());
+            if (segment.needsCompaction()) {
+                COMPACTION_SERVICE.execute(() -> compact(segment));
+            }
+        } catch (IOException exception) {
+            onFailure.run();
+            throw new UncheckedIOException("Cannot write segment", exception);
+        } catch (Exception exception) {
+            onFailure.run();
+            throw new RuntimeException("Cannot encode segment", exception);
+        }
+    }
+
+    private void compact(Segment segment) {
+        try {
+            segment.compact();
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot compact segment %s: %s".formatted(segment.file(), exception.getMessage()));
+        }
+    }
+
+    @Override
+    protected Optional<Keys> deserializeKeysFromId(@NonNull ClientType type, @NonNull String id) {
+        var result = read(getSegment(type, id), KEYS_KEY, Keys.class);
+        result.ifPresent(entry -> entry.serializer(this));
+        return result;
+    }
+
+    @Override
+    protected Optional<Store> deserializeStoreFromId(@NonNull ClientType type, @NonNull String id) {
+        var result = read(getSegment(type, id), STORE_KEY, Store.class);
+        result.ifPresent(entry -> entry.serializer(this));
+        return result;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> attributeStore(Store store) {
+        var oldTask = attributeStoreSerializers.get(store.uuid());
+        if (oldTask != null) {
+            return oldTask;
+        }
+
+        var segment = getSegment(store.clientType(), store.uuid().toString());
+        var keys = segment.keys();
+        var futures = keys.stream()
+                .filter(key -> key.startsWith(CHAT_PREFIX))
+                .map(key -> CompletableFuture.runAsync(() -> deserializeChat(store, segment, key, keys)))
+                .toArray(CompletableFuture[]::new);
+        var result = CompletableFuture.allOf(futures)
+                .thenRunAsync(() -> deserializeSearchIndex(store, segment));
+        attributeStoreSerializers.put(store.uuid(), result);
+        return result;
+    }
+
+    // Segments written before the messages were split from the metadata store the whole chat in its record, so these chats are decoded eagerly and rewritten
+    private void deserializeChat(Store store, Segment segment, String key, Set<String> keys) {
+        var chat = read(segment, key, Chat.class);
+        if (chat.isEmpty()) {
+            logger.log(ERROR, "Chat at %s is corrupted, skipping it".formatted(key));
+            return;
+        }
+
+        var messagesKey = MESSAGES_PREFIX + key.substring(CHAT_PREFIX.length());
+        if (keys.contains(messagesKey)) {
+            chat.get().messagesLoader(() -> loadMessages(store, chat.get(), segment, messagesKey));
+            chat.get().markPersisted();
+        } else {
+            chat.get().messages().forEach(message -> store.scheduleExpiration(message.messageInfo()));
+        }
+
+        store.addChatDirect(chat.get());
+    }
+
+    private Collection<HistorySyncMessage> loadMessages(Store store, Chat chat, Segment segment, String key) {
+        var storedChat = read(segment, key, Chat.class);
+        if (storedChat.isEmpty()) {
+            logger.log(ERROR, "Messages of chat %s are corrupted, resetting them".formatted(chat.jid()));
+            chat.markChanged();
+            return List.of();
+        }
+
+        var messages = storedChat.get().messages();
+        messages.forEach(message -> store.scheduleExpiration(message.messageInfo()));
+        return messages;
+    }
+
+    private void deserializeSearchIndex(Store store, Segment segment) {
+        if (!store.indexMessages()) {
+            return;
+        }
+
+        var index = read(segment, SEARCH_INDEX_KEY, MessageSearchIndex.class);
+        if (index.isPresent()) {
+            store.searchIndex(index.get());
+            return;
+        }
+
+        store.searchIndex()
+                .addPendingChats(store.chats().stream().map(Chat::jid).toList());
+    }
+
+    @Override
+    public void deleteSession(@NonNull Controller<?> controller) {
+        var segment = segments.remove(getSegmentFile(controller.clientType(), controller.uuid().toString()));
+        if (segment != null) {
+            segment.close();
+        }
+
+        super.deleteSession(controller);
+    }
+
+    private <T> Optional<T> read(Segment segment, String key, Class<T> clazz) {
+        try {
+            var value = segment.read(key);
+            if (value.isEmpty()) {
+                return Optional.empty();
+            }
+
+            try (var input = new GZIPInputStream(new ByteArrayInputStream(value.get()))) {
+                return Optional.of(Smile.readValue(input, new TypeReference<T>() {
+                    @Override
+                    public Class<T> getType() {
+                        return clazz;
+                    }
+                }));
+            }
+        } catch (IOException exception) {
+            return Optional.empty();
+        }
+    }
+
+    private byte[] encode(Object value) {
+        return encode(value, null);
+    }
+
+    private byte[] encode(Object value, Class<?> view) {
+        try (var byteArrayOutputStream = new ByteArrayOutputStream()) {
+            try (var stream = new GZIPOutputStream(byteArrayOutputStream)) {
+                if (view == null) {
+                    Smile.writeValueAsBytes(stream, value);
+                } else {
+                    Smile.writeValueAsBytes(stream, value, view);
+                }
+            }
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot encode value", exception);
+        }
+    }
+
+    private Segment getSegment(ClientType type, String id) {
+        return segments.computeIfAbsent(getSegmentFile(type, id), Segment::new);
+    }
+
+    private Path getSegmentFile(ClientType type, String id) {
+        return getSessionDirectory(type, id).resolve(SEGMENT_FILE);
+    }
+
+    /**
+     * A segment file
+     * Each record is made of the length of the key, the length of the value, the key encoded as utf-8 and the value
+     * Records are read with positional reads instead of a memory mapping, so that the size of a segment isn't limited by the size of a mapping and the file can be replaced while it's open
+     */
+    private static final class Segment {
+        private final Path file;
+        private final Map<String, Entry> index;
+        private final ReentrantReadWriteLock lock;
+        private FileChannel channel;
+        private long size;
+        private long liveBytes;
+
+        private Segment(Path file) {
+            this.file = file;
+            this.index = new HashMap<>();
+            this.lock = new ReentrantReadWriteLock();
+        }
+
+        private Path file() {
+            return file;
+        }
+
+        // Opening is deferred so that reading a session that doesn't exist doesn't create its directory
+        private boolean open(boolean create) throws IOException {
+            if (channel != null) {
+                return true;
+            }
+
+            if (!create && Files.notExists(file)) {
+                return false;
+            }
+
+            Files.createDirectories(file.getParent());
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            scan();
+            return true;
+        }
+
+        // A record can be incomplete if the process was killed while it was being appended, so the segment is truncated at the last complete record
+        private void scan() throws IOException {
+            index.clear();
+            this.liveBytes = 0;
+            var offset = 0L;
+            var fileSize = channel.size();
+            var header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (offset + HEADER_LENGTH <= fileSize) {
+                readFully(header.clear(), offset);
+                var keyLength = header.getInt(0);
+                var valueLength = header.getInt(Integer.BYTES);
+                var length = (long) HEADER_LENGTH + keyLength + valueLength;
+                if (keyLength < 0 || valueLength < 0 || offset + length > fileSize) {
+                    break;
+                }
+
+                var key = ByteBuffer.allocate(keyLength);
+                readFully(key, offset + HEADER_LENGTH);
+                index(new String(key.array(), StandardCharsets.UTF_8), new Entry(offset, keyLength, valueLength));
+                offset += length;
+            }
+
+            if (offset < fileSize) {
+                channel.truncate(offset);
+            }
+
+            this.size = offset;
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                var read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of segment %s".formatted(file));
+                }
+
+                position += read;
+            }
+        }
+
+        private void index(String key, Entry entry) {
+            var oldEntry = index.put(key, entry);
+            if (oldEntry != null) {
+                liveBytes -= oldEntry.length();
+            }
+
+            liveBytes += entry.length();
+        }
+
+        private Set<String> keys() {
+            lock.writeLock().lock();
+            try {
+                return open(false) ? Set.copyOf(index.keySet()) : Set.of();
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot open segment", exception);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private Optional<byte[]> read(String key) throws IOException {
+            lock.writeLock().lock();
+            try {
+                if (!open(false)) {
+                    return Optional.empty();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            lock.readLock().lock();
+            try {
+                var entry = index.get(key);
+                if (entry == null) {
+                    return Optional.empty();
+                }
+
+                var value = ByteBuffer.allocate(entry.valueLength());
+                readFully(value, entry.offset() + HEADER_LENGTH + entry.keyLength());
+                return Optional.of(value.array());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void append(Map<String, byte[]> values) throws IOException {
+            if (values.isEmpty()) {
+                return;
+            }
+
+            lock.writeLock().lock();
+            try {
+                open(true);
+                var offset = size;
+                var entries = new LinkedHashMap<String, Entry>();
+                var records = new ArrayList<ByteBuffer>();
+                for (var value : values.entrySet()) {
+                    var key = value.getKey().getBytes(StandardCharsets.UTF_8);
+                    var record = ByteBuffer.allocate(HEADER_LENGTH + key.length + value.getValue().length)
+                            .putInt(key.length)
+                            .putInt(value.getValue().length)
+                            .put(key)
+                            .put(value.getValue())
+                            .flip();
+                    records.add(record);
+                    entries.put(value.getKey(), new Entry(offset, key.length, value.getValue().length));
+                    offset += record.capacity();
+                }
+
+                channel.position(size);
+                var buffers = records.toArray(ByteBuffer[]::new);
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+                channel.force(false);
+                entries.forEach(this::index);
+                this.size = offset;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private boolean needsCompaction() {
+            lock.readLock().lock();
+            try {
+                var deadBytes = size - liveBytes;
+                return deadBytes >= MIN_COMPACTION_SIZE && deadBytes > liveBytes;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // The live records are copied to a new segment, which then atomically replaces the old one
+        private void compact() throws IOException {
+            lock.writeLock().lock();
+            try {
+                if (channel == null || !needsCompaction()) {
+                    return;
+                }
+
+                var temporary = file.resolveSibling(file.getFileName() + ".compact");
+                try (var output = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    var entries = index.values()
+                            .stream()
+                            .sorted(Comparator.comparingLong(Entry::offset))
+                            .toList();
+                    for (var entry : entries) {
+                        var position = entry.offset();
+                        var end = entry.offset() + entry.length();
+                        while (position < end) {
+                            position += channel.transferTo(position, end - position, output);
+                        }
+                    }
+                    output.force(false);
+                }
+
+                channel.close();
+                this.channel = null;
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                open(true);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void close() {
+            lock.writeLock().lock();
+            try {
+                if (channel != null) {
+                    channel.close();
+                    this.channel = null;
+                }
+            } catch (IOException ignored) {
+
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private record Entry(long offset, int keyLength, int valueLength) {
+            private long length() {
+                return (long) HEADER_LENGTH + keyLength + valueLength;
+            }
+        }
+    }
+}
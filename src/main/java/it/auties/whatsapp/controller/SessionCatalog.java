@@ -0,0 +1,299 @@
+package it.auties.whatsapp.controller;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import it.auties.whatsapp.model.mobile.PhoneNumber;
+import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.Smile;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * A persistent catalog of the sessions of a client type
+ * Sessions can be looked up by id, phone number or alias in constant time
+ * Lookups never block, while updates are serialized and are persisted atomically by replacing the catalog's file
+ * The catalog is read once per process and every update rewrites it as a whole, so if more than one process uses the same home directory the last writer wins:
+ * sessions created by another process, or added to the directory outside the catalog, are invisible until the catalog is rebuilt
+ */
+final class SessionCatalog {
+    private static final String CATALOG_FILE = "sessions.smile";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CORRUPTED_SUFFIX = ".corrupted";
+    private static final Logger logger = System.getLogger("SessionCatalog");
+
+    private final Path file;
+    private final Map<UUID, Entry> entries;
+    private final Map<Long, UUID> phoneNumbers;
+    private final Map<String, UUID> aliases;
+
+    private SessionCatalog(Path file) {
+        this.file = file;
+        this.entries = new ConcurrentHashMap<>();
+        this.phoneNumbers = new ConcurrentHashMap<>();
+        this.aliases = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Opens the catalog of a home directory
+     * If the catalog doesn't exist yet or can't be read, it's built from the sessions and the link files in the directory
+     * A rebuilt catalog knows the phone number and the aliases of a session only after the session is serialized again, unless they had link files
+     *
+     * @param home the non-null home directory
+     * @return a non-null catalog
+     */
+    static SessionCatalog of(@NonNull Path home) {
+        var catalog = new SessionCatalog(home.resolve(CATALOG_FILE));
+        var entries = catalog.read();
+        if (entries.isPresent()) {
+            entries.get().forEach(catalog::index);
+            return catalog;
+        }
+
+        catalog.migrate(home);
+        return catalog;
+    }
+
+    // A corrupted catalog is kept aside for inspection, as it's replaced by the rebuilt one
+    private Optional<List<Entry>> read() {
+        if (Files.notExists(file)) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(Smile.readValue(Files.readAllBytes(file), new TypeReference<>() {}));
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot read session catalog at %s, rebuilding it: %s".formatted(file, exception.getMessage()));
+            moveCorruptedCatalog();
+            return Optional.empty();
+        }
+    }
+
+    private void moveCorruptedCatalog() {
+        try {
+            Files.move(file, file.resolveSibling(CATALOG_FILE + CORRUPTED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot move corrupted session catalog at %s: %s".formatted(file, exception.getMessage()));
+        }
+    }
+
+    // Sessions used to be listed by walking the home directory, phone numbers and aliases were files containing the id of their session
+    private synchronized void migrate(Path home) {
+        try (var walker = Files.list(home)) {
+            var links = new HashMap<String, UUID>();
+            walker.forEach(path -> migrate(path, links));
+            links.forEach((name, uuid) -> {
+                var entry = entries.get(uuid);
+                if (entry == null) {
+                    return;
+                }
+
+                var phoneNumber = parsePhoneNumber(name);
+                index(phoneNumber.isPresent() ? entry.withPhoneNumber(phoneNumber.get()) : entry.withAlias(name));
+            });
+            save();
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot migrate session catalog at %s: %s".formatted(home, exception.getMessage()));
+        }
+    }
+
+    private void migrate(Path path, Map<String, UUID> links) {
+        try {
+            var name = path.getFileName().toString();
+            if (Files.isDirectory(path)) {
+                var uuid = parseId(name);
+                uuid.ifPresent(value -> index(new Entry(value, null, null, getLastModifiedTime(path))));
+                return;
+            }
+
+            if (name.startsWith(CATALOG_FILE)) {
+                return;
+            }
+
+            parseId(Files.readString(path).trim())
+                    .ifPresent(uuid -> links.put(name, uuid));
+        } catch (IOException ignored) {
+            // Not a link file
+        }
+    }
+
+    private long getLastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException exception) {
+            return 0;
+        }
+    }
+
+    private Optional<UUID> parseId(String value) {
+        try {
+            return Optional.of(UUID.fromString(value));
+        } catch (IllegalArgumentException ignored) {
+            return Optional.empty();
+        }
+    }
+
+    private Optional<Long> parsePhoneNumber(String value) {
+        try {
+            return Optional.of(Long.parseLong(value));
+        } catch (NumberFormatException ignored) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Returns the ids of the known sessions, from the least to the most recently used
+     *
+     * @return a non-null linked list
+     */
+    LinkedList<UUID> ids() {
+        return sortedEntries().map(Entry::uuid)
+                .collect(Collectors.toCollection(LinkedList::new));
+    }
+
+    /**
+     * Returns the phone numbers of the known sessions, from the least to the most recently used
+     *
+     * @return a non-null linked list
+     */
+    LinkedList<PhoneNumber> phoneNumbers() {
+        return sortedEntries().map(Entry::phoneNumber)
+                .filter(Objects::nonNull)
+                .map(PhoneNumber::ofNullable)
+                .flatMap(Optional::stream)
+                .collect(Collectors.toCollection(LinkedList::new));
+    }
+
+    private Stream<Entry> sortedEntries() {
+        return entries.values()
+                .stream()
+                .sorted(Comparator.comparingLong(Entry::lastUsedMilliseconds));
+    }
+
+    /**
+     * Returns the id of the session linked to a phone number
+     *
+     * @param phoneNumber the phone number
+     * @return a non-null optional
+     */
+    Optional<UUID> findByPhoneNumber(long phoneNumber) {
+        return Optional.ofNullable(phoneNumbers.get(phoneNumber));
+    }
+
+    /**
+     * Returns the id of the session linked to an alias
+     *
+     * @param alias the non-null alias
+     * @return a non-null optional
+     */
+    Optional<UUID> findByAlias(@NonNull String alias) {
+        return Optional.ofNullable(aliases.get(alias));
+    }
+
+    /**
+     * Adds a session to the catalog or updates its phone number and aliases
+     * The catalog is only persisted if something changed
+     *
+     * @param controller the non-null controller of the session
+     * @param used       whether the session should be marked as the most recently used one
+     */
+    synchronized void update(@NonNull Controller<?> controller, boolean used) {
+        var oldEntry = entries.get(controller.uuid());
+        var phoneNumber = controller.phoneNumber()
+                .map(PhoneNumber::number)
+                .orElse(oldEntry == null ? null : oldEntry.phoneNumber());
+        var aliases = new HashSet<>(controller.alias());
+        if (oldEntry != null) {
+            aliases.addAll(oldEntry.aliases());
+        }
+        var lastUsed = used || oldEntry == null ? Clock.nowMilliseconds() : oldEntry.lastUsedMilliseconds();
+        var newEntry = new Entry(controller.uuid(), phoneNumber, aliases, lastUsed);
+        if (newEntry.equals(oldEntry)) {
+            return;
+        }
+
+        index(newEntry);
+        save();
+    }
+
+    /**
+     * Removes a session from the catalog
+     *
+     * @param uuid the non-null id of the session
+     */
+    synchronized void remove(@NonNull UUID uuid) {
+        var entry = entries.remove(uuid);
+        if (entry == null) {
+            return;
+        }
+
+        phoneNumbers.values().removeIf(uuid::equals);
+        aliases.values().removeIf(uuid::equals);
+        save();
+    }
+
+    private void index(Entry entry) {
+        var oldEntry = entries.put(entry.uuid(), entry);
+        if (oldEntry != null && oldEntry.phoneNumber() != null && !oldEntry.phoneNumber().equals(entry.phoneNumber())) {
+            phoneNumbers.remove(oldEntry.phoneNumber(), entry.uuid());
+        }
+        if (entry.phoneNumber() != null) {
+            phoneNumbers.put(entry.phoneNumber(), entry.uuid());
+        }
+        entry.aliases().forEach(alias -> aliases.put(alias, entry.uuid()));
+    }
+
+    // The catalog is written to a temporary file that atomically replaces the old one, so a crash never leaves a partial catalog
+    private void save() {
+        var temp = file.resolveSibling(CATALOG_FILE + TEMP_SUFFIX);
+        try {
+            var data = Smile.writeValueAsBytes(new ArrayList<>(entries.values()));
+            try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                var buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            logger.log(WARNING, "Cannot save session catalog at %s: %s".formatted(file, exception.getMessage()));
+        }
+    }
+
+    /**
+     * An entry of the catalog
+     *
+     * @param uuid                 the non-null id of the session
+     * @param phoneNumber          the phone number of the session, if known
+     * @param aliases              the non-null aliases of the session
+     * @param lastUsedMilliseconds the last time the session was used
+     */
+    record Entry(@NonNull UUID uuid, Long phoneNumber, Set<String> aliases, long lastUsedMilliseconds) {
+        Entry {
+            aliases = Set.copyOf(Objects.requireNonNullElseGet(aliases, Set::of));
+        }
+
+        private Entry withPhoneNumber(long phoneNumber) {
+            return new Entry(uuid, phoneNumber, aliases, lastUsedMilliseconds);
+        }
+
+        private Entry withAlias(String alias) {
+            var aliases = new HashSet<>(aliases());
+            aliases.add(alias);
+            return new Entry(uuid, phoneNumber, aliases, lastUsedMilliseconds);
+        }
+    }
+}
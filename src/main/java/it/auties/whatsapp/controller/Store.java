@@ -1,6 +1,8 @@
 package it.auties.whatsapp.controller;
 
+import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonView;
 import it.auties.whatsapp.api.*;
 import it.auties.whatsapp.crypto.AesGcm;
 import it.auties.whatsapp.crypto.Hkdf;
@@ -17,6 +19,7 @@ import it.auties.whatsapp.model.info.ContextInfo;
 import it.auties.whatsapp.model.info.MessageInfo;
 import it.auties.whatsapp.model.media.MediaConnection;
 import it.auties.whatsapp.model.message.model.ContextualMessage;
+import it.auties.whatsapp.model.message.model.KeepInChatType;
 import it.auties.whatsapp.model.message.model.Message;
 import it.auties.whatsapp.model.message.model.MessageKey;
 import it.auties.whatsapp.model.message.standard.PollCreationMessage;
@@ -27,6 +30,8 @@ import it.auties.whatsapp.model.poll.PollUpdate;
 import it.auties.whatsapp.model.poll.PollUpdateEncryptedOptions;
 import it.auties.whatsapp.model.privacy.PrivacySettingEntry;
 import it.auties.whatsapp.model.privacy.PrivacySettingType;
+import it.auties.whatsapp.model.search.MessageSearchQuery;
+import it.auties.whatsapp.model.exchange.MessageSendRequest;
 import it.auties.whatsapp.model.exchange.Node;
 import it.auties.whatsapp.model.exchange.ReplyHandler;
 import it.auties.whatsapp.socket.Request;
@@ -61,6 +66,31 @@ import java.util.stream.Stream;
 @Accessors(fluent = true, chain = true)
 @SuppressWarnings({"unused", "UnusedReturnValue"})
 public final class Store extends Controller<Store> {
+    /**
+     * The duration of a status update
+     */
+    private static final Duration STATUS_DURATION = Duration.ofDays(1);
+
+    /**
+     * The precision used to expire messages
+     */
+    private static final Duration EXPIRATION_TICK = Duration.ofMinutes(1);
+
+    /**
+     * The number of ticks in a rotation of the expiration wheel
+     */
+    private static final int EXPIRATION_BUCKETS = 1440;
+
+    /**
+     * The time after which the retry attempts of a message are forgotten
+     */
+    private static final Duration RETRY_WINDOW = Duration.ofMinutes(10);
+
+    /**
+     * The default time after which a reply handler that wasn't fulfilled is removed and its future fails
+     */
+    private static final Duration REPLY_TIMEOUT = Duration.ofHours(1);
+
     /**
      * The version used by this session
      */
@@ -212,6 +242,7 @@ public final class Store extends Controller<Store> {
      */
     @NonNull
     @Default
+    @JsonView(ContactsView.class)
     private ConcurrentHashMap<ContactJid, Contact> contacts = new ConcurrentHashMap<>();
 
     /**
@@ -259,12 +290,28 @@ public final class Store extends Controller<Store> {
     private ConcurrentHashMap<String, Request> requests = new ConcurrentHashMap<>();
 
     /**
-     * The non-null list of replies waiting to be fulfilled
+     * The non-null map of replies waiting to be fulfilled, indexed by the id of the quoted message
      */
     @NonNull
     @JsonIgnore
     @Default
-    private KeySetView<ReplyHandler, Boolean> replyHandlers = ConcurrentHashMap.newKeySet();
+    private ConcurrentHashMap<String, ReplyHandler> replyHandlers = new ConcurrentHashMap<>();
+
+    /**
+     * The non-null map of retry attempts for messages sent by this session, indexed by message id
+     */
+    @NonNull
+    @JsonIgnore
+    @Default
+    private ConcurrentHashMap<String, MessageRetry> retries = new ConcurrentHashMap<>();
+
+    /**
+     * The non-null queue of messages sent by this session that weren't acknowledged by Whatsapp yet, indexed by message id in the order they were sent
+     * Accesses are synchronized on this store
+     */
+    @NonNull
+    @Default
+    private LinkedHashMap<String, MessageSendRequest> outboundMessages = new LinkedHashMap<>();
 
     /**
      * The non-null list of listeners
@@ -378,6 +425,96 @@ public final class Store extends Controller<Store> {
     @Default
     private boolean checkPatchMacs = false;
 
+    /**
+     * Whether the text, captions and document names of messages should be indexed for local search
+     */
+    @Getter
+    @Setter
+    @Default
+    private boolean indexMessages = false;
+
+    /**
+     * The local full-text index of the messages of this session.
+     * It's persisted separately by the serializer.
+     */
+    @NonNull
+    @JsonIgnore
+    @Getter
+    @Setter
+    @Default
+    private MessageSearchIndex searchIndex = new MessageSearchIndex();
+
+    /**
+     * Whether ephemeral messages and status updates should be removed from memory when they expire.
+     * When enabled, the messages of every chat are loaded after the session is restored, as their expirations are only known once they are decoded.
+     */
+    @Getter
+    @Setter
+    @Default
+    private boolean expireMessages = false;
+
+    /**
+     * The policy used to persist this session in the background while it's connected
+     */
+    @NonNull
+    @Getter
+    @Setter
+    @Default
+    private CheckpointPolicy checkpointPolicy = CheckpointPolicy.ofDefault();
+
+    /**
+     * The policy used to coalesce the receipts sent by this session
+     */
+    @NonNull
+    @Getter
+    @Setter
+    @Default
+    private ReceiptPolicy receiptPolicy = ReceiptPolicy.ofDefault();
+
+    /**
+     * The policy used to reuse the medias uploaded by this session
+     */
+    @NonNull
+    @Getter
+    @Setter
+    @Default
+    private UploadCachePolicy uploadCachePolicy = UploadCachePolicy.disabled();
+
+    /**
+     * The policy used to schedule the nodes sent by this session
+     */
+    @NonNull
+    @Getter
+    @Setter
+    @Default
+    private TrafficPolicy trafficPolicy = TrafficPolicy.ofDefault();
+
+    /**
+     * The policy used to prepare the sessions of recent chats after this session logs in
+     */
+    @NonNull
+    @Getter
+    @Setter
+    @Default
+    private WarmupPolicy warmupPolicy = WarmupPolicy.disabled();
+
+    /**
+     * The non-null cache of the medias uploaded by this session
+     */
+    @NonNull
+    @JsonIgnore
+    @Getter
+    @Default
+    private MediaUploadCache uploadCache = new MediaUploadCache();
+
+    /**
+     * The non-null wheel used to track when ephemeral messages and status updates expire
+     */
+    @NonNull
+    @JsonIgnore
+    @Default
+    private TimingWheel<MessageInfo> expirations = new TimingWheel<>(EXPIRATION_TICK, EXPIRATION_BUCKETS);
+
     /**
      * Returns the store saved in memory or constructs a new clean instance
      *
@@ -839,12 +976,115 @@ public final class Store extends Controller<Store> {
         if (contextualMessageId == null) {
             return false;
         }
-        var result = replyHandlers.stream().filter(entry -> entry.id().equals(contextualMessageId)).findFirst();
-        result.ifPresent(reply -> {
-            replyHandlers.remove(reply);
-            reply.future().complete(response);
-        });
-        return result.isPresent();
+        var result = replyHandlers.remove(contextualMessageId);
+        if (result == null) {
+            return false;
+        }
+        result.future().complete(response);
+        return true;
+    }
+
+    /**
+     * Returns the number of replies waiting to be fulfilled
+     *
+     * @return a non-negative number
+     */
+    public int pendingRepliesCount() {
+        return replyHandlers.size();
+    }
+
+    /**
+     * Returns the number of requests waiting for a response
+     *
+     * @return a non-negative number
+     */
+    public int pendingRequestsCount() {
+        return requests.size();
+    }
+
+    /**
+     * Returns the number of retry attempts for a message sent by this session
+     *
+     * @param id the non-null id of the message
+     * @return a non-negative number
+     */
+    public int findRetries(@NonNull String id) {
+        var result = retries.get(id);
+        return result == null ? 0 : result.attempts();
+    }
+
+    /**
+     * Registers a retry attempt for a message sent by this session
+     *
+     * @param id the non-null id of the message
+     * @return the number of attempts, including this one
+     */
+    public int addRetry(@NonNull String id) {
+        return retries.compute(id, (key, value) -> value == null ? new MessageRetry(1, Clock.nowSeconds()) : new MessageRetry(value.attempts() + 1, value.timestampSeconds()))
+                .attempts();
+    }
+
+    /**
+     * Forgets the retry attempts of messages that were first retried before the retry window
+     */
+    public void removeExpiredRetries() {
+        var deadline = Clock.nowSeconds() - RETRY_WINDOW.toSeconds();
+        retries.values().removeIf(entry -> entry.timestampSeconds() < deadline);
+    }
+
+    /**
+     * Returns the number of messages whose retry attempts are being tracked
+     *
+     * @return a non-negative number
+     */
+    public int retriesCount() {
+        return retries.size();
+    }
+
+    /**
+     * Queues a message that should be sent by this session
+     * If a message with the same id is already queued, this method has no effect
+     *
+     * @param request the non-null request of the message
+     * @return whether the message was queued
+     */
+    public synchronized boolean addOutboundMessage(@NonNull MessageSendRequest request) {
+        return outboundMessages.putIfAbsent(request.info().id(), request) == null;
+    }
+
+    /**
+     * Queries the queued message whose id is equal to {@code id}
+     *
+     * @param id the id to search, can be null
+     * @return a non-null optional
+     */
+    public synchronized Optional<MessageSendRequest> findOutboundMessage(String id) {
+        return id == null ? Optional.empty() : Optional.ofNullable(outboundMessages.get(id));
+    }
+
+    /**
+     * Removes a queued message
+     *
+     * @param id the id of the message, can be null
+     * @return the removed request, if any
+     */
+    public synchronized Optional<MessageSendRequest> removeOutboundMessage(String id) {
+        return id == null ? Optional.empty() : Optional.ofNullable(outboundMessages.remove(id));
+    }
+
+    /**
+     * Returns an immutable list of the queued messages, in the order they were sent
+     *
+     * @return a non-null list
+     */
+    public synchronized List<MessageSendRequest> outboundMessages() {
+        return List.copyOf(outboundMessages.values());
+    }
+
+    // The queue is serialized from a copy, so the store can be serialized while messages are sent
+    @JsonGetter("outboundMessages")
+    private synchronized LinkedHashMap<String, MessageSendRequest> outboundMessagesSnapshot() {
+        return new LinkedHashMap<>(outboundMessages);
     }
 
     /**
@@ -879,6 +1119,7 @@ public final class Store extends Controller<Store> {
             }
             joinMessages(chat, oldChat);
         }
+        markChanged();
         return addChatDirect(chat);
     }
 
@@ -913,7 +1154,90 @@ public final class Store extends Controller<Store> {
      * @return the chat that was deleted wrapped by an optional
      */
     public Optional<Chat> removeChat(@NonNull ContactJid chatJid) {
-        return Optional.ofNullable(chats.remove(chatJid));
+        var result = Optional.ofNullable(chats.remove(chatJid));
+        if (indexMessages) {
+            searchIndex.remove(chatJid);
+        }
+        markChanged();
+        return result;
+    }
+
+    /**
+     * Marks a message as updated so that the serializer persists it with its chat
+     *
+     * @param info the non-null message that was updated
+     */
+    public void markMessageChanged(@NonNull MessageInfo info) {
+        findChatByJid(info.chatJid())
+                .ifPresent(chat -> chat.markMessageChanged(info));
+        markChanged();
+    }
+
+    /**
+     * Adds a message to the local search index if indexing is enabled
+     *
+     * @param info the non-null message to index
+     * @return whether the message was indexed
+     */
+    public boolean indexMessage(@NonNull MessageInfo info) {
+        return indexMessages && searchIndex.add(info);
+    }
+
+    /**
+     * Removes a message from the local search index
+     *
+     * @param info the non-null message to remove
+     * @return whether the message was removed
+     */
+    public boolean unindexMessage(@NonNull MessageInfo info) {
+        return indexMessages && searchIndex.remove(info);
+    }
+
+    /**
+     * Searches the messages of this session using the local search index.
+     * If indexing is disabled, an empty list is returned.
+     *
+     * @param query the non-null query
+     * @return a non-null list of messages, sorted from the newest to the oldest
+     */
+    public List<MessageInfo> searchMessages(@NonNull MessageSearchQuery query) {
+        if (!indexMessages) {
+            return List.of();
+        }
+
+        searchIndex.pendingChats().forEach(this::indexPendingChat);
+        var hits = searchIndex.search(query);
+        var messages = new HashMap<ContactJid, Map<String, MessageInfo>>();
+        hits.stream()
+                .collect(Collectors.groupingBy(MessageSearchIndex.Hit::chatJid, Collectors.mapping(MessageSearchIndex.Hit::messageId, Collectors.toUnmodifiableSet())))
+                .forEach((chatJid, ids) -> messages.put(chatJid, findMessagesById(chatJid, ids)));
+        var results = new ArrayList<MessageInfo>();
+        for (var hit : hits) {
+            var message = messages.get(hit.chatJid()).get(hit.messageId());
+            if (message == null) {
+                searchIndex.remove(hit);
+                continue;
+            }
+
+            results.add(message);
+        }
+
+        return Collections.unmodifiableList(results);
+    }
+
+    private void indexPendingChat(ContactJid chatJid) {
+        findChatByJid(chatJid).ifPresent(chat -> chat.messages().forEach(message -> searchIndex.add(message.messageInfo())));
+        searchIndex.removePendingChat(chatJid);
+    }
+
+    // Every hit of a chat is resolved by scanning its messages once, documents whose message isn't in the chat anymore are dropped
+    private Map<String, MessageInfo> findMessagesById(ContactJid chatJid, Set<String> ids) {
+        return findChatByJid(chatJid)
+                .stream()
+                .flatMap(chat -> chat.messages().stream())
+                .map(HistorySyncMessage::messageInfo)
+                .filter(message -> ids.contains(message.id()))
+                .collect(Collectors.toMap(MessageInfo::id, Function.identity(), (first, second) -> first));
     }
 
     /**
@@ -968,9 +1292,95 @@ public final class Store extends Controller<Store> {
                 .map(ContextualMessage::contextInfo)
                 .ifPresent(this::attributeContext);
         processMessage(info);
+        scheduleExpiration(info);
         return info;
     }
 
+    /**
+     * Schedules the removal of a message if it's an ephemeral message or a status update
+     *
+     * @param info the non-null message to schedule
+     */
+    public void scheduleExpiration(@NonNull MessageInfo info) {
+        if (!expireMessages) {
+            return;
+        }
+
+        var expiration = findExpirationSeconds(info);
+        if (expiration.isEmpty()) {
+            return;
+        }
+
+        expirations.schedule(info, TimeUnit.SECONDS.toMillis(expiration.getAsLong()));
+    }
+
+    private OptionalLong findExpirationSeconds(MessageInfo info) {
+        if (info.chatJid().type() == ContactJid.Type.STATUS) {
+            return OptionalLong.of(info.timestampSeconds() + STATUS_DURATION.toSeconds());
+        }
+
+        var start = info.ephemeralStartTimestamp() > 0 ? info.ephemeralStartTimestamp() : info.timestampSeconds();
+        if (info.ephemeralDuration() > 0) {
+            return OptionalLong.of(start + info.ephemeralDuration());
+        }
+
+        var contextExpiration = info.message()
+                .contentWithContext()
+                .map(ContextualMessage::contextInfo)
+                .map(ContextInfo::ephemeralExpiration)
+                .filter(expiration -> expiration > 0);
+        if (contextExpiration.isPresent()) {
+            return OptionalLong.of(start + contextExpiration.get());
+        }
+
+        return findChatByJid(info.chatJid())
+                .filter(Chat::isEphemeral)
+                .filter(chat -> info.timestampSeconds() >= chat.ephemeralMessagesToggleTime().toEpochSecond())
+                .map(chat -> OptionalLong.of(start + chat.ephemeralMessageDuration().period().toSeconds()))
+                .orElseGet(OptionalLong::empty);
+    }
+
+    /**
+     * Removes all the scheduled expirations, so that they can be scheduled again
+     */
+    public void clearExpirations() {
+        expirations.clear();
+    }
+
+    /**
+     * Removes from memory the ephemeral messages and status updates that have expired
+     *
+     * @return a non-null list containing the messages that were removed
+     */
+    public List<MessageInfo> removeExpiredMessages() {
+        return expirations.advance(Clock.nowMilliseconds())
+                .stream()
+                .filter(this::removeExpiredMessage)
+                .toList();
+    }
+
+    private boolean removeExpiredMessage(MessageInfo info) {
+        var kept = info.keepInChat()
+                .filter(entry -> entry.keepType() == KeepInChatType.KEEP_FOR_ALL)
+                .isPresent();
+        if (kept) {
+            return false;
+        }
+
+        if (info.chatJid().type() == ContactJid.Type.STATUS) {
+            var wrapper = status.get(info.senderJid());
+            return wrapper != null && wrapper.removeIf(entry -> Objects.equals(entry.id(), info.id()));
+        }
+
+        var result = findChatByJid(info.chatJid())
+                .map(chat -> chat.removeMessage(info))
+                .orElse(false);
+        if (result) {
+            unindexMessage(info);
+        }
+        return result;
+    }
+
     private MessageKey attributeSender(MessageInfo info, ContactJid senderJid) {
         var contact = findContactByJid(senderJid).orElseGet(() -> addContact(Contact.ofJid(senderJid)));
         return info.sender(contact).key().sender(contact);
@@ -1050,12 +1460,16 @@ public final class Store extends Controller<Store> {
         pollUpdateMessage.votes(selectedOptions);
         var update = new PollUpdate(info.key(), pollVoteMessage, Clock.nowMilliseconds());
         info.pollUpdates().add(update);
+        markMessageChanged(originalPollInfo);
     }
 
     private void handleReactionMessage(MessageInfo info, ReactionMessage reactionMessage) {
         info.ignore(true);
         findMessageByKey(reactionMessage.key())
-                .ifPresent(message -> message.reactions().add(reactionMessage));
+                .ifPresent(message -> {
+                    message.reactions().add(reactionMessage);
+                    markMessageChanged(message);
+                });
     }
 
     /**
@@ -1175,17 +1589,35 @@ public final class Store extends Controller<Store> {
         }
 
         requests.put(request.id(), request);
+        request.future().whenComplete((result, error) -> requests.remove(request.id(), request));
         return request.future();
     }
 
     /**
-     * Adds a replay handler to this store
+     * Adds a replay handler to this store that times out after an hour
      *
      * @param reply the non-null reply handler to add
      * @return the non-null completable result of the reply handler
      */
     public CompletableFuture<MessageInfo> addPendingReply(@NonNull ReplyHandler reply) {
-        replyHandlers.add(reply);
+        return addPendingReply(reply, REPLY_TIMEOUT);
+    }
+
+    /**
+     * Adds a replay handler to this store
+     * If no reply is received before the timeout, the handler is removed and its future fails with a {@link TimeoutException}
+     *
+     * @param reply   the non-null reply handler to add
+     * @param timeout the non-null time to wait for a reply
+     * @return the non-null completable result of the reply handler
+     */
+    public CompletableFuture<MessageInfo> addPendingReply(@NonNull ReplyHandler reply, @NonNull Duration timeout) {
+        var known = replyHandlers.putIfAbsent(reply.id(), reply);
+        if (known != null) {
+            return known.future();
+        }
+        reply.future().whenComplete((result, error) -> replyHandlers.remove(reply.id(), reply));
+        reply.future().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
         return reply.future();
     }
 
@@ -1482,6 +1914,24 @@ public final class Store extends Controller<Store> {
         return callId == null ? Optional.empty() : Optional.ofNullable(calls.get(callId));
     }
 
+    private record MessageRetry(int attempts, long timestampSeconds) {
+
+    }
+
+    /**
+     * The view that includes the contacts of a store
+     */
+    public interface ContactsView {
+
+    }
+
+    /**
+     * The view that excludes the contacts of a store, used by serializers that persist contacts separately
+     */
+    public interface MetadataView {
+
+    }
+
     public static abstract class StoreBuilder<C extends Store, B extends StoreBuilder<C, B>> extends ControllerBuilder<Store, C, B> {
         public StoreBuilder<C, B> proxy(URI proxy) {
             if(proxy != null && proxy.getUserInfo() != null){
@@ -12,6 +12,7 @@ public record GroupBuilder(@NonNull Keys keys) {
         var record = keys.findSenderKeyByName(name);
         if (record.isEmpty()) {
             record.addState(KeyHelper.senderKeyId(), 0, KeyHelper.senderKey(), SignalKeyPair.random());
+            keys.markSenderKeyChanged(name);
         }
         var state = record.findState();
         var message = new SignalDistributionMessage(state.id(), state.chainKey().iteration(), state.chainKey()
@@ -22,5 +23,6 @@ public record GroupBuilder(@NonNull Keys keys) {
     public void createIncoming(SenderKeyName name, SignalDistributionMessage message) {
         var record = keys.findSenderKeyByName(name);
         record.addState(message.id(), message.iteration(), message.chainKey(), message.signingKey());
+        keys.markSenderKeyChanged(name);
     }
 }
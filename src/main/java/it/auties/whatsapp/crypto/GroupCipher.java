@@ -23,6 +23,7 @@ public record GroupCipher(@NonNull SenderKeyName name, @NonNull Keys keys) {
                 .privateKey());
         var next = currentState.chainKey().next();
         currentState.chainKey(next);
+        keys.markSenderKeyChanged(name);
         return new CipheredMessageResult(senderKeyMessage.serialized(), Signal.SKMSG);
     }
 
@@ -33,6 +34,7 @@ public record GroupCipher(@NonNull SenderKeyName name, @NonNull Keys keys) {
         for (var senderKeyState : senderKeyStates) {
             try {
                 var senderKey = getSenderKey(senderKeyState, senderKeyMessage.iteration());
+                keys.markSenderKeyChanged(name);
                 return AesCbc.decrypt(senderKey.iv(), senderKeyMessage.cipherText(), senderKey.cipherKey());
             } catch (Throwable ignored) {
             }
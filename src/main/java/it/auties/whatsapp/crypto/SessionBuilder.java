@@ -42,6 +42,7 @@ public record SessionBuilder(@NonNull SessionAddress address, @NonNull Keys keys
                 .map(Session::closeCurrentState)
                 .orElseGet(this::createSession)
                 .addState(state);
+        keys.markSessionChanged(address);
     }
 
     public SessionState createState(boolean isInitiator, SignalKeyPair ourEphemeralKey, SignalKeyPair ourSignedKey, byte[] theirIdentityPubKey, byte[] theirEphemeralPubKey, byte[] theirSignedPubKey, int registrationId, int version) {
@@ -124,5 +125,6 @@ public record SessionBuilder(@NonNull SessionAddress address, @NonNull Keys keys
                 message.version()
         );
         session.addState(nextState);
+        keys.markSessionChanged(address);
     }
 }
@@ -42,6 +42,7 @@ public record SessionCipher(@NonNull SessionAddress address, @NonNull Keys keys)
         var encrypted = AesCbc.encrypt(iv, data, secrets[0]);
         var encryptedMessageType = getMessageType(currentState);
         var encryptedMessage = encrypt(currentState, chain, secrets[1], encrypted);
+        keys.markSessionChanged(sessionAddress());
         return new CipheredMessageResult(encryptedMessage, encryptedMessageType);
     }
 
@@ -147,6 +148,7 @@ public record SessionCipher(@NonNull SessionAddress address, @NonNull Keys keys)
         var iv = Arrays.copyOf(secrets[2], IV_LENGTH);
         var plaintext = AesCbc.decrypt(iv, message.ciphertext(), secrets[0]);
         state.pendingPreKey(null);
+        keys.markSessionChanged(sessionAddress());
         return plaintext;
     }
 
@@ -179,6 +181,10 @@ public record SessionCipher(@NonNull SessionAddress address, @NonNull Keys keys)
         state.rootKey(masterKey[0]);
     }
 
+    private SessionAddress sessionAddress() {
+        return keys.hasSession(address) ? address : new SessionAddress(address.name(), 0);
+    }
+
     private Session loadSession() {
         return loadSession(() -> keys.findSessionByAddress(new SessionAddress(address.name(), 0)));
     }
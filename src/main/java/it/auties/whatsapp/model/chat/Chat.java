@@ -1,9 +1,12 @@
 package it.auties.whatsapp.model.chat;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonSetter;
+import com.fasterxml.jackson.annotation.JsonView;
 import it.auties.protobuf.base.ProtobufMessage;
 import it.auties.protobuf.base.ProtobufName;
 import it.auties.protobuf.base.ProtobufProperty;
+import it.auties.whatsapp.crypto.Sha256;
 import it.auties.whatsapp.api.Whatsapp;
 import it.auties.whatsapp.listener.Listener;
 import it.auties.whatsapp.model.contact.Contact;
@@ -14,17 +17,21 @@ import it.auties.whatsapp.model.info.MessageInfo;
 import it.auties.whatsapp.model.message.model.MessageCategory;
 import it.auties.whatsapp.model.sync.HistorySyncMessage;
 import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.Smile;
 import lombok.*;
 import lombok.Builder.Default;
 import lombok.experimental.Accessors;
 import lombok.extern.jackson.Jacksonized;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static it.auties.protobuf.base.ProtobufType.*;
@@ -39,11 +46,16 @@ import static java.util.Objects.requireNonNullElse;
 @SuppressWarnings({"UnusedReturnValue", "unused"})
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
 @Data
-@Builder
+@Builder(toBuilder = true)
 @Jacksonized
 @Accessors(fluent = true)
 @ProtobufName("Conversation")
 public final class Chat implements ProtobufMessage, ContactJidProvider {
+    /**
+     * The maximum number of updated messages tracked before the whole chat is marked as changed
+     */
+    private static final int MAX_TRACKED_MESSAGES = 1024;
+
     /**
      * The unique id of this chat
      */
@@ -86,6 +98,7 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
     @ProtobufProperty(index = 2, type = MESSAGE, implementation = HistorySyncMessage.class, repeated = true)
     @NonNull
     @Default
+    @JsonView(MessagesView.class)
     private final ConcurrentLinkedDeque<HistorySyncMessage> historySyncMessages = new ConcurrentLinkedDeque<>();
 
     /**
@@ -337,6 +350,13 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
     @NonNull
     private Set<ContactJid> participantsPreKeys = new HashSet<>();
 
+    /**
+     * The changes made to this chat since it was last persisted
+     */
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    private final PersistenceState persistenceState = new PersistenceState();
+
     /**
      * Constructs a chat from a jid
      *
@@ -421,8 +441,8 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
             return List.of();
         }
 
-        var iterator = historySyncMessages.iterator();
-        return historySyncMessages.stream()
+        var iterator = historySyncMessages().iterator();
+        return historySyncMessages().stream()
                 .limit(unreadMessagesCount())
                 .map(HistorySyncMessage::messageInfo)
                 .toList();
@@ -508,7 +528,7 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return an optional
      */
     public Optional<MessageInfo> newestMessage() {
-        return Optional.ofNullable(historySyncMessages.peekLast())
+        return Optional.ofNullable(historySyncMessages().peekLast())
                 .map(HistorySyncMessage::messageInfo);
     }
 
@@ -518,7 +538,7 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return an optional
      */
     public Optional<MessageInfo> oldestMessage() {
-        return Optional.ofNullable(historySyncMessages.peekFirst())
+        return Optional.ofNullable(historySyncMessages().peekFirst())
                 .map(HistorySyncMessage::messageInfo);
     }
 
@@ -595,7 +615,7 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
     }
 
     private Optional<MessageInfo> findMessageBy(Function<MessageInfo, Boolean> filter, boolean newest) {
-        var descendingIterator = newest ? historySyncMessages.descendingIterator() : historySyncMessages.iterator();
+        var descendingIterator = newest ? historySyncMessages().descendingIterator() : historySyncMessages().iterator();
         while (descendingIterator.hasNext()){
             var info = descendingIterator.next().messageInfo();
             if(filter.apply(info)){
@@ -613,7 +633,7 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return a non-null list of messages
      */
     public Collection<MessageInfo> starredMessages() {
-        return historySyncMessages.stream()
+        return historySyncMessages().stream()
                 .map(HistorySyncMessage::messageInfo)
                 .filter(MessageInfo::starred)
                 .toList();
@@ -712,7 +732,8 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @param newMessages the non-null messages to add
      */
     public void addMessages(@NonNull Collection<HistorySyncMessage> newMessages) {
-        historySyncMessages.addAll(newMessages);
+        historySyncMessages().addAll(newMessages);
+        markChanged();
     }
 
     /**
@@ -721,7 +742,8 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @param oldMessages the non-null messages to add
      */
     public void addOldMessages(@NonNull Collection<HistorySyncMessage> oldMessages) {
-        oldMessages.forEach(historySyncMessages::addFirst);
+        oldMessages.forEach(historySyncMessages()::addFirst);
+        markChanged();
     }
 
     /**
@@ -731,12 +753,13 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return whether the message was added
      */
     public boolean addNewMessage(@NonNull MessageInfo info) {
-        var sync = new HistorySyncMessage(info, historySyncMessages.size());
-        if (historySyncMessages.contains(sync)) {
+        var sync = new HistorySyncMessage(info, historySyncMessages().size());
+        if (historySyncMessages().contains(sync)) {
             return false;
         }
-        historySyncMessages.add(sync);
+        historySyncMessages().add(sync);
         updateChatTimestamp(info);
+        markMessageChanged(info);
         return true;
     }
 
@@ -747,7 +770,8 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return whether the message was added
      */
     public boolean addOldMessage(@NonNull HistorySyncMessage info) {
-        historySyncMessages.addFirst(info);
+        historySyncMessages().addFirst(info);
+        markChanged();
         return true;
     }
 
@@ -758,7 +782,10 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return whether the message was removed
      */
     public boolean removeMessage(@NonNull MessageInfo info) {
-        var result = historySyncMessages.removeIf(entry -> Objects.equals(entry.messageInfo().id(), info.id()));
+        var result = historySyncMessages().removeIf(entry -> Objects.equals(entry.messageInfo().id(), info.id()));
+        if (result) {
+            markChanged();
+        }
         refreshChatTimestamp();
         return result;
     }
@@ -770,7 +797,10 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return whether the message was removed
      */
     public boolean removeMessage(@NonNull Predicate<? super MessageInfo> predicate) {
-        var result = historySyncMessages.removeIf(entry -> predicate.test(entry.messageInfo()));
+        var result = historySyncMessages().removeIf(entry -> predicate.test(entry.messageInfo()));
+        if (result) {
+            markChanged();
+        }
         refreshChatTimestamp();
         return result;
     }
@@ -796,7 +826,182 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * Removes all messages from the chat
      */
     public void removeMessages() {
-        historySyncMessages.clear();
+        historySyncMessages().clear();
+        markChanged();
+    }
+
+    /**
+     * Marks a message in this chat as updated, for example because its status changed.
+     * Updated messages are persisted incrementally by the serializer.
+     *
+     * @param info the non-null message that was updated
+     */
+    public void markMessageChanged(@NonNull MessageInfo info) {
+        synchronized (persistenceState) {
+            if (persistenceState.snapshot) {
+                return;
+            }
+
+            if (persistenceState.changedMessages.size() >= MAX_TRACKED_MESSAGES) {
+                persistenceState.snapshot = true;
+                persistenceState.changedMessages.clear();
+                return;
+            }
+
+            persistenceState.changedMessages.add(info);
+        }
+    }
+
+    /**
+     * Marks this chat as changed, so that it will be persisted as a whole by the serializer
+     */
+    public void markChanged() {
+        synchronized (persistenceState) {
+            persistenceState.snapshot = true;
+            persistenceState.changedMessages.clear();
+        }
+    }
+
+    /**
+     * Marks the current state of this chat as persisted
+     */
+    public void markPersisted() {
+        synchronized (persistenceState) {
+            persistenceState.reset(metadataDigest(), timestampSeconds, unreadMessagesCount);
+        }
+    }
+
+    /**
+     * Returns the changes made to this chat since it was last persisted and marks them as persisted.
+     * If the chat was never persisted, if one of its fields other than its messages, timestamp and unread count changed,
+     * if messages were removed or prepended or if too many messages were already persisted incrementally, a snapshot is returned.
+     *
+     * @param maxMessages the maximum number of messages that can be persisted incrementally before a snapshot is required
+     * @return a non-null optional, empty if nothing changed
+     */
+    public Optional<ChatChanges> consumeChanges(int maxMessages) {
+        synchronized (persistenceState) {
+            var metadataDigest = metadataDigest();
+            var messages = persistenceState.changedMessages.stream()
+                    .collect(Collectors.toMap(MessageInfo::id, Function.identity(), (first, second) -> second, LinkedHashMap::new))
+                    .values();
+            if (!persistenceState.persisted
+                    || persistenceState.snapshot
+                    || !Arrays.equals(persistenceState.metadataDigest, metadataDigest)
+                    || persistenceState.persistedMessages + messages.size() > maxMessages) {
+                persistenceState.reset(metadataDigest, timestampSeconds, unreadMessagesCount);
+                return Optional.of(ChatChanges.snapshot(this));
+            }
+
+            if (messages.isEmpty()
+                    && persistenceState.timestampSeconds == timestampSeconds
+                    && persistenceState.unreadMessagesCount == unreadMessagesCount) {
+                return Optional.empty();
+            }
+
+            persistenceState.changedMessages.clear();
+            persistenceState.persistedMessages += messages.size();
+            persistenceState.timestampSeconds = timestampSeconds;
+            persistenceState.unreadMessagesCount = unreadMessagesCount;
+            return Optional.of(ChatChanges.messages(this, new ArrayList<>(messages)));
+        }
+    }
+
+    // The digest of the encoded metadata covers every field, including new ones and the ones that are changed in place, without a collision-prone hash.
+    // Presences aren't persisted as changes, and the timestamp and unread count are journaled with the messages.
+    private byte[] metadataDigest() {
+        var metadata = snapshotBuilder()
+                .historySyncMessages(new ConcurrentLinkedDeque<>())
+                .presences(new ConcurrentHashMap<>())
+                .timestampSeconds(0)
+                .unreadMessagesCount(0)
+                .build();
+        try {
+            return Sha256.calculate(Smile.writeValueAsBytes(metadata, MetadataView.class));
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot encode metadata of chat %s".formatted(jid), exception);
+        }
+    }
+
+    /**
+     * Returns the messages of this chat, loading them if necessary
+     *
+     * @return a non-null deque
+     */
+    public ConcurrentLinkedDeque<HistorySyncMessage> historySyncMessages() {
+        loadMessages();
+        return historySyncMessages;
+    }
+
+    /**
+     * Returns a copy of this chat that can be serialized while this chat is modified
+     * The collections of the copy are captured when this method is called, while their elements are shared with this chat
+     *
+     * @return a non-null chat
+     */
+    public Chat snapshot() {
+        return snapshotBuilder()
+                .historySyncMessages(new ConcurrentLinkedDeque<>(historySyncMessages()))
+                .build();
+    }
+
+    /**
+     * Returns a copy of this chat without its messages that can be serialized while this chat is modified
+     * Unlike {@link #snapshot()}, the messages of this chat are not loaded if their loading was deferred
+     *
+     * @return a non-null chat
+     */
+    public Chat metadataSnapshot() {
+        return snapshotBuilder()
+                .historySyncMessages(new ConcurrentLinkedDeque<>())
+                .build();
+    }
+
+    private ChatBuilder snapshotBuilder() {
+        return toBuilder()
+                .participants(new ConcurrentHashMap<>(participants))
+                .pastParticipants(new ConcurrentHashMap<>(pastParticipants))
+                .presences(new ConcurrentHashMap<>(presences))
+                .participantsPreKeys(new HashSet<>(participantsPreKeys));
+    }
+
+    /**
+     * Defers the loading of the messages of this chat until they are first accessed
+     *
+     * @param loader the non-null supplier of the messages of this chat
+     */
+    public void messagesLoader(@NonNull Supplier<? extends Collection<HistorySyncMessage>> loader) {
+        persistenceState.messagesLoader = loader;
+    }
+
+    /**
+     * Returns whether the messages of this chat were loaded
+     *
+     * @return a boolean
+     */
+    public boolean hasLoadedMessages() {
+        return persistenceState.messagesLoader == null;
+    }
+
+    /**
+     * Loads the messages of this chat if their loading was deferred and they weren't loaded yet
+     */
+    public void loadMessages() {
+        if (persistenceState.messagesLoader == null) {
+            return;
+        }
+
+        synchronized (historySyncMessages) {
+            var loader = persistenceState.messagesLoader;
+            if (loader == null) {
+                return;
+            }
+
+            var messages = new ArrayList<HistorySyncMessage>(loader.get());
+            Collections.reverse(messages);
+            messages.forEach(historySyncMessages::addFirst);
+            persistenceState.messagesLoader = null;
+        }
     }
 
     /**
@@ -806,7 +1011,7 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
      * @return a non-null collection
      */
     public Collection<HistorySyncMessage> messages(){
-        return Collections.unmodifiableCollection(historySyncMessages);
+        return Collections.unmodifiableCollection(historySyncMessages());
     }
 
     /**
@@ -952,16 +1157,16 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
     }
 
     /**
-     * Returns the hash code for this chat using all fields.
+     * Returns the hash code for this chat using all fields except its messages.
      * This is useful to check if two chats are exactly the same.
+     * The messages are excluded so that their loading isn't forced if it was deferred.
      *
      * @return an int
      */
     public int fullHashCode() {
-        int result = Objects.hash(jid, newJid, oldJid, timestampSeconds, historySyncMessages, unreadMessagesCount, readOnly, endOfHistoryTransfer, ephemeralMessageDuration, ephemeralMessagesToggleTime, endOfHistoryTransferType, name, notSpam, archived, disappearInitiator, markedAsUnread, participants, pastParticipants, tokenTimestampSeconds, pinnedTimestampSeconds, mute, wallpaper, mediaVisibility, tokenSenderTimestampSeconds, suspended, terminated, foundationTimestampSeconds, founder, description, support, parentGroup, defaultSubGroup, parentGroupJid, displayName, pnJid, shareOwnPn, pnhDuplicateLidThread, lidJid, presences, participantsPreKeys);
+        int result = Objects.hash(jid, newJid, oldJid, timestampSeconds, unreadMessagesCount, readOnly, endOfHistoryTransfer, ephemeralMessageDuration, ephemeralMessagesToggleTime, endOfHistoryTransferType, name, notSpam, archived, disappearInitiator, markedAsUnread, participants, pastParticipants, tokenTimestampSeconds, pinnedTimestampSeconds, mute, wallpaper, mediaVisibility, tokenSenderTimestampSeconds, suspended, terminated, foundationTimestampSeconds, founder, description, support, parentGroup, defaultSubGroup, parentGroupJid, displayName, pnJid, shareOwnPn, pnhDuplicateLidThread, lidJid, presences, participantsPreKeys);
         result = 31 * result + Arrays.hashCode(token);
         result = 31 * result + Arrays.hashCode(identityKey);
-        result = 31 * result + historySyncMessages.size();
         return result;
     }
 
@@ -991,6 +1196,44 @@ public final class Chat implements ProtobufMessage, ContactJidProvider {
         private final int index;
     }
 
+    /**
+     * The view that includes the messages of a chat
+     */
+    public interface MessagesView {
+
+    }
+
+    /**
+     * The view that excludes the messages of a chat
+     */
+    public interface MetadataView {
+
+    }
+
+    /**
+     * The state of this chat when it was last persisted
+     */
+    private static final class PersistenceState {
+        private final List<MessageInfo> changedMessages = new ArrayList<>();
+        private volatile Supplier<? extends Collection<HistorySyncMessage>> messagesLoader;
+        private boolean persisted;
+        private boolean snapshot;
+        private byte[] metadataDigest;
+        private int persistedMessages;
+        private long timestampSeconds;
+        private int unreadMessagesCount;
+
+        private void reset(byte[] metadataDigest, long timestampSeconds, int unreadMessagesCount) {
+            this.persisted = true;
+            this.snapshot = false;
+            this.metadataDigest = metadataDigest;
+            this.persistedMessages = 0;
+            this.timestampSeconds = timestampSeconds;
+            this.unreadMessagesCount = unreadMessagesCount;
+            this.changedMessages.clear();
+        }
+    }
+
     /**
      * Internal implementation to deserialize messages
      */
@@ -0,0 +1,38 @@
+package it.auties.whatsapp.model.chat;
+
+import it.auties.whatsapp.model.info.MessageInfo;
+import lombok.NonNull;
+
+import java.util.List;
+
+/**
+ * An immutable model class that represents the changes made to a chat since it was last persisted
+ *
+ * @param snapshot            whether the chat needs to be persisted as a whole
+ * @param timestampSeconds    the timestamp of the chat when the changes were collected
+ * @param unreadMessagesCount the number of unread messages in the chat when the changes were collected
+ * @param messages            the non-null messages that were added or updated, empty if this is a snapshot
+ */
+public record ChatChanges(boolean snapshot, long timestampSeconds, int unreadMessagesCount,
+                          @NonNull List<MessageInfo> messages) {
+    /**
+     * Constructs changes that require the whole chat to be persisted
+     *
+     * @param chat the non-null chat
+     * @return a non-null chat changes
+     */
+    public static ChatChanges snapshot(@NonNull Chat chat) {
+        return new ChatChanges(true, chat.timestampSeconds(), chat.unreadMessagesCount(), List.of());
+    }
+
+    /**
+     * Constructs changes that can be appended to the last persisted state of a chat
+     *
+     * @param chat     the non-null chat
+     * @param messages the non-null messages that were added or updated
+     * @return a non-null chat changes
+     */
+    public static ChatChanges messages(@NonNull Chat chat, @NonNull List<MessageInfo> messages) {
+        return new ChatChanges(false, chat.timestampSeconds(), chat.unreadMessagesCount(), List.copyOf(messages));
+    }
+}
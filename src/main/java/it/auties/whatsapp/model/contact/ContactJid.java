@@ -7,8 +7,11 @@ import it.auties.whatsapp.model.signal.session.SessionAddress;
 import lombok.*;
 import lombok.experimental.Accessors;
 
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.stream.IntStream;
 
 /**
  * A model class that represents a jid. This class is only a model, this means that changing its
@@ -18,6 +21,30 @@ import java.util.Objects;
 @Builder
 @With
 public record ContactJid(String user, @NonNull Server server, int device, int agent) implements ContactJidProvider {
+    /**
+     * The maximum number of parsed jids kept in memory
+     */
+    private static final int CACHE_SIZE = 8192;
+
+    /**
+     * The number of independently locked segments of the cache
+     */
+    private static final int CACHE_SEGMENTS = 16;
+
+    /**
+     * A bounded cache of parsed jids, used to share a single instance between equal jids
+     * Each segment evicts its least recently used jid when it's full and is locked on its own, so concurrent lookups rarely contend
+     */
+    @SuppressWarnings("unchecked")
+    private static final Map<String, ContactJid>[] CACHE = IntStream.range(0, CACHE_SEGMENTS)
+            .mapToObj(ignored -> Collections.synchronizedMap(new LinkedHashMap<String, ContactJid>(CACHE_SIZE / CACHE_SEGMENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ContactJid> eldest) {
+                    return size() > CACHE_SIZE / CACHE_SEGMENTS;
+                }
+            }))
+            .toArray(Map[]::new);
+
     /**
      * Default constructor
      */
@@ -49,23 +76,15 @@ public record ContactJid(String user, @NonNull Server server, int device, int ag
         if (complexUser == null) {
             return new ContactJid(null, server, 0, 0);
         }
-        if (complexUser.contains(":")) {
-            var simpleUser = complexUser.split(":", 2);
-            var user = simpleUser[0];
-            var device = Integer.parseUnsignedInt(simpleUser[1]);
-            if (user.contains("_")) {
-                var simpleUserAgent = user.split("_", 2);
-                var agent = tryParseAgent(simpleUserAgent[1]);
-                return new ContactJid(simpleUserAgent[0], server, device, agent);
-            }
-            return new ContactJid(user, server, device, 0);
-        }
-        if (!complexUser.contains("_")) {
-            return new ContactJid(complexUser, server, 0, 0);
+        var deviceIndex = complexUser.indexOf(':');
+        var userEnd = deviceIndex == -1 ? complexUser.length() : deviceIndex;
+        var device = deviceIndex == -1 ? 0 : Integer.parseUnsignedInt(complexUser, deviceIndex + 1, complexUser.length(), 10);
+        var agentIndex = complexUser.indexOf('_');
+        if (agentIndex == -1 || agentIndex > userEnd) {
+            return new ContactJid(complexUser.substring(0, userEnd), server, device, 0);
         }
-        var simpleUserAgent = complexUser.split("_", 2);
-        var agent = tryParseAgent(simpleUserAgent[1]);
-        return new ContactJid(simpleUserAgent[0], server, 0, agent);
+        var agent = tryParseAgent(complexUser, agentIndex + 1, userEnd);
+        return new ContactJid(complexUser.substring(0, agentIndex), server, device, agent);
     }
 
     /**
@@ -78,15 +97,25 @@ public record ContactJid(String user, @NonNull Server server, int device, int ag
         if (jid == null) {
             return null;
         }
-        for (var server : Server.values()) {
-            jid = jid.replace("@%s".formatted(server), "");
+        var serverIndex = jid.indexOf('@');
+        if (serverIndex == -1) {
+            return jid;
+        }
+        var result = new StringBuilder(jid.length());
+        var start = 0;
+        while (serverIndex != -1) {
+            var server = Server.ofAddress(jid, serverIndex + 1);
+            var end = server == null ? serverIndex + 1 : serverIndex + 1 + server.address().length();
+            result.append(jid, start, server == null ? end : serverIndex);
+            start = end;
+            serverIndex = jid.indexOf('@', end);
         }
-        return jid;
+        return result.append(jid, start, jid.length()).toString();
     }
 
-    private static int tryParseAgent(String string) {
+    private static int tryParseAgent(String string, int start, int end) {
         try {
-            return Integer.parseUnsignedInt(string);
+            return Integer.parseUnsignedInt(string, start, end, 10);
         } catch (NumberFormatException exception) {
             return 0;
         }
@@ -136,7 +165,14 @@ public record ContactJid(String user, @NonNull Server server, int device, int ag
      */
     @JsonCreator
     public static ContactJid of(@NonNull String jid) {
-        return of(jid, Server.of(jid));
+        var segment = CACHE[Math.floorMod(jid.hashCode(), CACHE_SEGMENTS)];
+        var cached = segment.get(jid);
+        if (cached != null) {
+            return cached;
+        }
+        var result = of(jid, Server.of(jid));
+        segment.put(jid, result);
+        return result;
     }
 
     /**
@@ -206,7 +242,11 @@ public record ContactJid(String user, @NonNull Server server, int device, int ag
      * @return a non-null jid
      */
     public ContactJid toWhatsappJid() {
-        return of(user(), server());
+        if (device == 0 && agent == 0) {
+            return this;
+        }
+
+        return user() == null ? ofServer(server()) : of(user() + "@" + server().address());
     }
 
     /**
@@ -226,11 +266,20 @@ public record ContactJid(String user, @NonNull Server server, int device, int ag
     @JsonValue
     @Override
     public String toString() {
-        var user = Objects.requireNonNullElse(user(), "");
-        var agent = agent() != 0 ? "_%s".formatted(agent()) : "";
-        var device = device() != 0 ? ":%s".formatted(device()) : "";
-        var leading = "%s%s%s".formatted(user, agent, device);
-        return leading.isEmpty() ? server().toString() : "%s@%s".formatted(leading, server());
+        var result = new StringBuilder();
+        if (user() != null) {
+            result.append(user());
+        }
+        if (agent() != 0) {
+            result.append('_').append(agent());
+        }
+        if (device() != 0) {
+            result.append(':').append(device());
+        }
+        if (result.isEmpty()) {
+            return server().address();
+        }
+        return result.append('@').append(server().address()).toString();
     }
 
     /**
@@ -364,12 +413,28 @@ public record ContactJid(String user, @NonNull Server server, int device, int ag
         @Getter
         private final String address;
 
+        private static final Server[] VALUES = values();
+
         @JsonCreator
         public static Server of(String address) {
-            return Arrays.stream(values())
-                    .filter(entry -> address != null && address.endsWith(entry.address()))
-                    .findFirst()
-                    .orElse(WHATSAPP);
+            if (address == null) {
+                return WHATSAPP;
+            }
+            for (var entry : VALUES) {
+                if (address.endsWith(entry.address())) {
+                    return entry;
+                }
+            }
+            return WHATSAPP;
+        }
+
+        private static Server ofAddress(String jid, int offset) {
+            for (var entry : VALUES) {
+                if (jid.startsWith(entry.address(), offset)) {
+                    return entry;
+                }
+            }
+            return null;
         }
 
         public ContactJid toJid() {
@@ -41,8 +41,8 @@ public record Attributes(@JsonValue @NonNull ConcurrentHashMap<String, Object> t
      * @param map the nullable existing map
      * @return a new instance of Attributes
      */
-    public static Attributes ofNullable(Map<String, Object> map) {
-        var modifiableMap = Optional.ofNullable(map).map(ConcurrentHashMap::new).orElseGet(ConcurrentHashMap::new);
+    public static Attributes ofNullable(Map<String, ?> map) {
+        var modifiableMap = Optional.ofNullable(map).map(ConcurrentHashMap<String, Object>::new).orElseGet(ConcurrentHashMap::new);
         return new Attributes(modifiableMap);
     }
 
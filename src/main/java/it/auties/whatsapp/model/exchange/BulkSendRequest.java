@@ -0,0 +1,44 @@
+package it.auties.whatsapp.model.exchange;
+
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+import it.auties.whatsapp.util.Validate;
+import lombok.Builder;
+import lombok.NonNull;
+
+import java.util.List;
+
+/**
+ * A request to send the same message to many conversations
+ *
+ * @param recipients        the non-null recipients of the message, duplicates are ignored: jids that point to a device are replaced by the jid of their user
+ * @param message           the non-null message to send
+ * @param messagesPerSecond the maximum number of messages that are sent every second, zero if the rate shouldn't be limited:
+ *                          messages are also limited by the bulk bucket of the session's {@link it.auties.whatsapp.api.TrafficPolicy}, ten per second by default
+ * @param batchSize         the maximum number of users whose devices or sessions are queried by a single query, zero to use the default
+ */
+@Builder
+public record BulkSendRequest(@NonNull List<ContactJid> recipients, @NonNull MessageContainer message, int messagesPerSecond, int batchSize) {
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    public BulkSendRequest {
+        Validate.isTrue(messagesPerSecond >= 0, "Invalid rate: %s", messagesPerSecond);
+        Validate.isTrue(batchSize >= 0, "Invalid batch size: %s", batchSize);
+        recipients = recipients.stream()
+                .map(ContactJid::toWhatsappJid)
+                .distinct()
+                .toList();
+        batchSize = batchSize == 0 ? DEFAULT_BATCH_SIZE : batchSize;
+    }
+
+    public static BulkSendRequest of(@NonNull List<ContactJid> recipients, @NonNull MessageContainer message) {
+        return BulkSendRequest.builder()
+                .recipients(recipients)
+                .message(message)
+                .build();
+    }
+
+    public boolean hasRateLimit() {
+        return messagesPerSecond != 0;
+    }
+}
@@ -0,0 +1,97 @@
+package it.auties.whatsapp.model.exchange;
+
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.contact.ContactJidProvider;
+import it.auties.whatsapp.model.info.MessageInfo;
+import lombok.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of a {@link BulkSendRequest}
+ * The message sent to each recipient can be tracked individually, while the counters describe the progress of the whole request
+ */
+public final class BulkSendResult {
+    private final Map<ContactJid, CompletableFuture<MessageInfo>> results;
+    private final AtomicInteger sent;
+    private final AtomicInteger failed;
+    private final CompletableFuture<BulkSendResult> completion;
+
+    public BulkSendResult(@NonNull Map<ContactJid, CompletableFuture<MessageInfo>> results) {
+        this.results = Collections.unmodifiableMap(new LinkedHashMap<>(results));
+        this.sent = new AtomicInteger();
+        this.failed = new AtomicInteger();
+        results.values().forEach(future -> future.whenComplete((result, throwable) -> (throwable == null ? sent : failed).incrementAndGet()));
+        this.completion = CompletableFuture.allOf(results.values().toArray(CompletableFuture[]::new))
+                .handle((ignored, throwable) -> this);
+    }
+
+    /**
+     * Returns the messages sent to each recipient, in the same order as the recipients of the request
+     *
+     * @return a non-null unmodifiable map
+     */
+    public Map<ContactJid, CompletableFuture<MessageInfo>> results() {
+        return results;
+    }
+
+    /**
+     * Returns the message sent to a recipient
+     *
+     * @param recipient the non-null recipient
+     * @return a non-null optional
+     */
+    public Optional<CompletableFuture<MessageInfo>> findResult(@NonNull ContactJidProvider recipient) {
+        return Optional.ofNullable(results.get(recipient.toJid()));
+    }
+
+    /**
+     * Returns the number of recipients
+     *
+     * @return an int
+     */
+    public int total() {
+        return results.size();
+    }
+
+    /**
+     * Returns the number of messages that were sent
+     *
+     * @return an int
+     */
+    public int sent() {
+        return sent.get();
+    }
+
+    /**
+     * Returns the number of messages that couldn't be sent
+     *
+     * @return an int
+     */
+    public int failed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the fraction of the messages that were either sent or failed
+     *
+     * @return a double between zero and one
+     */
+    public double progress() {
+        return results.isEmpty() ? 1 : (double) (sent() + failed()) / total();
+    }
+
+    /**
+     * Returns a future that completes when every message was either sent or failed
+     *
+     * @return a non-null future that never completes exceptionally
+     */
+    public CompletableFuture<BulkSendResult> completion() {
+        return completion;
+    }
+}
@@ -0,0 +1,55 @@
+package it.auties.whatsapp.model.exchange;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * A snapshot of the distribution of a latency
+ *
+ * @param bounds the non-null inclusive upper bounds of the buckets, in ascending order, the last bucket has no upper bound and holds the remaining samples
+ * @param counts the non-null number of samples in each bucket, it has one more element than the bounds
+ * @param count  the number of samples
+ * @param sum    the non-null sum of the samples
+ * @param max    the non-null largest sample
+ */
+public record LatencyHistogram(@NonNull List<Duration> bounds, @NonNull List<Long> counts, long count, @NonNull Duration sum, @NonNull Duration max) {
+    /**
+     * Returns the mean of the samples
+     *
+     * @return a non-null duration, zero if there are no samples
+     */
+    public Duration mean() {
+        return count == 0 ? Duration.ZERO : sum.dividedBy(count);
+    }
+
+    /**
+     * Returns an upper bound of a percentile of the samples, that is the upper bound of the bucket that holds it
+     * Samples in the last bucket are bound by the largest sample
+     *
+     * @param percentile the percentile, between zero and one hundred
+     * @return a non-null duration, zero if there are no samples
+     */
+    public Duration percentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: %s".formatted(percentile));
+        }
+
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        var seen = 0L;
+        for (var index = 0; index < bounds.size(); index++) {
+            seen += counts.get(index);
+            if (seen >= rank) {
+                var bound = bounds.get(index);
+                return bound.compareTo(max) < 0 ? bound : max;
+            }
+        }
+
+        return max;
+    }
+}
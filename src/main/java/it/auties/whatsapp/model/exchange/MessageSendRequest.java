@@ -8,7 +8,7 @@ import java.util.List;
 import java.util.Map;
 
 @Builder
-public record MessageSendRequest(MessageInfo info, List<ContactJid> recipients, boolean force, boolean peer, Map<String, Object> additionalAttributes) {
+public record MessageSendRequest(MessageInfo info, List<ContactJid> recipients, boolean force, boolean peer, Map<String, String> additionalAttributes) {
     public static MessageSendRequest of(MessageInfo info) {
         return MessageSendRequest.builder()
                 .info(info)
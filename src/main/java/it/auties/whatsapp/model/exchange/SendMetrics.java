@@ -0,0 +1,18 @@
+package it.auties.whatsapp.model.exchange;
+
+import it.auties.whatsapp.model.exchange.SendTrace.Stage;
+import lombok.NonNull;
+
+import java.util.Map;
+
+/**
+ * A snapshot of the latency of the messages sent by a session
+ *
+ * @param stages the non-null distribution of the time spent in each stage
+ * @param total  the non-null distribution of the time spent sending each message
+ * @param sent   the number of messages that were acknowledged
+ * @param failed the number of attempts that failed
+ */
+public record SendMetrics(@NonNull Map<Stage, LatencyHistogram> stages, @NonNull LatencyHistogram total, long sent, long failed) {
+
+}
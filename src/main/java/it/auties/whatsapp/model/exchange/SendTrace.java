@@ -0,0 +1,149 @@
+package it.auties.whatsapp.model.exchange;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The timings of an attempt to send a message
+ * Every stage is timed from the end of the previous stage that the message went through, so stages that were skipped, like the device query of a message sent to a peer, don't have a timing
+ */
+public final class SendTrace {
+    private final long start;
+    private final long[] ends;
+    private boolean failed;
+
+    /**
+     * Starts a new trace
+     */
+    public SendTrace() {
+        this.start = System.nanoTime();
+        this.ends = new long[Stage.values().length];
+    }
+
+    /**
+     * Marks a stage as completed
+     *
+     * @param stage the non-null stage
+     */
+    public synchronized void mark(@NonNull Stage stage) {
+        ends[stage.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Marks this trace as failed
+     */
+    public synchronized void fail() {
+        this.failed = true;
+    }
+
+    /**
+     * Returns the amount of time spent in a stage
+     *
+     * @param stage the non-null stage
+     * @return a non-null optional, empty if the message didn't go through the stage
+     */
+    public synchronized Optional<Duration> duration(@NonNull Stage stage) {
+        var end = ends[stage.ordinal()];
+        if (end == 0) {
+            return Optional.empty();
+        }
+
+        var previous = start;
+        for (var index = stage.ordinal() - 1; index >= 0; index--) {
+            if (ends[index] != 0) {
+                previous = ends[index];
+                break;
+            }
+        }
+
+        return Optional.of(Duration.ofNanos(end - previous));
+    }
+
+    /**
+     * Returns the amount of time spent in each stage that the message went through
+     *
+     * @return a non-null unmodifiable map
+     */
+    public synchronized Map<Stage, Duration> durations() {
+        var results = new EnumMap<Stage, Duration>(Stage.class);
+        for (var stage : Stage.values()) {
+            duration(stage).ifPresent(duration -> results.put(stage, duration));
+        }
+
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Returns the amount of time that passed between the start of this trace and the end of the last stage that the message went through
+     *
+     * @return a non-null duration
+     */
+    public synchronized Duration total() {
+        var end = start;
+        for (var value : ends) {
+            if (value != 0) {
+                end = value;
+            }
+        }
+
+        return Duration.ofNanos(end - start);
+    }
+
+    /**
+     * Returns whether Whatsapp acknowledged the message
+     *
+     * @return a boolean
+     */
+    public synchronized boolean acknowledged() {
+        return ends[Stage.ACK.ordinal()] != 0;
+    }
+
+    /**
+     * Returns whether the attempt failed
+     *
+     * @return a boolean
+     */
+    public synchronized boolean failed() {
+        return failed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SendTrace[durations=%s, total=%s, failed=%s]".formatted(durations(), total(), failed);
+    }
+
+    /**
+     * The stages that a message goes through when it's sent, in order
+     */
+    public enum Stage {
+        /**
+         * The devices of the recipients are resolved
+         */
+        DEVICES,
+        /**
+         * The sessions that are missing are queried
+         */
+        SESSIONS,
+        /**
+         * The message is encrypted for every device and the signal state that changed is committed
+         */
+        ENCRYPTION,
+        /**
+         * The node of the message is created
+         */
+        ENCODING,
+        /**
+         * The node waits for its turn and is written to the socket
+         */
+        WRITE,
+        /**
+         * Whatsapp acknowledges the node
+         */
+        ACK
+    }
+}
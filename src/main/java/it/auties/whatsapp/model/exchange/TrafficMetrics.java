@@ -0,0 +1,24 @@
+package it.auties.whatsapp.model.exchange;
+
+import it.auties.whatsapp.api.TrafficClass;
+import lombok.NonNull;
+
+/**
+ * A snapshot of the outbound traffic of a {@link TrafficClass}
+ *
+ * @param trafficClass the non-null class
+ * @param tokens       the number of tokens in the bucket of the class, or -1 if the class isn't limited
+ * @param capacity     the capacity of the bucket of the class, or -1 if the class isn't limited
+ * @param queued       the number of nodes waiting for a token
+ * @param sent         the number of nodes sent since the session was created
+ */
+public record TrafficMetrics(@NonNull TrafficClass trafficClass, double tokens, int capacity, int queued, long sent) {
+    /**
+     * Returns the fraction of the bucket that is filled with tokens
+     *
+     * @return a number between zero and one, or one if the class isn't limited
+     */
+    public double occupancy() {
+        return capacity <= 0 ? 1 : tokens / capacity;
+    }
+}
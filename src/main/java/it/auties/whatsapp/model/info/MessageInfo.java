@@ -1,6 +1,7 @@
 package it.auties.whatsapp.model.info;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.auties.protobuf.base.ProtobufMessage;
 import it.auties.protobuf.base.ProtobufName;
 import it.auties.protobuf.base.ProtobufProperty;
@@ -8,6 +9,7 @@ import it.auties.whatsapp.model.business.BusinessPrivacyStatus;
 import it.auties.whatsapp.model.chat.Chat;
 import it.auties.whatsapp.model.contact.Contact;
 import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.exchange.SendTrace;
 import it.auties.whatsapp.model.media.MediaData;
 import it.auties.whatsapp.model.message.model.*;
 import it.auties.whatsapp.model.message.server.ProtocolMessage;
@@ -81,6 +83,15 @@ public final class MessageInfo implements Info, ProtobufMessage, MessageMetadata
      */
     private Contact sender;
 
+    /**
+     * The timings of the last attempt to send this message, if it was sent by this session
+     */
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private SendTrace sendTrace;
+
     /**
      * Whether this message should be ignored or counted as an unread message
      */
@@ -381,6 +392,15 @@ public final class MessageInfo implements Info, ProtobufMessage, MessageMetadata
                 .flatMap(QuotedMessage::of);
     }
 
+    /**
+     * Returns the timings of the last attempt to send this message
+     *
+     * @return an optional
+     */
+    public Optional<SendTrace> sendTrace() {
+        return Optional.ofNullable(sendTrace);
+    }
+
     /**
      * Returns the optional push name
      *
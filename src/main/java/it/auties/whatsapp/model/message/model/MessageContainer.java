@@ -1,5 +1,6 @@
 package it.auties.whatsapp.model.message.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.auties.protobuf.base.ProtobufMessage;
 import it.auties.protobuf.base.ProtobufName;
 import it.auties.protobuf.base.ProtobufProperty;
@@ -335,6 +336,13 @@ public class MessageContainer implements ProtobufMessage {
     @Default
     private DeviceContextInfo deviceInfo = DeviceContextInfo.of();
 
+    /**
+     * The content and type of this container, resolved on first access.
+     * This is safe as a container can't be modified after it's built.
+     */
+    @JsonIgnore
+    private final ResolvedContent resolvedContent = new ResolvedContent();
+
     /**
      * Returns an empty message container
      *
@@ -528,6 +536,15 @@ public class MessageContainer implements ProtobufMessage {
      * @return a non-null message
      */
     public Message content() {
+        var content = resolvedContent.content;
+        if (content != null) {
+            return content;
+        }
+
+        return resolvedContent.content = resolveContent();
+    }
+
+    private Message resolveContent() {
         if (this.textWithNoContextMessage != null) {
             return TextMessage.of(textWithNoContextMessage);
         }
@@ -788,7 +805,12 @@ public class MessageContainer implements ProtobufMessage {
      * @return a non-null type
      */
     public MessageType type() {
-        return ephemeralMessage != null ? MessageType.EPHEMERAL : viewOnceMessage != null || viewOnceV2Message != null || viewOnceV2ExtensionMessage != null ? MessageType.VIEW_ONCE : content().type();
+        var type = resolvedContent.type;
+        if (type != null) {
+            return type;
+        }
+
+        return resolvedContent.type = ephemeralMessage != null ? MessageType.EPHEMERAL : viewOnceMessage != null || viewOnceV2Message != null || viewOnceV2ExtensionMessage != null ? MessageType.VIEW_ONCE : content().type();
     }
 
     /**
@@ -1310,4 +1332,9 @@ public class MessageContainer implements ProtobufMessage {
     public Optional<FutureMessageContainer> viewOnceV2ExtensionMessage() {
         return Optional.ofNullable(viewOnceV2ExtensionMessage);
     }
-}
\ No newline at end of file
+
+    private static final class ResolvedContent {
+        private volatile Message content;
+        private volatile MessageType type;
+    }
+}
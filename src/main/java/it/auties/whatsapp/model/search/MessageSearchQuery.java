@@ -0,0 +1,69 @@
+package it.auties.whatsapp.model.search;
+
+import it.auties.whatsapp.model.contact.ContactJid;
+import lombok.Builder;
+import lombok.NonNull;
+
+import java.time.ZonedDateTime;
+import java.util.Optional;
+
+/**
+ * A model class that represents a query against the local message search index.
+ * Words are matched as whole terms, a trailing {@code *} turns a word into a prefix query and
+ * words wrapped in double quotes must appear next to each other as a phrase.
+ * All the words in the query must match.
+ *
+ * @param text   the non-null text to search
+ * @param chat   the chat where the messages should be searched, can be null
+ * @param sender the sender of the messages, can be null
+ * @param from   the lower bound, inclusive, of the timestamp of the messages, can be null
+ * @param to     the upper bound, inclusive, of the timestamp of the messages, can be null
+ * @param limit  the maximum number of results, if non-positive a default value will be used
+ */
+@Builder
+public record MessageSearchQuery(@NonNull String text, ContactJid chat, ContactJid sender,
+                                 ZonedDateTime from, ZonedDateTime to, int limit) {
+    /**
+     * The number of results returned when no limit is specified
+     */
+    public static final int DEFAULT_LIMIT = 50;
+
+    /**
+     * Constructs a new query that searches all chats
+     *
+     * @param text the non-null text to search
+     * @return a non-null query
+     */
+    public static MessageSearchQuery of(@NonNull String text) {
+        return MessageSearchQuery.builder()
+                .text(text)
+                .build();
+    }
+
+    /**
+     * Returns the chat where the messages should be searched
+     *
+     * @return an optional
+     */
+    public Optional<ContactJid> chatJid() {
+        return Optional.ofNullable(chat);
+    }
+
+    /**
+     * Returns the sender of the messages that should be searched
+     *
+     * @return an optional
+     */
+    public Optional<ContactJid> senderJid() {
+        return Optional.ofNullable(sender);
+    }
+
+    /**
+     * Returns the maximum number of results for this query
+     *
+     * @return a positive number
+     */
+    public int maxResults() {
+        return limit <= 0 ? DEFAULT_LIMIT : limit;
+    }
+}
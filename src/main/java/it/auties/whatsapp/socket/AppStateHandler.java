@@ -387,7 +387,10 @@ class AppStateHandler {
                 targetChat.ifPresent(chat -> chat.pinnedTimestampSeconds(pinAction.pinned() ? (int) mutation.value()
                         .timestamp() : 0));
             } else if (action instanceof StarAction starAction) {
-                targetMessage.ifPresent(message -> message.starred(starAction.starred()));
+                targetMessage.ifPresent(message -> {
+                    message.starred(starAction.starred());
+                    socketHandler.store().markMessageChanged(message);
+                });
             } else if (action instanceof ArchiveChatAction archiveChatAction) {
                 targetChat.ifPresent(chat -> chat.archived(archiveChatAction.archived()));
             } else if (action instanceof TimeFormatAction timeFormatAction) {
@@ -0,0 +1,86 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.util.Clock;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static it.auties.whatsapp.api.ErrorHandler.Location.CHECKPOINT;
+
+/**
+ * Persists the keys and the store of a session in the background according to its {@link it.auties.whatsapp.api.CheckpointPolicy}.
+ * Changes are only counted on the threads that produce them: the checkpoints are taken on a dedicated thread,
+ * so bursts of changes are coalesced into a single checkpoint and never block on I/O.
+ */
+class CheckpointHandler {
+    private static final long CHECK_INTERVAL = 1;
+
+    private final SocketHandler socketHandler;
+    private ScheduledExecutorService service;
+    private long persistedChanges;
+    private long firstChangeMilliseconds;
+    private long lastCheckpointMilliseconds;
+
+    protected CheckpointHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+    }
+
+    protected synchronized void schedule() {
+        if (service != null && !service.isShutdown()) {
+            return;
+        }
+
+        if (!socketHandler.store().checkpointPolicy().enabled()) {
+            return;
+        }
+
+        this.persistedChanges = changes();
+        this.firstChangeMilliseconds = 0;
+        this.lastCheckpointMilliseconds = Clock.nowMilliseconds();
+        this.service = Executors.newSingleThreadScheduledExecutor();
+        service.scheduleWithFixedDelay(this::checkpointIfNecessary, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private void checkpointIfNecessary() {
+        try {
+            var policy = socketHandler.store().checkpointPolicy();
+            var now = Clock.nowMilliseconds();
+            var changes = changes();
+            if (changes < persistedChanges) {
+                this.persistedChanges = 0;
+            }
+
+            var pendingChanges = changes - persistedChanges;
+            if (pendingChanges > 0 && firstChangeMilliseconds == 0) {
+                this.firstChangeMilliseconds = now;
+            }
+
+            var intervalElapsed = policy.hasInterval() && now - lastCheckpointMilliseconds >= policy.interval().toMillis();
+            var thresholdReached = policy.hasMaxChanges() && pendingChanges >= policy.maxChanges();
+            var latencyExceeded = policy.hasMaxLatency() && pendingChanges > 0 && now - firstChangeMilliseconds >= policy.maxLatency().toMillis();
+            if (!intervalElapsed && !thresholdReached && !latencyExceeded) {
+                return;
+            }
+
+            socketHandler.keys().serialize(false);
+            socketHandler.store().serialize(false);
+            this.persistedChanges = changes;
+            this.firstChangeMilliseconds = 0;
+            this.lastCheckpointMilliseconds = now;
+        } catch (Throwable throwable) {
+            socketHandler.handleFailure(CHECKPOINT, throwable);
+        }
+    }
+
+    private long changes() {
+        return socketHandler.keys().changes() + socketHandler.store().changes();
+    }
+
+    protected synchronized void dispose() {
+        if (service != null) {
+            service.shutdownNow();
+            this.service = null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.util.AsyncCache;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A cache of the devices of users
+ * Entries are invalidated when Whatsapp notifies that the devices of a user changed and, as a fallback, after a fixed amount of time
+ * Users that are requested while a query for them is still pending share the result of that query
+ */
+final class DeviceCache {
+    private static final Duration TTL = Duration.ofMinutes(30);
+
+    private final Function<List<ContactJid>, CompletableFuture<Map<ContactJid, List<Integer>>>> query;
+    private final AsyncCache<ContactJid, List<Integer>> entries;
+
+    /**
+     * Constructs a new cache
+     *
+     * @param query the non-null function used to query the devices of users that are not cached, the keys of the result are the jids of the users
+     */
+    DeviceCache(@NonNull Function<List<ContactJid>, CompletableFuture<Map<ContactJid, List<Integer>>>> query) {
+        this.query = query;
+        this.entries = new AsyncCache<>(TTL);
+    }
+
+    /**
+     * Returns the ids of the devices of users
+     * A single query is sent for all the users that are neither cached nor pending
+     *
+     * @param contacts the non-null users
+     * @return a future that completes with the ids of the devices of each user, in the same order as the users
+     */
+    CompletableFuture<Map<ContactJid, List<Integer>>> get(@NonNull List<ContactJid> contacts) {
+        var users = contacts.stream()
+                .map(ContactJid::toWhatsappJid)
+                .toList();
+        return entries.getAll(users, this::query);
+    }
+
+    // Users that have no devices are missing from the result of the query
+    private CompletableFuture<Map<ContactJid, List<Integer>>> query(List<ContactJid> users) {
+        return query.apply(users)
+                .thenApply(result -> users.stream()
+                        .collect(Collectors.toMap(Function.identity(), user -> List.copyOf(result.getOrDefault(user, List.of())))));
+    }
+
+    /**
+     * Invalidates the devices of a user
+     *
+     * @param contact the non-null user, or one of its devices
+     */
+    void invalidate(@NonNull ContactJid contact) {
+        entries.invalidate(contact.toWhatsappJid());
+    }
+
+    /**
+     * Invalidates all the cached devices
+     */
+    void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,63 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.util.AsyncCache;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A cache of the participants of groups
+ * Entries are invalidated when Whatsapp notifies that a group changed and, as a fallback, after a fixed amount of time
+ * Sends to a group whose participants are being queried share the result of that query
+ */
+final class GroupCache {
+    private static final Duration TTL = Duration.ofMinutes(30);
+
+    private final Function<ContactJid, CompletableFuture<List<ContactJid>>> query;
+    private final AsyncCache<ContactJid, List<ContactJid>> entries;
+
+    /**
+     * Constructs a new cache
+     *
+     * @param query the non-null function used to query the participants of a group that isn't cached
+     */
+    GroupCache(@NonNull Function<ContactJid, CompletableFuture<List<ContactJid>>> query) {
+        this.query = query;
+        this.entries = new AsyncCache<>(TTL);
+    }
+
+    /**
+     * Returns the participants of a group
+     *
+     * @param group the non-null group
+     * @param force whether the cached participants, if any, should be ignored
+     * @return a future that completes with the participants of the group
+     */
+    CompletableFuture<List<ContactJid>> get(@NonNull ContactJid group, boolean force) {
+        if (force) {
+            invalidate(group);
+        }
+
+        return entries.get(group, () -> query.apply(group).thenApply(List::copyOf));
+    }
+
+    /**
+     * Invalidates the participants of a group
+     *
+     * @param group the non-null group
+     */
+    void invalidate(@NonNull ContactJid group) {
+        entries.invalidate(group);
+    }
+
+    /**
+     * Invalidates all the cached groups
+     */
+    void clear() {
+        entries.clear();
+    }
+}
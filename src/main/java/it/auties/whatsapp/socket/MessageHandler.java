@@ -1,5 +1,6 @@
 package it.auties.whatsapp.socket;
 
+import it.auties.whatsapp.api.TrafficClass;
 import it.auties.whatsapp.api.WebHistoryLength;
 import it.auties.whatsapp.crypto.*;
 import it.auties.whatsapp.model.action.ContactAction;
@@ -21,14 +22,19 @@ import it.auties.whatsapp.model.message.server.ProtocolMessage;
 import it.auties.whatsapp.model.message.server.SenderKeyDistributionMessage;
 import it.auties.whatsapp.model.message.standard.*;
 import it.auties.whatsapp.model.exchange.Attributes;
+import it.auties.whatsapp.model.exchange.BulkSendRequest;
 import it.auties.whatsapp.model.exchange.MessageSendRequest;
 import it.auties.whatsapp.model.exchange.Node;
+import it.auties.whatsapp.model.exchange.SendMetrics;
+import it.auties.whatsapp.model.exchange.SendTrace;
+import it.auties.whatsapp.model.exchange.SendTrace.Stage;
 import it.auties.whatsapp.model.setting.EphemeralSetting;
 import it.auties.whatsapp.model.signal.keypair.SignalSignedKeyPair;
 import it.auties.whatsapp.model.signal.message.SignalDistributionMessage;
 import it.auties.whatsapp.model.signal.message.SignalMessage;
 import it.auties.whatsapp.model.signal.message.SignalPreKeyMessage;
 import it.auties.whatsapp.model.signal.sender.SenderKeyName;
+import it.auties.whatsapp.model.signal.session.SessionAddress;
 import it.auties.whatsapp.model.sync.HistorySync;
 import it.auties.whatsapp.model.sync.PushName;
 import it.auties.whatsapp.util.*;
@@ -39,6 +45,8 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -56,6 +64,10 @@ class MessageHandler {
     private final Logger logger;
     private final Set<ContactJid> attributedGroups;
     private final EnumSet<HistorySync.Type> historySyncTypes;
+    private final DeviceCache deviceCache;
+    private final GroupCache groupCache;
+    private final Map<SessionAddress, Object> sessionLocks;
+    private final SendTraceHandler sendTraceHandler;
     private ExecutorService executor;
     private CompletableFuture<?> historySyncTask;
 
@@ -66,6 +78,10 @@ class MessageHandler {
         this.attributedGroups = ConcurrentHashMap.newKeySet();
         this.logger = System.getLogger("MessageHandler");
         this.historySyncTypes = EnumSet.noneOf(HistorySync.Type.class);
+        this.deviceCache = new DeviceCache(this::queryDevices);
+        this.groupCache = new GroupCache(this::queryGroupParticipants);
+        this.sessionLocks = new ConcurrentHashMap<>();
+        this.sendTraceHandler = new SendTraceHandler();
     }
 
     private synchronized ExecutorService getOrCreateMessageService(){
@@ -79,21 +95,200 @@ class MessageHandler {
     protected synchronized CompletableFuture<Void> encode(MessageSendRequest request) {
         var future = new CompletableFuture<Void>();
         getOrCreateMessageService().execute(() -> {
-            encodeMessageNode(request)
+            var trace = new SendTrace();
+            request.info().sendTrace(trace);
+            encodeMessageNode(request, trace)
                     .thenRunAsync(() -> attributeOutgoingMessage(request))
-                    .exceptionallyAsync(throwable -> onEncodeError(request, throwable))
+                    .exceptionallyAsync(throwable -> onEncodeError(request, trace, throwable))
                     .join();
+            sendTraceHandler.record(trace);
             future.complete(null);
         });
         return future;
     }
 
-    private CompletableFuture<Node> encodeMessageNode(MessageSendRequest request) {
-        return request.peer() || isConversation(request.info()) ? encodeConversation(request) : encodeGroup(request);
+    protected SendMetrics sendMetrics() {
+        return sendTraceHandler.metrics();
     }
 
-    private Void onEncodeError(MessageSendRequest request, Throwable throwable) {
+    // Unlike encode, requests are not serialized: devices and sessions are queried once for every conversation,
+    // then each message is encrypted in parallel and sent as soon as the rate allows it
+    protected List<CompletableFuture<Void>> encodeBulk(List<MessageSendRequest> requests, BulkSendRequest options) {
+        var results = requests.stream()
+                .map(ignored -> new CompletableFuture<Void>())
+                .toList();
+        var conversations = new LinkedHashMap<MessageSendRequest, BulkConversation>();
+        for (var index = 0; index < requests.size(); index++) {
+            var request = requests.get(index);
+            var result = results.get(index);
+            if (request.peer() || !isConversation(request.info())) {
+                encode(request).whenComplete((ignored, throwable) -> completeBulkResult(request, result, throwable));
+                continue;
+            }
+
+            var trace = new SendTrace();
+            request.info().sendTrace(trace);
+            conversations.put(request, new BulkConversation(result, trace));
+        }
+
+        if (conversations.isEmpty()) {
+            return results;
+        }
+
+        var sender = socketHandler.store().jid();
+        if (sender == null) {
+            var error = new IllegalStateException("Cannot create message: user is not signed in");
+            conversations.forEach((request, conversation) -> completeBulkResult(request, conversation, error));
+            return results;
+        }
+
+        var users = Stream.concat(Stream.of(sender.toWhatsappJid()), conversations.keySet().stream().map(request -> request.info().chatJid()))
+                .distinct()
+                .toList();
+        getDevices(users, options.batchSize())
+                .thenApply(devices -> mark(conversations.values(), Stage.DEVICES, devices))
+                .thenComposeAsync(devices -> querySessions(getBulkDevices(users, devices), options.batchSize()).thenApply(ignored -> mark(conversations.values(), Stage.SESSIONS, devices)))
+                .thenAcceptAsync(devices -> sendBulk(conversations, devices, sender, options))
+                .exceptionallyAsync(throwable -> {
+                    conversations.forEach((request, conversation) -> completeBulkResult(request, conversation, throwable));
+                    return null;
+                });
+        return results;
+    }
+
+    private CompletableFuture<Map<ContactJid, List<Integer>>> getDevices(List<ContactJid> users, int batchSize) {
+        var futures = partition(users, batchSize)
+                .stream()
+                .map(deviceCache::get)
+                .toList();
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            var results = new HashMap<ContactJid, List<Integer>>();
+            futures.forEach(future -> results.putAll(future.join()));
+            return results;
+        });
+    }
+
+    private CompletableFuture<Void> querySessions(List<ContactJid> devices, int batchSize) {
+        var missingDevices = devices.stream()
+                .filter(contact -> !socketHandler.keys().hasSession(contact.toSignalAddress()))
+                .toList();
+        var futures = partition(missingDevices, batchSize)
+                .stream()
+                .map(batch -> querySessions(batch, false))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures);
+    }
+
+    private <T> List<List<T>> partition(List<T> list, int size) {
+        var results = new ArrayList<List<T>>();
+        for (var index = 0; index < list.size(); index += size) {
+            results.add(list.subList(index, Math.min(index + size, list.size())));
+        }
+        return results;
+    }
+
+    // The message is serialized once for every recipient that shares it, which is every recipient whose chat isn't ephemeral
+    private void sendBulk(Map<MessageSendRequest, BulkConversation> conversations, Map<ContactJid, List<Integer>> devices, ContactJid sender, BulkSendRequest options) {
+        var companions = getBulkDevices(sender.toWhatsappJid(), devices);
+        var encodedMessages = new IdentityHashMap<MessageContainer, byte[]>();
+        var interval = options.hasRateLimit() ? TimeUnit.SECONDS.toNanos(1) / options.messagesPerSecond() : 0;
+        var nextSlot = new AtomicLong(System.nanoTime());
+        conversations.forEach((request, conversation) -> {
+            var encodedMessage = encodedMessages.computeIfAbsent(request.info().message(), BytesHelper::messageToBytes);
+            var recipients = getBulkDevices(request.info().chatJid(), devices);
+            var trace = conversation.trace();
+            CompletableFuture.supplyAsync(() -> createConversationNodes(request, toSingleList(companions, recipients), sender, encodedMessage))
+                    .thenComposeAsync(this::commitKeys)
+                    .thenApply(sessions -> mark(trace, Stage.ENCRYPTION, sessions))
+                    .thenApplyAsync(sessions -> mark(trace, Stage.ENCODING, createEncodedMessageNode(request, sessions, null)))
+                    .thenComposeAsync(node -> sendBulkMessageNode(node, trace, nextSlot, interval))
+                    .thenRunAsync(() -> attributeOutgoingMessage(request))
+                    .whenComplete((ignored, throwable) -> completeBulkResult(request, conversation, throwable));
+        });
+    }
+
+    private List<ContactJid> getBulkDevices(List<ContactJid> users, Map<ContactJid, List<Integer>> devices) {
+        return users.stream()
+                .map(user -> getBulkDevices(user, devices))
+                .flatMap(Collection::stream)
+                .toList();
+    }
+
+    private List<ContactJid> getBulkDevices(ContactJid user, Map<ContactJid, List<Integer>> devices) {
+        var missingDevices = toDevices(Map.of(user, devices.getOrDefault(user, List.of())), true);
+        return toSingleList(List.of(user), missingDevices);
+    }
+
+    // Stanzas are pipelined: a stanza doesn't wait for the previous one to be acknowledged, only for its slot
+    private CompletableFuture<Node> sendBulkMessageNode(Node node, SendTrace trace, AtomicLong nextSlot, long interval) {
+        if (interval == 0) {
+            return sendMessageNode(node, TrafficClass.BULK, trace);
+        }
+
+        var now = System.nanoTime();
+        var slot = nextSlot.getAndUpdate(previous -> Math.max(previous, now) + interval);
+        var delay = Math.max(0, slot - now);
+        var executor = CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS);
+        return CompletableFuture.supplyAsync(() -> node, executor)
+                .thenComposeAsync(delayed -> sendMessageNode(delayed, TrafficClass.BULK, trace));
+    }
+
+    private void completeBulkResult(MessageSendRequest request, BulkConversation conversation, Throwable throwable) {
+        if (throwable != null) {
+            conversation.trace().fail();
+        }
+
+        sendTraceHandler.record(conversation.trace());
+        completeBulkResult(request, conversation.result(), throwable);
+    }
+
+    private void completeBulkResult(MessageSendRequest request, CompletableFuture<Void> result, Throwable throwable) {
+        if (throwable == null) {
+            result.complete(null);
+            return;
+        }
+
         request.info().status(MessageStatus.ERROR);
+        result.completeExceptionally(throwable);
+    }
+
+    // Groups are resolved to their participants, then devices and sessions are queried in batches as a bulk send does,
+    // so the first message sent to any of the chats doesn't have to wait for them
+    protected CompletableFuture<Void> prewarm(List<ContactJid> chats, int batchSize) {
+        var sender = socketHandler.store().jid();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Cannot prewarm sessions: user is not signed in"));
+        }
+
+        var users = chats.stream()
+                .filter(chat -> chat.type() == Type.USER || chat.type() == Type.COMPANION)
+                .map(ContactJid::toWhatsappJid)
+                .toList();
+        var groups = chats.stream()
+                .filter(chat -> chat.type() == Type.GROUP)
+                .distinct()
+                .map(group -> groupCache.get(group, false))
+                .toList();
+        return CompletableFuture.allOf(groups.toArray(CompletableFuture[]::new))
+                .thenApplyAsync(ignored -> Stream.of(Stream.of(sender.toWhatsappJid()), users.stream(), groups.stream().flatMap(group -> group.join().stream()))
+                        .flatMap(Function.identity())
+                        .map(ContactJid::toWhatsappJid)
+                        .distinct()
+                        .toList())
+                .thenComposeAsync(allUsers -> getDevices(allUsers, batchSize)
+                        .thenComposeAsync(devices -> querySessions(getBulkDevices(allUsers, devices), batchSize)));
+    }
+
+    private CompletableFuture<Node> encodeMessageNode(MessageSendRequest request, SendTrace trace) {
+        return request.peer() || isConversation(request.info()) ? encodeConversation(request, trace) : encodeGroup(request, trace);
+    }
+
+    // A request that timed out after the socket dropped doesn't mark its message as failed if Whatsapp acknowledged the message when it was sent again
+    private Void onEncodeError(MessageSendRequest request, SendTrace trace, Throwable throwable) {
+        trace.fail();
+        if (request.info().status().index() < MessageStatus.SERVER_ACK.index()) {
+            request.info().status(MessageStatus.ERROR);
+        }
         return socketHandler.handleFailure(MESSAGE, throwable);
     }
 
@@ -106,57 +301,67 @@ class MessageHandler {
         attributeMessageReceipt(request.info());
     }
 
-    private CompletableFuture<Node> encodeGroup(MessageSendRequest request) {
-        var encodedMessage = BytesHelper.messageToBytes(request.info().message());
-        var senderName = new SenderKeyName(request.info().chatJid().toString(), socketHandler.store().jid().toSignalAddress());
-        var groupBuilder = new GroupBuilder(socketHandler.keys());
-        var signalMessage = groupBuilder.createOutgoing(senderName);
-        var groupCipher = new GroupCipher(senderName, socketHandler.keys());
-        var groupMessage = groupCipher.encrypt(encodedMessage);
-        var messageNode = createMessageNode(request, groupMessage);
-        if (request.hasRecipientOverride()) {
-            return getDevices(request.recipients(), false)
-                    .thenComposeAsync(allDevices -> createGroupNodes(request, signalMessage, allDevices, request.force()))
-                    .thenApplyAsync(preKeys -> createEncodedMessageNode(request, preKeys, messageNode))
-                    .thenComposeAsync(socketHandler::send);
-        }
-
-        if (request.force()) {
-            return socketHandler.queryGroupMetadata(request.info().chatJid())
-                    .thenComposeAsync(this::getGroupDevices)
-                    .thenComposeAsync(allDevices -> createGroupNodes(request, signalMessage, allDevices, true))
-                    .thenApplyAsync(preKeys -> createEncodedMessageNode(request, preKeys, messageNode))
-                    .thenComposeAsync(socketHandler::send);
-        }
-
-        return socketHandler.queryGroupMetadata(request.info().chatJid())
-                .thenComposeAsync(this::getGroupDevices)
-                .thenComposeAsync(allDevices -> createGroupNodes(request, signalMessage, allDevices, false))
-                .thenApplyAsync(preKeys -> createEncodedMessageNode(request, preKeys, messageNode))
-                .thenComposeAsync(socketHandler::send);
+    // Every stage runs after the previous one has completed, so the trace tells where the time was spent.
+    // The sender key message is created after the participants are resolved so that it's encrypted in the same stage as the message
+    private CompletableFuture<Node> encodeGroup(MessageSendRequest request, SendTrace trace) {
+        var participants = request.hasRecipientOverride() ? CompletableFuture.completedFuture(request.recipients())
+                : groupCache.get(request.info().chatJid(), request.force());
+        return participants.thenComposeAsync(contacts -> getDevices(contacts, false))
+                .thenApply(allDevices -> mark(trace, Stage.DEVICES, getMissingParticipants(request, allDevices)))
+                .thenComposeAsync(missingParticipants -> querySessions(missingParticipants, request.force()).thenApply(ignored -> mark(trace, Stage.SESSIONS, missingParticipants)))
+                .thenApplyAsync(missingParticipants -> createGroupNodes(request, missingParticipants))
+                .thenComposeAsync(this::commitKeys)
+                .thenApply(nodes -> mark(trace, Stage.ENCRYPTION, nodes))
+                .thenApplyAsync(nodes -> mark(trace, Stage.ENCODING, createEncodedMessageNode(request, nodes.preKeys(), nodes.message())))
+                .thenComposeAsync(node -> sendMessageNode(node, TrafficClass.of(node), trace));
     }
 
-    private CompletableFuture<Node> encodeConversation(MessageSendRequest request) {
+    private CompletableFuture<Node> encodeConversation(MessageSendRequest request, SendTrace trace) {
         var sender = socketHandler.store().jid();
         if(sender == null){
             return CompletableFuture.failedFuture(new IllegalStateException("Cannot create message: user is not signed in"));
         }
 
-        var encodedMessage = BytesHelper.messageToBytes(request.info().message());
-        var knownDevices = getRecipients(request, sender);
-        var chatJid = request.info().chatJid();
         if(request.peer()){
-            var peerNode = createMessageNode(request, chatJid, encodedMessage, true);
-            var encodedMessageNode = createEncodedMessageNode(request, List.of(peerNode), null);
-            return socketHandler.send(encodedMessageNode);
+            var encodedMessage = BytesHelper.messageToBytes(request.info().message());
+            var peerNode = createMessageNode(request, request.info().chatJid(), encodedMessage, true);
+            return commitKeys(peerNode)
+                    .thenApply(node -> mark(trace, Stage.ENCRYPTION, node))
+                    .thenApplyAsync(node -> mark(trace, Stage.ENCODING, createEncodedMessageNode(request, List.of(node), null)))
+                    .thenComposeAsync(node -> sendMessageNode(node, TrafficClass.of(node), trace));
         }
 
-        var deviceMessage = new DeviceSentMessage(request.info().chatJid().toString(), request.info().message(), null);
-        var encodedDeviceMessage = BytesHelper.messageToBytes(deviceMessage);
+        var knownDevices = getRecipients(request, sender);
         return getDevices(knownDevices, true)
-                .thenComposeAsync(allDevices -> createConversationNodes(request, allDevices, encodedMessage, encodedDeviceMessage))
-                .thenApplyAsync(sessions -> createEncodedMessageNode(request, sessions, null))
-                .thenComposeAsync(socketHandler::send);
+                .thenApply(allDevices -> mark(trace, Stage.DEVICES, allDevices))
+                .thenComposeAsync(allDevices -> querySessions(allDevices, request.force()).thenApply(ignored -> mark(trace, Stage.SESSIONS, allDevices)))
+                .thenApplyAsync(allDevices -> createConversationNodes(request, allDevices, sender, BytesHelper.messageToBytes(request.info().message())))
+                .thenComposeAsync(this::commitKeys)
+                .thenApply(sessions -> mark(trace, Stage.ENCRYPTION, sessions))
+                .thenApplyAsync(sessions -> mark(trace, Stage.ENCODING, createEncodedMessageNode(request, sessions, null)))
+                .thenComposeAsync(node -> sendMessageNode(node, TrafficClass.of(node), trace));
+    }
+
+    // A message is only sent once the signal state changed to encrypt it is durable, so a crash can't roll its ratchet back
+    private <T> CompletableFuture<T> commitKeys(T result) {
+        return socketHandler.keys()
+                .commitChanges()
+                .thenApply(ignored -> result);
+    }
+
+    private CompletableFuture<Node> sendMessageNode(Node node, TrafficClass trafficClass, SendTrace trace) {
+        return socketHandler.send(node, trafficClass, trace)
+                .thenApply(response -> mark(trace, Stage.ACK, response));
+    }
+
+    private <T> T mark(SendTrace trace, Stage stage, T result) {
+        trace.mark(stage);
+        return result;
+    }
+
+    private <T> T mark(Collection<BulkConversation> conversations, Stage stage, T result) {
+        conversations.forEach(conversation -> conversation.trace().mark(stage));
+        return result;
     }
 
     private List<ContactJid> getRecipients(MessageSendRequest request, ContactJid sender) {
@@ -223,33 +428,40 @@ class MessageHandler {
                 .anyMatch(PKMSG::equals);
     }
 
-    private CompletableFuture<List<Node>> createConversationNodes(MessageSendRequest request, List<ContactJid> contacts, byte[] message, byte[] deviceMessage) {
+    // The devices of the sender receive the message wrapped in a device sent message
+    private List<Node> createConversationNodes(MessageSendRequest request, List<ContactJid> contacts, ContactJid sender, byte[] message) {
+        var deviceMessage = new DeviceSentMessage(request.info().chatJid().toString(), request.info().message(), null);
+        var encodedDeviceMessage = BytesHelper.messageToBytes(deviceMessage);
         var partitioned = contacts.stream()
-                .collect(Collectors.partitioningBy(contact -> Objects.equals(contact.user(), socketHandler.store().jid().user())));
-        var companions = querySessions(partitioned.get(true), request.force())
-                .thenApplyAsync(ignored -> createMessageNodes(request, partitioned.get(true), deviceMessage));
-        var others = querySessions(partitioned.get(false), request.force())
-                .thenApplyAsync(ignored -> createMessageNodes(request, partitioned.get(false), message));
-        return companions.thenCombineAsync(others, (first, second) -> toSingleList(first, second));
+                .distinct()
+                .collect(Collectors.partitioningBy(contact -> Objects.equals(contact.user(), sender.user())));
+        return toSingleList(createMessageNodes(request, partitioned.get(true), encodedDeviceMessage), createMessageNodes(request, partitioned.get(false), message));
     }
 
-    private CompletableFuture<List<Node>> createGroupNodes(MessageSendRequest request, byte[] distributionMessage, List<ContactJid> participants, boolean force) {
-        var missingParticipants = participants.stream()
-                .filter(participant -> force || !request.info().chat().participantsPreKeys().contains(participant))
+    private List<ContactJid> getMissingParticipants(MessageSendRequest request, List<ContactJid> participants) {
+        return participants.stream()
+                .filter(participant -> request.force() || !request.info().chat().participantsPreKeys().contains(participant))
                 .toList();
+    }
+
+    // Participants that don't have the sender key of this session yet receive it encrypted for each of their devices
+    private GroupNodes createGroupNodes(MessageSendRequest request, List<ContactJid> missingParticipants) {
+        var encodedMessage = BytesHelper.messageToBytes(request.info().message());
+        var senderName = new SenderKeyName(request.info().chatJid().toString(), socketHandler.store().jid().toSignalAddress());
+        var groupBuilder = new GroupBuilder(socketHandler.keys());
+        var signalMessage = groupBuilder.createOutgoing(senderName);
+        var groupCipher = new GroupCipher(senderName, socketHandler.keys());
+        var groupMessage = groupCipher.encrypt(encodedMessage);
+        var messageNode = createMessageNode(request, groupMessage);
         if (missingParticipants.isEmpty()) {
-            return CompletableFuture.completedFuture(List.of());
+            return new GroupNodes(messageNode, List.of());
         }
-        var whatsappMessage = new SenderKeyDistributionMessage(request.info().chatJid().toString(), distributionMessage);
-        var paddedMessage = BytesHelper.messageToBytes(whatsappMessage);
-        return querySessions(missingParticipants, force)
-                .thenApplyAsync(ignored -> createMessageNodes(request, missingParticipants, paddedMessage))
-                .thenApplyAsync(results -> savePreKeys(request.info().chat(), missingParticipants, results));
-    }
 
-    private List<Node> savePreKeys(Chat group, List<ContactJid> missingParticipants, List<Node> results) {
-        group.participantsPreKeys().addAll(missingParticipants);
-        return results;
+        var whatsappMessage = new SenderKeyDistributionMessage(request.info().chatJid().toString(), signalMessage);
+        var paddedMessage = BytesHelper.messageToBytes(whatsappMessage);
+        var preKeys = createMessageNodes(request, missingParticipants, paddedMessage);
+        request.info().chat().participantsPreKeys().addAll(missingParticipants);
+        return new GroupNodes(messageNode, preKeys);
     }
 
     protected CompletableFuture<Void> querySessions(List<ContactJid> contacts, boolean force) {
@@ -271,23 +483,53 @@ class MessageHandler {
                 .toList();
     }
 
+    // Messages can be encrypted concurrently by bulk sends, but never for the same session
     private Node createMessageNode(MessageSendRequest request, ContactJid contact, byte[] message, boolean peer) {
-        var cipher = new SessionCipher(contact.toSignalAddress(), socketHandler.keys());
-        var encrypted = cipher.encrypt(message);
+        var address = contact.toSignalAddress();
+        var cipher = new SessionCipher(address, socketHandler.keys());
+        CipheredMessageResult encrypted;
+        synchronized (sessionLocks.computeIfAbsent(address, ignored -> new Object())) {
+            encrypted = cipher.encrypt(message);
+        }
         var messageNode = createMessageNode(request, encrypted);
         return peer ? messageNode : Node.of("to", Map.of("jid", contact), messageNode);
     }
 
-    private CompletableFuture<List<ContactJid>> getGroupDevices(GroupMetadata metadata) {
-        return getDevices(metadata.participantsJids(), false);
-    }
-
     protected CompletableFuture<List<ContactJid>> getDevices(List<ContactJid> contacts, boolean excludeSelf) {
-        return queryDevices(contacts, excludeSelf)
+        return deviceCache.get(contacts)
+                .thenApplyAsync(devices -> toDevices(devices, excludeSelf))
                 .thenApplyAsync(missingDevices -> excludeSelf ? toSingleList(contacts, missingDevices) : missingDevices);
     }
 
-    private CompletableFuture<List<ContactJid>> queryDevices(List<ContactJid> contacts, boolean excludeSelf) {
+    protected void invalidateDevices(ContactJid contact) {
+        deviceCache.invalidate(contact);
+    }
+
+    protected void invalidateGroup(ContactJid group) {
+        groupCache.invalidate(group);
+    }
+
+    private CompletableFuture<List<ContactJid>> queryGroupParticipants(ContactJid group) {
+        return socketHandler.queryGroupMetadata(group)
+                .thenApplyAsync(GroupMetadata::participantsJids);
+    }
+
+    private List<ContactJid> toDevices(Map<ContactJid, List<Integer>> devices, boolean excludeSelf) {
+        return devices.entrySet()
+                .stream()
+                .flatMap(entry -> entry.getValue()
+                        .stream()
+                        .filter(deviceId -> isRecipientDevice(entry.getKey(), deviceId, excludeSelf))
+                        .map(deviceId -> ContactJid.ofDevice(entry.getKey().user(), deviceId)))
+                .toList();
+    }
+
+    private boolean isRecipientDevice(ContactJid jid, int deviceId, boolean excludeSelf) {
+        return (!excludeSelf || deviceId != 0)
+                && (!jid.user().equals(socketHandler.store().jid().user()) || socketHandler.store().jid().device() != deviceId);
+    }
+
+    private CompletableFuture<Map<ContactJid, List<Integer>>> queryDevices(List<ContactJid> contacts) {
         var contactNodes = contacts.stream()
                 .map(contact -> Node.of("user", Map.of("jid", contact)))
                 .toList();
@@ -296,42 +538,41 @@ class MessageHandler {
                 Node.of("query", Node.of("devices", Map.of("version", "2"))),
                 Node.of("list", contactNodes));
         return socketHandler.sendQuery("get", "usync", body)
-                .thenApplyAsync(result -> parseDevices(result, excludeSelf));
+                .thenApplyAsync(this::parseDevices);
     }
 
-    private List<ContactJid> parseDevices(Node node, boolean excludeSelf) {
+    private Map<ContactJid, List<Integer>> parseDevices(Node node) {
         return node.children()
                 .stream()
                 .map(child -> child.findNode("list"))
                 .flatMap(Optional::stream)
                 .map(Node::children)
                 .flatMap(Collection::stream)
-                .map(entry -> parseDevice(entry, excludeSelf))
-                .flatMap(Collection::stream)
-                .toList();
+                .collect(Collectors.toMap(this::parseDeviceUser, this::parseDevice, (first, second) -> second));
     }
 
-    private List<ContactJid> parseDevice(Node wrapper, boolean excludeSelf) {
-        var jid = wrapper.attributes()
+    private ContactJid parseDeviceUser(Node wrapper) {
+        return wrapper.attributes()
                 .getJid("jid")
+                .map(ContactJid::toWhatsappJid)
                 .orElseThrow(() -> new NoSuchElementException("Missing jid for sync device"));
+    }
+
+    private List<Integer> parseDevice(Node wrapper) {
         return wrapper.findNode("devices")
                 .orElseThrow(() -> new NoSuchElementException("Missing devices"))
                 .findNode("device-list")
                 .orElseThrow(() -> new NoSuchElementException("Missing device list"))
                 .children()
                 .stream()
-                .map(child -> parseDeviceId(child, jid, excludeSelf))
+                .map(this::parseDeviceId)
                 .flatMap(Optional::stream)
-                .map(id -> ContactJid.ofDevice(jid.user(), id))
                 .toList();
     }
 
-    private Optional<Integer> parseDeviceId(Node child, ContactJid jid, boolean excludeSelf) {
+    private Optional<Integer> parseDeviceId(Node child) {
         var deviceId = child.attributes().getInt("id");
         return child.description().equals("device")
-                && (!excludeSelf || deviceId != 0)
-                && (!jid.user().equals(socketHandler.store().jid().user()) || socketHandler.store().jid().device() != deviceId)
                 && (deviceId == 0 || child.attributes().hasKey("key-index")) ? Optional.of(deviceId) : Optional.empty();
     }
 
@@ -594,7 +835,12 @@ class MessageHandler {
             return;
         }
         var result = info.chat().addNewMessage(info);
-        if (!result || info.timestampSeconds() <= socketHandler.store().initializationTimeStamp()) {
+        if (!result) {
+            return;
+        }
+        socketHandler.store().indexMessage(info);
+        socketHandler.store().markChanged();
+        if (info.timestampSeconds() <= socketHandler.store().initializationTimeStamp()) {
             return;
         }
         if (info.chat().archived() && socketHandler.store().unarchiveChats()) {
@@ -694,6 +940,7 @@ class MessageHandler {
 
     private void onMessageDeleted(MessageInfo info, MessageInfo message) {
         info.chat().removeMessage(message);
+        socketHandler.store().unindexMessage(message);
         message.revokeTimestampSeconds(Clock.nowSeconds());
         socketHandler.onMessageDeleted(message, true);
     }
@@ -780,6 +1027,9 @@ class MessageHandler {
             }
 
             store.addChat(chat);
+            if (store.indexMessages()) {
+                chat.messages().forEach(message -> store.indexMessage(message.messageInfo()));
+            }
         }
     }
 
@@ -811,6 +1061,16 @@ class MessageHandler {
         }
         historySyncTask = null;
         historySyncTypes.clear();
+        deviceCache.clear();
+        groupCache.clear();
+    }
+
+    private record BulkConversation(CompletableFuture<Void> result, SendTrace trace) {
+
+    }
+
+    private record GroupNodes(Node message, List<Node> preKeys) {
+
     }
 
     private record MessageDecodeResult(byte[] message, Throwable error) {
@@ -0,0 +1,141 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.exchange.MessageSendRequest;
+import it.auties.whatsapp.model.message.model.MessageStatus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import static java.util.concurrent.CompletableFuture.delayedExecutor;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Queues the messages sent by a session until Whatsapp acknowledges them.
+ * Queued messages are persisted with the store, so messages that weren't acknowledged when the socket dropped, or when the session was closed,
+ * are sent again in order as soon as the session logs in. Messages sent while the session is offline are queued and sent at that point as well.
+ * Acks are matched by message id, so a message that is acknowledged more than once, for example because it was sent right before the socket dropped, is only completed once.
+ * A message that isn't acknowledged within {@link OutboundHandler#ACK_TIMEOUT} minutes from when it was queued is removed from the queue and its send fails.
+ */
+class OutboundHandler {
+    private static final int ACK_TIMEOUT = 5;
+
+    private final SocketHandler socketHandler;
+    private final Function<MessageSendRequest, CompletableFuture<Void>> encoder;
+    private final Map<String, CompletableFuture<Void>> results;
+    private final Map<String, Long> attempts;
+    private long generation;
+    private boolean ready;
+
+    protected OutboundHandler(SocketHandler socketHandler, Function<MessageSendRequest, CompletableFuture<Void>> encoder) {
+        this.socketHandler = socketHandler;
+        this.encoder = encoder;
+        this.results = new HashMap<>();
+        this.attempts = new HashMap<>();
+    }
+
+    protected synchronized CompletableFuture<Void> send(MessageSendRequest request) {
+        var result = track(request.info().id());
+        socketHandler.store().addOutboundMessage(request);
+        if (ready) {
+            dispatch(request);
+        }
+
+        return result;
+    }
+
+    protected synchronized void flush() {
+        this.ready = true;
+        socketHandler.store()
+                .outboundMessages()
+                .forEach(this::dispatch);
+    }
+
+    // Messages restored from a previous session are tracked when they are first dispatched, so they expire as well
+    private CompletableFuture<Void> track(String id) {
+        var result = results.get(id);
+        if (result != null) {
+            return result;
+        }
+
+        var created = new CompletableFuture<Void>();
+        results.put(id, created);
+        delayedExecutor(ACK_TIMEOUT, MINUTES).execute(() -> expire(id, created));
+        return created;
+    }
+
+    private synchronized void expire(String id, CompletableFuture<Void> result) {
+        if (!results.remove(id, result)) {
+            return;
+        }
+
+        attempts.remove(id);
+        socketHandler.store().removeOutboundMessage(id);
+        result.completeExceptionally(new TimeoutException("Cannot send message %s: no ack was received".formatted(id)));
+    }
+
+    // Messages are encoded by a single thread, so dispatching them in order is enough to send them in order
+    private void dispatch(MessageSendRequest request) {
+        var id = request.info().id();
+        if (attempts.putIfAbsent(id, generation) != null) {
+            return;
+        }
+
+        track(id);
+
+        var attempt = generation;
+        encoder.apply(request).thenRun(() -> onEncoded(request, attempt));
+    }
+
+    // A message that couldn't be sent while the session was connected won't succeed if it's sent again, so it's removed from the queue.
+    // Attempts that belong to a previous connection are ignored: the message was already sent again.
+    private synchronized void onEncoded(MessageSendRequest request, long attempt) {
+        if (!ready || attempt != generation || request.info().status() != MessageStatus.ERROR) {
+            return;
+        }
+
+        var id = request.info().id();
+        attempts.remove(id);
+        socketHandler.store().removeOutboundMessage(id);
+        var result = results.remove(id);
+        if (result != null) {
+            result.completeExceptionally(new IllegalStateException("Cannot send message %s".formatted(id)));
+        }
+    }
+
+    protected synchronized void acknowledge(String id, int error) {
+        var request = socketHandler.store().removeOutboundMessage(id);
+        if (request.isEmpty()) {
+            return;
+        }
+
+        attempts.remove(id);
+        var result = results.remove(id);
+        if (result == null) {
+            return;
+        }
+
+        if (error != 0) {
+            result.completeExceptionally(new IllegalStateException("Cannot send message %s: error %s".formatted(id, error)));
+            return;
+        }
+
+        result.complete(null);
+    }
+
+    // Messages that were in flight are sent again after the next login
+    protected synchronized void pause() {
+        this.ready = false;
+        this.generation++;
+        attempts.clear();
+    }
+
+    protected synchronized void clear() {
+        pause();
+        var error = new IllegalStateException("Cannot send message: the session was closed");
+        results.values().forEach(result -> result.completeExceptionally(error));
+        results.clear();
+    }
+}
@@ -0,0 +1,111 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.contact.ContactJid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the receipts sent by a session according to its {@link it.auties.whatsapp.api.ReceiptPolicy}.
+ * Receipts that share their chat, participant and type are buffered and sent as a single receipt that lists the ids of all their messages,
+ * so that acknowledging a backlog of messages doesn't take a stanza for each one.
+ * Read and played receipts that are still buffered when the socket closes are sent after the session logs in again.
+ */
+class ReceiptHandler {
+    private final SocketHandler socketHandler;
+    private final Map<ReceiptKey, List<String>> pending;
+    private ScheduledExecutorService service;
+
+    protected ReceiptHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.pending = new HashMap<>();
+    }
+
+    protected void send(ContactJid jid, ContactJid participant, List<String> messages, String type) {
+        var policy = socketHandler.store().receiptPolicy();
+        if (!policy.enabled()) {
+            socketHandler.sendReceiptNode(jid, participant, messages, type);
+            return;
+        }
+
+        var key = new ReceiptKey(jid, participant, type);
+        var ready = new ArrayList<List<String>>();
+        synchronized (this) {
+            var buffer = pending.get(key);
+            if (buffer == null) {
+                buffer = new ArrayList<>();
+                pending.put(key, buffer);
+                var batch = buffer;
+                getOrCreateService().schedule(() -> flush(key, batch), policy.window().toMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            buffer.addAll(messages);
+            while (buffer.size() >= policy.maxIds()) {
+                var head = buffer.subList(0, policy.maxIds());
+                ready.add(List.copyOf(head));
+                head.clear();
+            }
+        }
+
+        ready.forEach(ids -> socketHandler.sendReceiptNode(jid, participant, ids, type));
+    }
+
+    // The batch is compared by identity, so a flush scheduled for a batch that was already sent never sends a more recent one early
+    private void flush(ReceiptKey key, List<String> batch) {
+        synchronized (this) {
+            if (pending.get(key) != batch) {
+                return;
+            }
+
+            pending.remove(key);
+        }
+
+        if (!batch.isEmpty()) {
+            socketHandler.sendReceiptNode(key.jid(), key.participant(), batch, key.type());
+        }
+    }
+
+    protected void flush() {
+        Map<ReceiptKey, List<String>> batches;
+        synchronized (this) {
+            batches = new HashMap<>(pending);
+            pending.clear();
+        }
+
+        batches.forEach((key, batch) -> {
+            if (!batch.isEmpty()) {
+                socketHandler.sendReceiptNode(key.jid(), key.participant(), batch, key.type());
+            }
+        });
+    }
+
+    private ScheduledExecutorService getOrCreateService() {
+        if (service == null || service.isShutdown()) {
+            service = Executors.newSingleThreadScheduledExecutor();
+        }
+
+        return service;
+    }
+
+    // Delivery receipts that weren't sent yet are discarded, as Whatsapp sends their messages again after the session reconnects,
+    // while read and played receipts are kept until the next login: they are user actions, so nothing would send them again
+    protected synchronized void dispose() {
+        pending.keySet().removeIf(key -> !key.isUserAction());
+        if (service != null) {
+            service.shutdownNow();
+            service = null;
+        }
+    }
+
+    private record ReceiptKey(ContactJid jid, ContactJid participant, String type) {
+        private boolean isUserAction() {
+            return Objects.equals(type, "read") || Objects.equals(type, "read-self") || Objects.equals(type, "played");
+        }
+    }
+}
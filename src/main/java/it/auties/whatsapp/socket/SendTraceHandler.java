@@ -0,0 +1,78 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.exchange.LatencyHistogram;
+import it.auties.whatsapp.model.exchange.SendMetrics;
+import it.auties.whatsapp.model.exchange.SendTrace;
+import it.auties.whatsapp.model.exchange.SendTrace.Stage;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.LongStream;
+
+/**
+ * Aggregates the traces of the messages sent by a session into fixed histograms, one for each stage and one for the whole send
+ * Histograms are kept for the lifetime of the session, so the tail latency of a stage can be compared across reconnections
+ */
+class SendTraceHandler {
+    private static final long[] BOUNDS = LongStream.of(1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 30_000, 60_000)
+            .map(milliseconds -> Duration.ofMillis(milliseconds).toNanos())
+            .toArray();
+
+    private final Map<Stage, Histogram> stages;
+    private final Histogram total;
+    private long sent;
+    private long failed;
+
+    protected SendTraceHandler() {
+        this.stages = new EnumMap<>(Stage.class);
+        for (var stage : Stage.values()) {
+            stages.put(stage, new Histogram());
+        }
+        this.total = new Histogram();
+    }
+
+    protected synchronized void record(SendTrace trace) {
+        trace.durations().forEach((stage, duration) -> stages.get(stage).record(duration.toNanos()));
+        total.record(trace.total().toNanos());
+        if (trace.failed()) {
+            failed++;
+        } else if (trace.acknowledged()) {
+            sent++;
+        }
+    }
+
+    protected synchronized SendMetrics metrics() {
+        var results = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+        stages.forEach((stage, histogram) -> results.put(stage, histogram.snapshot()));
+        return new SendMetrics(Collections.unmodifiableMap(results), total.snapshot(), sent, failed);
+    }
+
+    private static final class Histogram {
+        private final long[] counts;
+        private long count;
+        private long sum;
+        private long max;
+
+        private Histogram() {
+            this.counts = new long[BOUNDS.length + 1];
+        }
+
+        private void record(long nanos) {
+            var index = Arrays.binarySearch(BOUNDS, nanos);
+            counts[index >= 0 ? index : -index - 1]++;
+            count++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        private LatencyHistogram snapshot() {
+            var bounds = Arrays.stream(BOUNDS)
+                    .mapToObj(Duration::ofNanos)
+                    .toList();
+            var values = Arrays.stream(counts)
+                    .boxed()
+                    .toList();
+            return new LatencyHistogram(bounds, values, count, Duration.ofNanos(sum), Duration.ofNanos(max));
+        }
+    }
+}
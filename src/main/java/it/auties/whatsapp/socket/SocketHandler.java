@@ -27,9 +27,13 @@ import it.auties.whatsapp.model.message.server.ProtocolMessage;
 import it.auties.whatsapp.model.mobile.PhoneNumber;
 import it.auties.whatsapp.model.privacy.PrivacySettingEntry;
 import it.auties.whatsapp.model.exchange.Attributes;
+import it.auties.whatsapp.model.exchange.BulkSendRequest;
 import it.auties.whatsapp.model.exchange.MessageSendRequest;
 import it.auties.whatsapp.model.exchange.Node;
 import it.auties.whatsapp.model.exchange.ContactStatusResponse;
+import it.auties.whatsapp.model.exchange.TrafficMetrics;
+import it.auties.whatsapp.model.exchange.SendMetrics;
+import it.auties.whatsapp.model.exchange.SendTrace;
 import it.auties.whatsapp.model.setting.Setting;
 import it.auties.whatsapp.model.signal.auth.ClientHello;
 import it.auties.whatsapp.model.signal.auth.HandshakeMessage;
@@ -78,6 +82,14 @@ public class SocketHandler implements SocketListener {
     @NonNull
     private final AppStateHandler appStateHandler;
 
+    private final CheckpointHandler checkpointHandler;
+
+    private final ReceiptHandler receiptHandler;
+
+    private final OutboundHandler outboundHandler;
+
+    private final TrafficHandler trafficHandler;
+
     @NonNull
     private final ErrorHandler errorHandler;
 
@@ -128,6 +140,10 @@ public class SocketHandler implements SocketListener {
         this.streamHandler = new StreamHandler(this, webVerificationSupport);
         this.messageHandler = new MessageHandler(this);
         this.appStateHandler = new AppStateHandler(this);
+        this.checkpointHandler = new CheckpointHandler(this);
+        this.receiptHandler = new ReceiptHandler(this);
+        this.outboundHandler = new OutboundHandler(this, messageHandler::encode);
+        this.trafficHandler = new TrafficHandler(this);
         this.errorHandler = Objects.requireNonNullElse(errorHandler, ErrorHandler.toTerminal());
         this.socketExecutor = Objects.requireNonNullElse(socketExecutor, DEFAULT_EXECUTOR);
     }
@@ -258,6 +274,7 @@ public class SocketHandler implements SocketListener {
     public CompletableFuture<Void> disconnect(DisconnectReason reason) {
         state(SocketState.of(reason));
         keys.clearReadWriteKey();
+        outboundHandler.pause();
         return switch (reason) {
             case DISCONNECTED -> {
                 if(session != null) {
@@ -272,6 +289,7 @@ public class SocketHandler implements SocketListener {
                 yield connect();
             }
             case LOGGED_OUT -> {
+                outboundHandler.clear();
                 store.deleteSession();
                 store.resolveAllPendingRequests();
                 if(session != null) {
@@ -280,6 +298,7 @@ public class SocketHandler implements SocketListener {
                 yield CompletableFuture.completedFuture(null);
             }
             case RESTORE -> {
+                outboundHandler.clear();
                 store.deleteSession();
                 store.resolveAllPendingRequests();
                 var oldListeners = new ArrayList<>(store.listeners());
@@ -343,7 +362,16 @@ public class SocketHandler implements SocketListener {
 
     public CompletableFuture<Void> sendMessage(MessageSendRequest request) {
         store.attribute(request.info());
-        return messageHandler.encode(request);
+        if (request.peer()) {
+            return messageHandler.encode(request);
+        }
+
+        return outboundHandler.send(request);
+    }
+
+    public List<CompletableFuture<Void>> sendMessages(List<MessageSendRequest> requests, BulkSendRequest options) {
+        requests.forEach(request -> store.attribute(request.info()));
+        return messageHandler.encodeBulk(requests, options);
     }
 
     @SuppressWarnings("UnusedReturnValue")
@@ -366,8 +394,8 @@ public class SocketHandler implements SocketListener {
             return CompletableFuture.completedFuture(null);
         }
 
-        return node.toRequest(null, false)
-                .sendWithNoResponse(session, keys, store)
+        var request = node.toRequest(null, false);
+        return trafficHandler.submit(TrafficClass.of(node), () -> request.sendWithNoResponse(session, keys, store))
                 .exceptionallyAsync(throwable -> handleFailure(STREAM, throwable))
                 .thenRunAsync(() -> onNodeSent(node));
     }
@@ -427,17 +455,47 @@ public class SocketHandler implements SocketListener {
     }
 
     public CompletableFuture<Node> send(Node node) {
-        return send(node, null);
+        return send(node, TrafficClass.of(node));
     }
 
     public CompletableFuture<Node> send(Node node, Function<Node, Boolean> filter) {
+        return send(node, filter, TrafficClass.of(node));
+    }
+
+    public CompletableFuture<Node> send(Node node, TrafficClass trafficClass) {
+        return send(node, null, trafficClass, null);
+    }
+
+    // The write stage of the trace ends when the node leaves the scheduler, so it includes the time spent waiting for a token
+    protected CompletableFuture<Node> send(Node node, TrafficClass trafficClass, SendTrace trace) {
+        return send(node, null, trafficClass, trace);
+    }
+
+    private CompletableFuture<Node> send(Node node, Function<Node, Boolean> filter, TrafficClass trafficClass) {
+        return send(node, filter, trafficClass, null);
+    }
+
+    private CompletableFuture<Node> send(Node node, Function<Node, Boolean> filter, TrafficClass trafficClass, SendTrace trace) {
         if (state() == SocketState.RESTORE) {
             return CompletableFuture.completedFuture(node);
         }
         var request = node.toRequest(filter, true);
-        var result = request.send(session, keys, store);
-        onNodeSent(node);
-        return result;
+        return trafficHandler.submit(trafficClass, () -> {
+            var result = request.send(session, keys, store);
+            if (trace != null) {
+                trace.mark(SendTrace.Stage.WRITE);
+            }
+            onNodeSent(node);
+            return result;
+        });
+    }
+
+    public Map<TrafficClass, TrafficMetrics> trafficMetrics() {
+        return trafficHandler.metrics();
+    }
+
+    public SendMetrics sendMetrics() {
+        return messageHandler.sendMetrics();
     }
 
     public CompletableFuture<Optional<URI>> queryPicture(@NonNull ContactJidProvider chat) {
@@ -512,6 +570,10 @@ public class SocketHandler implements SocketListener {
         if (messages.isEmpty()) {
             return;
         }
+        receiptHandler.send(jid, participant, messages, type);
+    }
+
+    protected void sendReceiptNode(ContactJid jid, ContactJid participant, List<String> messages, String type) {
         var attributes = Attributes.of()
                 .put("id", messages.get(0))
                 .put("t", Clock.nowMilliseconds(), () -> Objects.equals(type, "read") || Objects.equals(type, "read-self"))
@@ -674,6 +736,9 @@ public class SocketHandler implements SocketListener {
         if(!loginFuture.isDone()) {
             loginFuture.complete(null);
         }
+        outboundHandler.flush();
+        receiptHandler.flush();
+        warmupSessions();
         callListenersAsync(listener -> {
             listener.onLoggedIn(whatsapp);
             listener.onLoggedIn();
@@ -835,6 +900,22 @@ public class SocketHandler implements SocketListener {
         });
     }
 
+    protected void scheduleCheckpoints() {
+        checkpointHandler.schedule();
+    }
+
+    protected void onMessageAck(String messageId, int error) {
+        outboundHandler.acknowledge(messageId, error);
+    }
+
+    protected void invalidateDevices(ContactJid contactJid) {
+        messageHandler.invalidateDevices(contactJid);
+    }
+
+    protected void invalidateGroup(ContactJid groupJid) {
+        messageHandler.invalidateGroup(groupJid);
+    }
+
     protected void querySessionsForcefully(ContactJid contactJid) {
         messageHandler.querySessions(List.of(contactJid), true);
     }
@@ -844,6 +925,10 @@ public class SocketHandler implements SocketListener {
         streamHandler.dispose();
         messageHandler.dispose();
         appStateHandler.dispose();
+        checkpointHandler.dispose();
+        receiptHandler.dispose();
+        outboundHandler.pause();
+        trafficHandler.dispose();
         if(listenersService != null){
             listenersService.shutdownNow();
         }
@@ -871,6 +956,25 @@ public class SocketHandler implements SocketListener {
         return null;
     }
 
+    public CompletableFuture<Void> prewarmSessions(@NonNull List<ContactJid> chats, int batchSize) {
+        return messageHandler.prewarm(chats, batchSize);
+    }
+
+    private void warmupSessions() {
+        var policy = store.warmupPolicy();
+        if (!policy.enabled()) {
+            return;
+        }
+
+        var chats = store.chats()
+                .stream()
+                .limit(policy.chats())
+                .map(Chat::jid)
+                .toList();
+        messageHandler.prewarm(chats, policy.batchSize())
+                .exceptionallyAsync(throwable -> handleFailure(MESSAGE, throwable));
+    }
+
     public CompletableFuture<Void> querySessions(@NonNull ContactJid jid) {
         return messageHandler.getDevices(List.of(jid), true)
                 .thenCompose(values -> messageHandler.querySessions(values, false));
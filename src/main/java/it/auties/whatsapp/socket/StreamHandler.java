@@ -76,21 +76,22 @@ class StreamHandler {
     private static final int REQUIRED_PRE_KEYS_SIZE = 5;
     private static final int PRE_KEYS_UPLOAD_CHUNK = 30;
     private static final int PING_INTERVAL = 30;
+    private static final int EXPIRATION_INTERVAL = 60;
     private static final int MEDIA_CONNECTION_DEFAULT_INTERVAL = 60;
     private static final int MAX_ATTEMPTS = 5;
 
     private final SocketHandler socketHandler;
     private final WebVerificationSupport webVerificationSupport;
-    private final Map<String, Integer> retries;
     private final AtomicBoolean badMac;
+    private final AtomicBoolean expirationsScheduled;
     private final AtomicReference<String> lastLinkCodeKey;
     private ScheduledExecutorService service;
 
     protected StreamHandler(SocketHandler socketHandler, WebVerificationSupport webVerificationSupport) {
         this.socketHandler = socketHandler;
         this.webVerificationSupport = webVerificationSupport;
-        this.retries = new HashMap<>();
         this.badMac = new AtomicBoolean();
+        this.expirationsScheduled = new AtomicBoolean();
         this.lastLinkCodeKey = new AtomicReference<>();
     }
 
@@ -189,8 +190,16 @@ class StreamHandler {
 
         message.status(status);
         updateReceipt(status, chat, participant, message);
+        socketHandler.store().markMessageChanged(message);
         socketHandler.onMessageStatus(status, participant, message, chat);
         if (Objects.equals(type.orElse(null), "retry")) {
+            node.attributes()
+                    .getJid("participant")
+                    .or(() -> node.attributes().getJid("from"))
+                    .ifPresent(socketHandler::invalidateDevices);
+            if (chat != null && chat.isGroup()) {
+                socketHandler.invalidateGroup(chat.jid());
+            }
             sendMessageRetry(message);
         }
     }
@@ -199,7 +208,7 @@ class StreamHandler {
         if (!message.fromMe()) {
             return;
         }
-        var attempts = retries.getOrDefault(message.id(), 0);
+        var attempts = socketHandler.store().findRetries(message.id());
         if(attempts > MAX_ATTEMPTS){
             return;
         }
@@ -214,7 +223,7 @@ class StreamHandler {
                     .build();
             socketHandler.sendMessage(request);
         } finally {
-            retries.put(message.id(), attempts + 1);
+            socketHandler.store().addRetry(message.id());
         }
     }
 
@@ -292,15 +301,22 @@ class StreamHandler {
         var from = node.attributes()
                 .getJid("from")
                 .orElseThrow(() -> new NoSuchElementException("Cannot digest ack: missing from"));
+        socketHandler.onMessageAck(messageId, error);
         var match = socketHandler.store()
                 .findMessageById(from, messageId);
         if (error != 0) {
-            match.ifPresent(message -> message.status(MessageStatus.ERROR));
+            match.ifPresent(message -> {
+                message.status(MessageStatus.ERROR);
+                socketHandler.store().markMessageChanged(message);
+            });
             return;
         }
 
         match.filter(message -> message.status().index() < MessageStatus.SERVER_ACK.index())
-                .ifPresent(message -> message.status(MessageStatus.SERVER_ACK));
+                .ifPresent(message -> {
+                    message.status(MessageStatus.SERVER_ACK);
+                    socketHandler.store().markMessageChanged(message);
+                });
     }
 
     private void digestCallAck(Node node) {
@@ -341,6 +357,7 @@ class StreamHandler {
             case "server_sync" -> handleServerSyncNotification(node);
             case "account_sync" -> handleAccountSyncNotification(node);
             case "encrypt" -> handleEncryptNotification(node);
+            case "devices" -> handleDevicesNotification(node);
             case "picture" -> handlePictureNotification(node);
             case "registration" -> handleRegistrationNotification(node);
             case "link_code_companion_reg" -> confirmCompanionWebRegistration(node);
@@ -431,6 +448,9 @@ class StreamHandler {
     }
 
     private void handleGroupNotification(Node node) {
+        node.attributes()
+                .getJid("from")
+                .ifPresent(socketHandler::invalidateGroup);
         var child = node.findNode();
         if(child.isEmpty()){
             return;
@@ -518,6 +538,8 @@ class StreamHandler {
                 .getJid("from")
                 .orElseThrow(() -> new NoSuchElementException("Missing chat in notification"));
         if (!chat.isServerJid(ContactJid.Server.WHATSAPP)) {
+            // The identity of the user changed, so its devices probably did too
+            socketHandler.invalidateDevices(chat);
             return;
         }
         var keysSize = node.findNode("count")
@@ -530,6 +552,12 @@ class StreamHandler {
         sendPreKeys();
     }
 
+    private void handleDevicesNotification(Node node) {
+        node.attributes()
+                .getJid("from")
+                .ifPresent(socketHandler::invalidateDevices);
+    }
+
     private void handleAccountSyncNotification(Node node) {
         var child = node.findNode();
         if (child.isEmpty()) {
@@ -560,6 +588,7 @@ class StreamHandler {
         var companionDevice = devices.remove(companionJid);
         devices.put(companionJid, companionDevice);
         socketHandler.store().linkedDevicesKeys(devices);
+        socketHandler.invalidateDevices(companionJid);
         socketHandler.onDevices(devices);
         var keyIndexListNode = child.findNode("key-index-list")
                 .orElseThrow(() -> new NoSuchElementException("Missing index key node from device sync"));
@@ -712,6 +741,7 @@ class StreamHandler {
         }
 
         schedulePing();
+        socketHandler.scheduleCheckpoints();
         createMediaConnection(0, null);
         var loggedInFuture = queryInitialInfo()
                 .thenRunAsync(this::onInitialInfo)
@@ -723,6 +753,7 @@ class StreamHandler {
 
         var chatsFuture = socketHandler.store().serializer()
                 .attributeStore(socketHandler.store())
+                .thenRunAsync(this::scheduleStoredExpirations)
                 .exceptionallyAsync(exception -> socketHandler.handleFailure(MESSAGE, exception));
         CompletableFuture.allOf(loggedInFuture, chatsFuture)
                 .thenRunAsync(socketHandler::onChats);
@@ -800,6 +831,47 @@ class StreamHandler {
 
         service = Executors.newSingleThreadScheduledExecutor();
         service.scheduleAtFixedRate(this::sendPing, PING_INTERVAL, PING_INTERVAL, TimeUnit.SECONDS);
+        service.scheduleAtFixedRate(this::removeExpiredMessages, EXPIRATION_INTERVAL, EXPIRATION_INTERVAL, TimeUnit.SECONDS);
+        service.scheduleAtFixedRate(this::removeExpiredRetries, EXPIRATION_INTERVAL, EXPIRATION_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    // The expirations of a chat are only known once its messages are decoded, so the chats that weren't loaded yet are loaded here: their loader schedules their expirations.
+    // The wheel outlives the connection, so it's cleared first: otherwise every reconnection would schedule every expiration again
+    private void scheduleStoredExpirations() {
+        if (expirationsScheduled.getAndSet(true)) {
+            return;
+        }
+
+        var store = socketHandler.store();
+        if (!store.expireMessages()) {
+            return;
+        }
+
+        store.clearExpirations();
+        for (var chat : store.chats()) {
+            if (!chat.hasLoadedMessages()) {
+                chat.loadMessages();
+                continue;
+            }
+
+            chat.messages().forEach(message -> store.scheduleExpiration(message.messageInfo()));
+        }
+        store.status()
+                .forEach(store::scheduleExpiration);
+    }
+
+    private void removeExpiredRetries() {
+        socketHandler.store().removeExpiredRetries();
+    }
+
+    private void removeExpiredMessages() {
+        try {
+            socketHandler.store()
+                    .removeExpiredMessages()
+                    .forEach(message -> socketHandler.onMessageDeleted(message, true));
+        } catch (Throwable throwable) {
+            socketHandler.handleFailure(MESSAGE, throwable);
+        }
     }
 
     private void onInitialInfo() {
@@ -1162,11 +1234,11 @@ class StreamHandler {
     }
 
     protected void dispose() {
-        retries.clear();
         if(service != null){
             service.shutdownNow();
         }
         badMac.set(false);
+        expirationsScheduled.set(false);
         lastLinkCodeKey.set(null);
     }
 }
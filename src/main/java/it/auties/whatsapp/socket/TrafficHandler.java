@@ -0,0 +1,206 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.api.TrafficClass;
+import it.auties.whatsapp.api.TrafficPolicy;
+import it.auties.whatsapp.api.TrafficPolicy.Bucket;
+import it.auties.whatsapp.model.exchange.TrafficMetrics;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Schedules the nodes sent by a session according to its {@link TrafficPolicy}.
+ * Every {@link TrafficClass} has its own queue and token bucket: a node is sent as soon as its bucket has a token,
+ * and when nodes of different classes are ready at the same time the ones of the highest class are sent first.
+ * Nodes are dequeued while the scheduler is locked, but they are sent outside of it by a single dispatcher thread:
+ * a slow write never blocks the scheduler, and nodes are still sent in the order they were dequeued, so nodes of the same class are always sent in order.
+ */
+class TrafficHandler {
+    private final SocketHandler socketHandler;
+    private final Map<TrafficClass, Lane> lanes;
+    private ScheduledExecutorService service;
+    private ExecutorService dispatcher;
+    private ScheduledFuture<?> drainTask;
+
+    protected TrafficHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.lanes = new EnumMap<>(TrafficClass.class);
+        for (var trafficClass : TrafficClass.values()) {
+            lanes.put(trafficClass, new Lane());
+        }
+    }
+
+    protected <T> CompletableFuture<T> submit(TrafficClass trafficClass, Supplier<CompletableFuture<T>> task) {
+        var policy = socketHandler.store().trafficPolicy();
+        if (!policy.enabled()) {
+            synchronized (this) {
+                lanes.get(trafficClass).sent++;
+            }
+
+            return task.get();
+        }
+
+        var result = new CompletableFuture<T>();
+        synchronized (this) {
+            lanes.get(trafficClass).queue.add(new Task(() -> run(task, result), result));
+            drain(policy);
+        }
+
+        return result;
+    }
+
+    private <T> void run(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+        try {
+            task.get().whenComplete((value, throwable) -> {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                    return;
+                }
+
+                result.complete(value);
+            });
+        } catch (Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+    }
+
+    // The scheduled task that runs this method isn't done yet, so it's forgotten before the next one is scheduled
+    private synchronized void drain() {
+        this.drainTask = null;
+        drain(socketHandler.store().trafficPolicy());
+    }
+
+    private void drain(TrafficPolicy policy) {
+        var now = System.nanoTime();
+        var wait = Long.MAX_VALUE;
+        for (var entry : lanes.entrySet()) {
+            var lane = entry.getValue();
+            var bucket = policy.bucket(entry.getKey());
+            lane.refill(bucket, now);
+            while (!lane.queue.isEmpty() && lane.tryAcquire(bucket)) {
+                getOrCreateDispatcher().execute(lane.queue.poll());
+                lane.sent++;
+            }
+
+            if (!lane.queue.isEmpty()) {
+                wait = Math.min(wait, lane.nanosUntilToken(bucket));
+            }
+        }
+
+        if (wait != Long.MAX_VALUE) {
+            scheduleDrain(wait);
+        }
+    }
+
+    private void scheduleDrain(long wait) {
+        if (drainTask != null && !drainTask.isDone() && drainTask.getDelay(TimeUnit.NANOSECONDS) <= wait) {
+            return;
+        }
+
+        if (drainTask != null) {
+            drainTask.cancel(false);
+        }
+
+        this.drainTask = getOrCreateService().schedule((Runnable) this::drain, wait, TimeUnit.NANOSECONDS);
+    }
+
+    private ScheduledExecutorService getOrCreateService() {
+        if (service == null || service.isShutdown()) {
+            service = Executors.newSingleThreadScheduledExecutor();
+        }
+
+        return service;
+    }
+
+    private ExecutorService getOrCreateDispatcher() {
+        if (dispatcher == null || dispatcher.isShutdown()) {
+            dispatcher = Executors.newSingleThreadExecutor();
+        }
+
+        return dispatcher;
+    }
+
+    protected synchronized Map<TrafficClass, TrafficMetrics> metrics() {
+        var policy = socketHandler.store().trafficPolicy();
+        var now = System.nanoTime();
+        var results = new EnumMap<TrafficClass, TrafficMetrics>(TrafficClass.class);
+        lanes.forEach((trafficClass, lane) -> {
+            var bucket = policy.bucket(trafficClass);
+            lane.refill(bucket, now);
+            var limited = policy.enabled() && bucket.limited();
+            results.put(trafficClass, new TrafficMetrics(trafficClass, limited ? lane.tokens : -1, limited ? bucket.capacity() : -1, lane.queue.size(), lane.sent));
+        });
+        return Collections.unmodifiableMap(results);
+    }
+
+    // Nodes that weren't sent yet, including the ones that were dequeued but not dispatched, are failed: the requests that they belong to can't be answered by the next session
+    protected synchronized void dispose() {
+        var error = new IllegalStateException("Cannot send node: the session was closed");
+        lanes.values().forEach(lane -> {
+            lane.queue.forEach(task -> task.result().completeExceptionally(error));
+            lane.queue.clear();
+        });
+        if (service != null) {
+            service.shutdownNow();
+            service = null;
+        }
+        drainTask = null;
+        if (dispatcher != null) {
+            dispatcher.shutdownNow()
+                    .forEach(task -> ((Task) task).result().completeExceptionally(error));
+            dispatcher = null;
+        }
+    }
+
+    private static final class Lane {
+        private final Queue<Task> queue;
+        private double tokens;
+        private long lastRefill;
+        private long sent;
+
+        private Lane() {
+            this.queue = new ArrayDeque<>();
+            this.tokens = Double.NaN;
+        }
+
+        private void refill(Bucket bucket, long now) {
+            if (!bucket.limited()) {
+                return;
+            }
+
+            if (Double.isNaN(tokens)) {
+                this.tokens = bucket.capacity();
+            } else {
+                var elapsed = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+                this.tokens = Math.min(bucket.capacity(), tokens + elapsed * bucket.rate());
+            }
+
+            this.lastRefill = now;
+        }
+
+        private boolean tryAcquire(Bucket bucket) {
+            if (!bucket.limited()) {
+                return true;
+            }
+
+            if (tokens < 1) {
+                return false;
+            }
+
+            tokens--;
+            return true;
+        }
+
+        private long nanosUntilToken(Bucket bucket) {
+            return (long) Math.ceil((1 - tokens) / bucket.rate() * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private record Task(Runnable action, CompletableFuture<?> result) implements Runnable {
+        @Override
+        public void run() {
+            action.run();
+        }
+    }
+}
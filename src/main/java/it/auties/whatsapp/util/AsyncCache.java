@@ -0,0 +1,209 @@
+package it.auties.whatsapp.util;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A cache of values that are loaded asynchronously, for example by a query
+ * Keys that are requested while their value is still loading share the same load, then the value is cached for a fixed amount of time
+ * Failed loads are never cached, so the value is loaded again on the next request, and neither are loads that complete after their key was invalidated
+ * When the cache is full, the least recently used entry is evicted
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class AsyncCache<K, V> {
+    private final long ttlMilliseconds;
+    private final int maxEntries;
+    private final Map<K, Entry<V>> entries;
+
+    /**
+     * Constructs a new empty cache without a maximum number of entries
+     *
+     * @param ttl the non-null time for which a value is cached after it's loaded
+     */
+    public AsyncCache(@NonNull Duration ttl) {
+        this(ttl, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a new empty cache
+     *
+     * @param ttl        the non-null time for which a value is cached after it's loaded
+     * @param maxEntries the maximum number of entries, including the ones that are still loading
+     */
+    public AsyncCache(@NonNull Duration ttl, int maxEntries) {
+        Validate.isTrue(maxEntries > 0, "Invalid maximum number of entries: %s", maxEntries);
+        this.ttlMilliseconds = ttl.toMillis();
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the value of a key, loading it if it isn't cached nor loading
+     *
+     * @param key    the non-null key
+     * @param loader the non-null supplier that loads the value
+     * @return a future that completes with the value
+     */
+    public CompletableFuture<V> get(@NonNull K key, @NonNull Supplier<CompletableFuture<V>> loader) {
+        var entry = new Entry<V>();
+        synchronized (entries) {
+            var knownEntry = findEntry(key, Clock.nowMilliseconds());
+            if (knownEntry != null) {
+                return knownEntry.future();
+            }
+
+            putEntry(key, entry);
+        }
+
+        load(loader).whenComplete((result, throwable) -> complete(key, entry, result, throwable));
+        return entry.future();
+    }
+
+    /**
+     * Returns the values of many keys
+     * A single load is started for all the keys that are neither cached nor loading
+     *
+     * @param keys   the non-null keys, duplicates are ignored
+     * @param loader the non-null function that loads the values of the keys that it receives
+     * @return a future that completes with the value of each key, in the same order as the keys
+     */
+    public CompletableFuture<Map<K, V>> getAll(@NonNull Collection<K> keys, @NonNull Function<List<K>, CompletableFuture<Map<K, V>>> loader) {
+        var results = new LinkedHashMap<K, CompletableFuture<V>>();
+        var missing = new LinkedHashMap<K, Entry<V>>();
+        synchronized (entries) {
+            var now = Clock.nowMilliseconds();
+            for (var key : keys) {
+                if (results.containsKey(key)) {
+                    continue;
+                }
+
+                var knownEntry = findEntry(key, now);
+                if (knownEntry != null) {
+                    results.put(key, knownEntry.future());
+                    continue;
+                }
+
+                var entry = new Entry<V>();
+                putEntry(key, entry);
+                results.put(key, entry.future());
+                missing.put(key, entry);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            load(() -> loader.apply(List.copyOf(missing.keySet())))
+                    .whenComplete((result, throwable) -> missing.forEach((key, entry) -> {
+                        if (throwable == null && !result.containsKey(key)) {
+                            complete(key, entry, null, new NoSuchElementException("Missing value for %s".formatted(key)));
+                            return;
+                        }
+
+                        complete(key, entry, throwable == null ? result.get(key) : null, throwable);
+                    }));
+        }
+
+        return CompletableFuture.allOf(results.values().toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> results.entrySet()
+                        .stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().join(), (first, second) -> first, LinkedHashMap::new)));
+    }
+
+    private Entry<V> findEntry(K key, long now) {
+        var entry = entries.get(key);
+        return entry == null || entry.isExpired(now) ? null : entry;
+    }
+
+    private void putEntry(K key, Entry<V> entry) {
+        entries.put(key, entry);
+        var iterator = entries.values().iterator();
+        while (entries.size() > maxEntries) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    // A loader that throws instead of returning a failed future must not leave its entry loading forever
+    private <T> CompletableFuture<T> load(Supplier<CompletableFuture<T>> loader) {
+        try {
+            return Objects.requireNonNull(loader.get(), "Loader returned null");
+        } catch (Throwable throwable) {
+            return CompletableFuture.failedFuture(throwable);
+        }
+    }
+
+    // The entry is compared by identity, so a load that completes after its key was invalidated or evicted doesn't replace a more recent entry
+    private void complete(K key, Entry<V> entry, V value, Throwable throwable) {
+        synchronized (entries) {
+            if (entries.get(key) == entry) {
+                if (throwable != null) {
+                    entries.remove(key);
+                } else {
+                    entry.expirationMilliseconds = Clock.nowMilliseconds() + ttlMilliseconds;
+                }
+            }
+        }
+
+        if (throwable != null) {
+            entry.future().completeExceptionally(throwable);
+            return;
+        }
+
+        entry.future().complete(value);
+    }
+
+    /**
+     * Invalidates the value of a key, including a value that is still loading
+     *
+     * @param key the non-null key
+     */
+    public void invalidate(@NonNull K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Invalidates the loaded values that match a predicate
+     *
+     * @param predicate the non-null predicate
+     */
+    public void invalidateIf(@NonNull Predicate<V> predicate) {
+        synchronized (entries) {
+            entries.values().removeIf(entry -> entry.future().isDone()
+                    && !entry.future().isCompletedExceptionally()
+                    && predicate.test(entry.future().join()));
+        }
+    }
+
+    /**
+     * Invalidates all the values
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    // Guarded by the map of entries: an entry that is still loading never expires
+    private static final class Entry<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private long expirationMilliseconds = Long.MAX_VALUE;
+
+        private CompletableFuture<V> future() {
+            return future;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expirationMilliseconds;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package it.auties.whatsapp.util;
+
+import lombok.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.*;
+
+/**
+ * A codec used to compress serialized data
+ * Every codec is identified by a byte that is written before the compressed data, so that data can be decompressed regardless of the codec that is currently configured
+ * Custom codecs must use an id that isn't reserved by a built-in codec and must be registered with {@link #register(Compression)} before the data they compressed is read
+ */
+public interface Compression {
+    /**
+     * The id of the codec that doesn't compress data
+     */
+    byte NONE_ID = 0;
+
+    /**
+     * The id of the deflate codec
+     */
+    byte DEFLATE_ID = 1;
+
+    /**
+     * The id of the gzip codec
+     */
+    byte GZIP_ID = 2;
+
+    /**
+     * Returns a codec that doesn't compress data
+     *
+     * @return a non-null codec
+     */
+    static Compression none() {
+        return None.INSTANCE;
+    }
+
+    /**
+     * Returns a deflate codec that favours speed over size
+     *
+     * @return a non-null codec
+     */
+    static Compression deflate() {
+        return Deflate.INSTANCE;
+    }
+
+    /**
+     * Returns a deflate codec
+     * The deflater and the inflater used by the codec are reused by each thread
+     *
+     * @param level the compression level, from 0 to 9
+     * @return a non-null codec
+     */
+    static Compression deflate(int level) {
+        return level == Deflater.BEST_SPEED ? Deflate.INSTANCE : new Deflate(level);
+    }
+
+    /**
+     * Returns a gzip codec, the same format used by default to serialize sessions
+     *
+     * @return a non-null codec
+     */
+    static Compression gzip() {
+        return Gzip.INSTANCE;
+    }
+
+    /**
+     * Returns the codec that matches an id, either built-in or registered
+     *
+     * @param id the id of the codec
+     * @return a non-null codec
+     * @throws IllegalArgumentException if no codec matches the id
+     */
+    static Compression of(byte id) {
+        return switch (id) {
+            case NONE_ID -> none();
+            case DEFLATE_ID -> deflate();
+            case GZIP_ID -> gzip();
+            default -> {
+                var codec = Registry.CODECS.get(id);
+                Validate.isTrue(codec != null, "Unknown compression: %s, custom codecs must be registered before the data they compressed is read", id);
+                yield codec;
+            }
+        };
+    }
+
+    /**
+     * Registers a custom codec, so that the data it compressed can be decompressed by {@link #of(byte)}
+     * If a codec with the same id was already registered, it's replaced
+     *
+     * @param codec the non-null codec to register
+     * @throws IllegalArgumentException if the id of the codec is reserved by a built-in codec
+     */
+    static void register(@NonNull Compression codec) {
+        Validate.isTrue(!isBuiltIn(codec.id()), "Compression id %s is reserved by a built-in codec", codec.id());
+        Registry.CODECS.put(codec.id(), codec);
+    }
+
+    /**
+     * Returns whether an id is reserved by a built-in codec
+     *
+     * @param id the id to check
+     * @return a boolean
+     */
+    static boolean isBuiltIn(byte id) {
+        return id == NONE_ID || id == DEFLATE_ID || id == GZIP_ID;
+    }
+
+    /**
+     * Returns the id of this codec
+     *
+     * @return a byte
+     */
+    byte id();
+
+    /**
+     * Compresses data
+     *
+     * @param data the non-null data to compress
+     * @return a non-null array of bytes
+     */
+    byte[] compress(byte @NonNull [] data);
+
+    /**
+     * Decompresses data
+     *
+     * @param data the non-null data to decompress
+     * @return a non-null array of bytes
+     */
+    byte[] decompress(byte @NonNull [] data);
+
+    final class None implements Compression {
+        private static final None INSTANCE = new None();
+
+        @Override
+        public byte id() {
+            return NONE_ID;
+        }
+
+        @Override
+        public byte[] compress(byte @NonNull [] data) {
+            return data;
+        }
+
+        @Override
+        public byte[] decompress(byte @NonNull [] data) {
+            return data;
+        }
+    }
+
+    final class Registry {
+        private static final Map<Byte, Compression> CODECS = new ConcurrentHashMap<>();
+
+        private Registry() {
+
+        }
+    }
+
+    final class Deflate implements Compression {
+        private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+        private static final Deflate INSTANCE = new Deflate(Deflater.BEST_SPEED);
+
+        private final ThreadLocal<Deflater> deflater;
+
+        private Deflate(int level) {
+            Validate.isTrue(level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION, "Invalid compression level: %s", level);
+            this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+        }
+
+        @Override
+        public byte id() {
+            return DEFLATE_ID;
+        }
+
+        @Override
+        public byte[] compress(byte @NonNull [] data) {
+            var deflater = this.deflater.get();
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                var output = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+                var buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    var length = deflater.deflate(buffer);
+                    output.write(buffer, 0, length);
+                }
+                return output.toByteArray();
+            } finally {
+                deflater.reset();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte @NonNull [] data) {
+            var inflater = INFLATER.get();
+            try {
+                inflater.setInput(data);
+                var output = new ByteArrayOutputStream(data.length * 2);
+                var buffer = new byte[8192];
+                while (!inflater.finished()) {
+                    var length = inflater.inflate(buffer);
+                    if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new UncheckedIOException(new ZipException("Truncated deflate data"));
+                    }
+                    output.write(buffer, 0, length);
+                }
+                return output.toByteArray();
+            } catch (DataFormatException exception) {
+                throw new UncheckedIOException(new ZipException(exception.getMessage()));
+            } finally {
+                inflater.reset();
+            }
+        }
+    }
+
+    final class Gzip implements Compression {
+        private static final Gzip INSTANCE = new Gzip();
+
+        @Override
+        public byte id() {
+            return GZIP_ID;
+        }
+
+        @Override
+        public byte[] compress(byte @NonNull [] data) {
+            try (var output = new ByteArrayOutputStream()) {
+                try (var stream = new GZIPOutputStream(output)) {
+                    stream.write(data);
+                }
+                return output.toByteArray();
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot compress data", exception);
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte @NonNull [] data) {
+            try (var stream = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                return stream.readAllBytes();
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot decompress data", exception);
+            }
+        }
+    }
+}
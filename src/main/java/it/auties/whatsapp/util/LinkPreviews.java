@@ -0,0 +1,136 @@
+package it.auties.whatsapp.util;
+
+import it.auties.linkpreview.LinkPreview;
+import it.auties.linkpreview.LinkPreviewMedia;
+import it.auties.linkpreview.LinkPreviewResult;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the previews of the links contained in text messages
+ * Previews, including their thumbnail, are cached by canonical url for a fixed amount of time and concurrent requests for the same url share the same fetch, while failed fetches are retried on the next request
+ */
+@UtilityClass
+public class LinkPreviews {
+    private final Pattern URL_PATTERN = Pattern.compile("(https?://)?([\\w.-]+)(\\.\\w{2,})+(?::(\\d+))?([/\\w.?=-]*)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+    private final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(3);
+    private final AsyncCache<URI, Optional<Preview>> CACHE = new AsyncCache<>(Duration.ofHours(1), 256);
+
+    /**
+     * Creates a preview for the first link in a text that can be previewed, waiting at most three seconds
+     *
+     * @param text the non-null text
+     * @return a future that completes with the preview, or with an empty optional if no link could be previewed in time
+     */
+    public CompletableFuture<Optional<Match>> createPreview(@NonNull String text) {
+        return createPreview(text, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a preview for the first link in a text that can be previewed
+     * If the timeout expires, the returned future completes with an empty optional while the fetch keeps going in the background so that the next request for the same link can use it
+     *
+     * @param text    the non-null text
+     * @param timeout the non-null maximum amount of time to wait
+     * @return a future that completes with the preview, or with an empty optional if no link could be previewed in time
+     */
+    public CompletableFuture<Optional<Match>> createPreview(@NonNull String text, @NonNull Duration timeout) {
+        var matcher = URL_PATTERN.matcher(text);
+        var matches = new ArrayList<String>();
+        while (matcher.find()) {
+            matches.add(matcher.group());
+        }
+
+        return createPreview(matches, 0)
+                .exceptionally(ignored -> Optional.empty())
+                .completeOnTimeout(Optional.empty(), timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private CompletableFuture<Optional<Match>> createPreview(List<String> matches, int index) {
+        if (index >= matches.size()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        var text = matches.get(index);
+        return getPreview(text).thenCompose(result -> result.isPresent() ? CompletableFuture.completedFuture(result.map(preview -> new Match(text, preview)))
+                : createPreview(matches, index + 1));
+    }
+
+    private CompletableFuture<Optional<Preview>> getPreview(String text) {
+        var uri = canonicalize(text).orElse(null);
+        if (uri == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        return CACHE.get(uri, () -> LinkPreview.createPreviewAsync(uri).thenCompose(LinkPreviews::toPreview));
+    }
+
+    private CompletableFuture<Optional<Preview>> toPreview(Optional<LinkPreviewResult> result) {
+        if (result.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        var imageUri = findLargest(result.get().images()).orElse(null);
+        var videoUri = findLargest(result.get().videos()).orElse(null);
+        return Medias.downloadAsync(imageUri)
+                .exceptionally(ignored -> null)
+                .thenApply(thumbnail -> Optional.of(new Preview(result.get(), videoUri, thumbnail)));
+    }
+
+    private Optional<URI> findLargest(Set<LinkPreviewMedia> medias) {
+        return medias.stream()
+                .max(Comparator.comparingLong(media -> (long) media.width() * media.height()))
+                .map(LinkPreviewMedia::uri);
+    }
+
+    private Optional<URI> canonicalize(String text) {
+        try {
+            var uri = URI.create(text.contains("://") ? text : "https://%s".formatted(text));
+            if (uri.getHost() == null) {
+                return Optional.empty();
+            }
+
+            var path = uri.getRawPath() == null || uri.getRawPath().equals("/") ? "" : uri.getRawPath();
+            var query = uri.getRawQuery() == null ? "" : "?%s".formatted(uri.getRawQuery());
+            var port = uri.getPort() == -1 ? "" : ":%s".formatted(uri.getPort());
+            return Optional.of(URI.create("%s://%s%s%s%s".formatted(uri.getScheme().toLowerCase(Locale.ROOT), uri.getHost().toLowerCase(Locale.ROOT), port, path, query)).normalize());
+        } catch (IllegalArgumentException exception) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Removes all the cached previews
+     */
+    public void clear() {
+        CACHE.clear();
+    }
+
+    /**
+     * A link that was matched in a text and its preview
+     *
+     * @param text    the text that matched the link
+     * @param preview the preview of the link
+     */
+    public record Match(@NonNull String text, @NonNull Preview preview) {
+
+    }
+
+    /**
+     * The preview of a link
+     *
+     * @param result    the metadata of the link
+     * @param video     the uri of the largest video of the link, if any
+     * @param thumbnail the largest image of the link, if any
+     */
+    public record Preview(@NonNull LinkPreviewResult result, URI video, byte[] thumbnail) {
+
+    }
+}
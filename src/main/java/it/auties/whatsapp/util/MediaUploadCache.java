@@ -0,0 +1,77 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.api.UploadCachePolicy;
+import it.auties.whatsapp.crypto.Sha256;
+import it.auties.whatsapp.model.media.AttachmentType;
+import it.auties.whatsapp.model.media.MediaFile;
+import lombok.NonNull;
+
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * A cache of the medias uploaded by a session, keyed by the hash of their content and by their type
+ * Medias that are uploaded while an upload of the same content is still pending share the result of that upload
+ */
+public final class MediaUploadCache {
+    private UploadCachePolicy policy;
+    private AsyncCache<Key, MediaFile> entries;
+
+    /**
+     * Uploads a media or returns a previous upload of the same content if the policy allows it
+     * Failed uploads are not cached, so that the media is uploaded again on the next send
+     *
+     * @param file     the non-null content of the media
+     * @param type     the non-null type of the media
+     * @param policy   the non-null policy that decides whether and for how long uploads are reused
+     * @param uploader the non-null supplier that uploads the media if no valid upload is cached
+     * @return a future that completes with the upload
+     */
+    public CompletableFuture<MediaFile> upload(byte @NonNull [] file, @NonNull AttachmentType type, @NonNull UploadCachePolicy policy, @NonNull Supplier<CompletableFuture<MediaFile>> uploader) {
+        if (!policy.enabled()) {
+            return uploader.get();
+        }
+
+        var key = new Key(HexFormat.of().formatHex(Sha256.calculate(file)), type);
+        return getEntries(policy).get(key, uploader);
+    }
+
+    // The uploads are forgotten when the policy changes, as they were cached according to the previous one
+    private synchronized AsyncCache<Key, MediaFile> getEntries(UploadCachePolicy policy) {
+        if (!policy.equals(this.policy)) {
+            this.policy = policy;
+            this.entries = new AsyncCache<>(policy.ttl(), policy.maxEntries());
+        }
+
+        return entries;
+    }
+
+    /**
+     * Forgets the uploads whose encrypted content has a specific hash
+     * This should be called when Whatsapp reports that an upload is no longer available
+     *
+     * @param fileEncSha256 the hash of the encrypted content, can be null
+     */
+    public synchronized void invalidate(byte[] fileEncSha256) {
+        if (fileEncSha256 == null || entries == null) {
+            return;
+        }
+
+        entries.invalidateIf(upload -> Arrays.equals(upload.fileEncSha256(), fileEncSha256));
+    }
+
+    /**
+     * Forgets all the uploads
+     */
+    public synchronized void clear() {
+        if (entries != null) {
+            entries.clear();
+        }
+    }
+
+    private record Key(String sha256, AttachmentType type) {
+
+    }
+}
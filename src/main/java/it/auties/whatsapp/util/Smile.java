@@ -56,6 +56,14 @@ public class Smile {
         smile.writeValue(outputStream, object);
     }
 
+    public byte[] writeValueAsBytes(Object object, Class<?> view) throws IOException{
+        return smile.writerWithView(view).writeValueAsBytes(object);
+    }
+
+    public void writeValueAsBytes(OutputStream outputStream, Object object, Class<?> view) throws IOException{
+        smile.writerWithView(view).writeValue(outputStream, object);
+    }
+
     public <T> T readValue(byte[] value, Class<T> clazz) throws IOException{
         return smile.readValue(value, clazz);
     }
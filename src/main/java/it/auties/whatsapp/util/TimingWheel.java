@@ -0,0 +1,112 @@
+package it.auties.whatsapp.util;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel used to keep track of values that expire at a given time.
+ * Values are placed in the bucket that matches their deadline, so advancing the wheel only touches the buckets whose ticks have elapsed.
+ * Values whose deadline is further away than a full rotation stay in their bucket until the wheel comes around again.
+ * Only ticks that have fully elapsed are advanced through, so a value is returned at most one tick after its deadline.
+ * The wheel doesn't own a thread: {@link TimingWheel#advance(long)} should be called periodically, usually once per tick.
+ *
+ * @param <T> the type of the values
+ */
+public final class TimingWheel<T> {
+    private final long tickMilliseconds;
+    private final List<ArrayDeque<Entry<T>>> buckets;
+    private long lastTick;
+    private int size;
+
+    /**
+     * Constructs a new timing wheel
+     *
+     * @param tick    the non-null duration of a tick
+     * @param buckets the number of buckets, that is the number of ticks in a rotation
+     */
+    public TimingWheel(@NonNull Duration tick, int buckets) {
+        Validate.isTrue(!tick.isNegative() && !tick.isZero(), "Expected a positive tick: %s", tick);
+        Validate.isTrue(buckets > 0, "Expected a positive number of buckets: %s", buckets);
+        this.tickMilliseconds = tick.toMillis();
+        this.buckets = new ArrayList<>(buckets);
+        for (var index = 0; index < buckets; index++) {
+            this.buckets.add(new ArrayDeque<>());
+        }
+        this.lastTick = Clock.nowMilliseconds() / tickMilliseconds - 1;
+    }
+
+    /**
+     * Schedules a value
+     * If the deadline has already passed, the value will be returned by the first call to {@link TimingWheel#advance(long)} after the current tick has elapsed
+     *
+     * @param value                the non-null value to schedule
+     * @param deadlineMilliseconds the deadline of the value in milliseconds since the epoch
+     */
+    public synchronized void schedule(@NonNull T value, long deadlineMilliseconds) {
+        var tick = Math.max(deadlineMilliseconds / tickMilliseconds, lastTick + 1);
+        buckets.get(bucketIndex(tick)).add(new Entry<>(value, deadlineMilliseconds));
+        size++;
+    }
+
+    /**
+     * Advances the wheel through the ticks that have fully elapsed at the provided time
+     *
+     * @param nowMilliseconds the current time in milliseconds since the epoch
+     * @return a non-null list of values whose deadline has passed
+     */
+    public synchronized List<T> advance(long nowMilliseconds) {
+        var elapsedTick = nowMilliseconds / tickMilliseconds - 1;
+        if (elapsedTick <= lastTick) {
+            return List.of();
+        }
+
+        var ticks = Math.min(elapsedTick - lastTick, buckets.size());
+        var results = new ArrayList<T>();
+        for (var tick = elapsedTick - ticks + 1; tick <= elapsedTick; tick++) {
+            var bucket = buckets.get(bucketIndex(tick));
+            var iterator = bucket.iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (entry.deadlineMilliseconds() > nowMilliseconds) {
+                    continue;
+                }
+
+                iterator.remove();
+                results.add(entry.value());
+                size--;
+            }
+        }
+
+        this.lastTick = elapsedTick;
+        return results;
+    }
+
+    /**
+     * Returns the number of values scheduled in this wheel
+     *
+     * @return a non-negative number
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the values from this wheel
+     */
+    public synchronized void clear() {
+        buckets.forEach(ArrayDeque::clear);
+        this.size = 0;
+    }
+
+    private int bucketIndex(long tick) {
+        return (int) Math.floorMod(tick, (long) buckets.size());
+    }
+
+    private record Entry<T>(T value, long deadlineMilliseconds) {
+
+    }
+}
@@ -2,6 +2,7 @@ open module it.auties.whatsapp4j {
     requires static lombok;
     requires transitive java.desktop;
     requires java.net.http;
+    requires java.sql;
     requires com.fasterxml.jackson.annotation;
     requires com.fasterxml.jackson.databind;
     requires com.fasterxml.jackson.datatype.jdk8;
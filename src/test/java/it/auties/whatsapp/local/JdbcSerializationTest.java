@@ -0,0 +1,65 @@
+package it.auties.whatsapp.local;
+
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.controller.JdbcControllerSerializer;
+import it.auties.whatsapp.controller.Store;
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.contact.Contact;
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.info.MessageInfo;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+import it.auties.whatsapp.model.message.model.MessageKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Just used for testing locally
+public class JdbcSerializationTest {
+    private static final ContactJid JID = ContactJid.of("393495089819@s.whatsapp.net");
+
+    @Test
+    public void run() {
+        var url = "jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1".formatted(UUID.randomUUID());
+        var serializer = new JdbcControllerSerializer(url);
+        var store = Store.of(UUID.randomUUID(), ClientType.WEB, serializer);
+        var contact = store.addContact(Contact.ofJid(JID));
+        contact.chosenName("Before");
+        var chat = Chat.ofJid(JID);
+        store.addChat(chat);
+        chat.name("Chat");
+        chat.addNewMessage(createMessage("3EB0000000000001", "First"));
+        chat.addNewMessage(createMessage("3EB0000000000002", "Second"));
+        serializer.serializeStore(store, false);
+        contact.chosenName("After");
+        serializer.serializeStore(store, false);
+
+        var restoredSerializer = new JdbcControllerSerializer(url);
+        var restored = restoredSerializer.deserializeStore(ClientType.WEB, store.uuid())
+                .orElseThrow();
+        restoredSerializer.attributeStore(restored).join();
+        var restoredContact = restored.findContactByJid(JID)
+                .orElseThrow();
+        assertEquals("After", restoredContact.chosenName());
+        var restoredChat = restored.findChatByJid(JID)
+                .orElseThrow();
+        assertEquals("Chat", restoredChat.name());
+        assertFalse(restoredChat.hasLoadedMessages());
+        assertEquals(2, restoredChat.messages().size());
+        assertTrue(restoredSerializer.findMessageById(restored, JID, "3EB0000000000002").isPresent());
+    }
+
+    private MessageInfo createMessage(String id, String text) {
+        var key = MessageKey.builder()
+                .chatJid(JID)
+                .id(id)
+                .fromMe(true)
+                .build();
+        return MessageInfo.builder()
+                .key(key)
+                .message(MessageContainer.of(text))
+                .timestampSeconds(1_680_000_000L)
+                .build();
+    }
+}
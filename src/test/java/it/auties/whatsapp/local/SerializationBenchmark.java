@@ -0,0 +1,87 @@
+package it.auties.whatsapp.local;
+
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.contact.ContactJid;
+import it.auties.whatsapp.model.info.MessageInfo;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+import it.auties.whatsapp.model.message.model.MessageKey;
+import it.auties.whatsapp.model.message.model.MessageStatus;
+import it.auties.whatsapp.util.Compression;
+import it.auties.whatsapp.util.Protobuf;
+import it.auties.whatsapp.util.Smile;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Function;
+
+// Just used for testing locally
+public class SerializationBenchmark {
+    private static final int MESSAGES = 5000;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 50;
+
+    @Test
+    public void run() {
+        var chat = createChat();
+        benchmark("smile + gzip", chat, value -> Compression.gzip().compress(writeSmile(value)), data -> readSmile(Compression.gzip().decompress(data)));
+        benchmark("protobuf", chat, value -> Compression.none().compress(Protobuf.writeMessage(value)), data -> Protobuf.readMessage(Compression.none().decompress(data), Chat.class));
+        benchmark("protobuf + deflate", chat, value -> Compression.deflate().compress(Protobuf.writeMessage(value)), data -> Protobuf.readMessage(Compression.deflate().decompress(data), Chat.class));
+        benchmark("protobuf + gzip", chat, value -> Compression.gzip().compress(Protobuf.writeMessage(value)), data -> Protobuf.readMessage(Compression.gzip().decompress(data), Chat.class));
+    }
+
+    private Chat createChat() {
+        var jid = ContactJid.of("393495089819@s.whatsapp.net");
+        var chat = Chat.ofJid(jid);
+        chat.name("Benchmark");
+        for (var index = 0; index < MESSAGES; index++) {
+            var key = MessageKey.builder()
+                    .chatJid(jid)
+                    .id("3EB0%016X".formatted(index))
+                    .fromMe(index % 2 == 0)
+                    .build();
+            var info = MessageInfo.builder()
+                    .key(key)
+                    .message(MessageContainer.of("Message number %s of the benchmark".formatted(index)))
+                    .timestampSeconds(1_680_000_000L + index)
+                    .status(MessageStatus.READ)
+                    .build();
+            chat.addNewMessage(info);
+        }
+        return chat;
+    }
+
+    private void benchmark(String name, Chat chat, Function<Chat, byte[]> encoder, Function<byte[], Chat> decoder) {
+        var data = encoder.apply(chat);
+        for (var index = 0; index < WARMUP_ITERATIONS; index++) {
+            decoder.apply(encoder.apply(chat));
+        }
+        var encodeStart = System.nanoTime();
+        for (var index = 0; index < ITERATIONS; index++) {
+            encoder.apply(chat);
+        }
+        var encodeTime = (System.nanoTime() - encodeStart) / ITERATIONS / 1_000_000.0;
+        var decodeStart = System.nanoTime();
+        for (var index = 0; index < ITERATIONS; index++) {
+            decoder.apply(data);
+        }
+        var decodeTime = (System.nanoTime() - decodeStart) / ITERATIONS / 1_000_000.0;
+        System.out.printf("%-20s size: %8d bytes, encode: %7.2f ms, decode: %7.2f ms%n", name, data.length, encodeTime, decodeTime);
+    }
+
+    private byte[] writeSmile(Chat chat) {
+        try {
+            return Smile.writeValueAsBytes(chat);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private Chat readSmile(byte[] data) {
+        try {
+            return Smile.readValue(data, Chat.class);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+}